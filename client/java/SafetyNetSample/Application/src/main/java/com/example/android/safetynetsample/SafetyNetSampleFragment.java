@@ -15,8 +15,14 @@
 */
 package com.example.android.safetynetsample;
 
+import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Base64;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
@@ -34,8 +40,15 @@ import com.google.android.gms.tasks.Task;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Sample that demonstrates the use of the SafetyNet Google Play Services API.
@@ -50,8 +63,19 @@ public class SafetyNetSampleFragment extends Fragment {
 
     private static final String BUNDLE_RESULT = "result";
 
+    private static final String PREF_CLIENT_ID = "client_id";
+
+    private static final int NONCE_TIMEOUT_MS = 10000;
+
     private final Random mRandom = new SecureRandom();
 
+    /**
+     * Runs the request for the nonce off the main thread. Shut down when the fragment is destroyed.
+     */
+    private final ExecutorService mNetworkExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private String mResult;
 
     private String mPendingResult;
@@ -79,6 +103,13 @@ public class SafetyNetSampleFragment extends Fragment {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // A request that is still running only posts its result if the fragment is attached.
+        mNetworkExecutor.shutdown();
+    }
+
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_share:
@@ -101,6 +132,17 @@ public class SafetyNetSampleFragment extends Fragment {
     private void sendSafetyNetRequest() {
         Log.i(TAG, "Sending SafetyNet API request.");
 
+        if (!BuildConfig.NONCE_URL.isEmpty()) {
+            // Get a nonce from the server, which binds it to this client.
+            String clientId = getClientId();
+            if (clientId == null) {
+                // The fragment is no longer attached.
+                return;
+            }
+            fetchNonceAndAttest(BuildConfig.NONCE_URL, clientId);
+            return;
+        }
+
          /*
         Create a nonce for this request.
         The nonce is returned as part of the response from the
@@ -110,15 +152,21 @@ public class SafetyNetSampleFragment extends Fragment {
         response is correct and genuine.
         NOTE: A nonce must only be used once and a different nonce should be used for each request.
         As a more secure option, you can obtain a nonce from your own server using a secure
-        connection. Here in this sample, we generate a String and append random bytes, which is not
-        very secure. Follow the tips on the Security Tips page for more information:
-        https://developer.android.com/training/articles/security-tips.html#Crypto
+        connection, see fetchNonceAndAttest(). Here in this sample, we generate a String and append
+        random bytes, which is not very secure. Follow the tips on the Security Tips page for more
+        information: https://developer.android.com/training/articles/security-tips.html#Crypto
          */
-        // TODO(developer): Change the nonce generation to include your own, used once value,
-        // ideally from your remote server.
+        // TODO(developer): Set safetynet_nonce_url in gradle.properties to get the nonce from your
+        // remote server instead.
         String nonceData = "Safety Net Sample: " + System.currentTimeMillis();
         byte[] nonce = getRequestNonce(nonceData);
+        attest(nonce);
+    }
 
+    /**
+     * Calls the SafetyNet API with the given nonce.
+     */
+    private void attest(byte[] nonce) {
         /*
          Call the SafetyNet API asynchronously.
          The result is returned through the success or failure listeners.
@@ -134,6 +182,96 @@ public class SafetyNetSampleFragment extends Fragment {
 
     }
 
+    /**
+     * Fetches a nonce from the server on a background thread, then calls the SafetyNet API with it
+     * on the main thread.
+     * The server issues the nonce for the client id, so that it only accepts an attestation
+     * statement with this nonce from this client. Send the client id to the server again together
+     * with the attestation result.
+     */
+    private void fetchNonceAndAttest(final String nonceUrl, final String clientId) {
+        mNetworkExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] nonce = fetchNonce(nonceUrl, clientId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getActivity() == null) {
+                            // The fragment is no longer attached.
+                            return;
+                        }
+                        if (nonce == null) {
+                            Log.d(TAG, "ERROR! Could not get a nonce from " + nonceUrl);
+                            return;
+                        }
+                        attest(nonce);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Requests a nonce for the client from the server. The server returns the base64 encoded
+     * nonce as the body of the response.
+     * Returns null if the request failed. Must not be called on the main thread.
+     */
+    private static byte[] fetchNonce(String nonceUrl, String clientId) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(nonceUrl + (nonceUrl.contains("?") ? "&" : "?") + "client="
+                    + URLEncoder.encode(clientId, "UTF-8"));
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(NONCE_TIMEOUT_MS);
+            connection.setReadTimeout(NONCE_TIMEOUT_MS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[256];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            byte[] nonce = Base64.decode(body.toString("US-ASCII").trim(),
+                    Base64.URL_SAFE | Base64.NO_WRAP);
+            return nonce.length > 0 ? nonce : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Returns a random id for this installation of the app, which the server binds nonces to.
+     * In your app, use the id of the signed in user or of the session instead.
+     * Returns null if the fragment is not attached to an activity.
+     */
+    @Nullable
+    private String getClientId() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return null;
+        }
+        SharedPreferences preferences = activity.getPreferences(Context.MODE_PRIVATE);
+        String clientId = preferences.getString(PREF_CLIENT_ID, null);
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+            preferences.edit().putString(PREF_CLIENT_ID, clientId).apply();
+        }
+        return clientId;
+    }
+
     /**
      * Generates a 16-byte nonce with additional data.
      * The nonce should also include additional information, such as a user id or any other details
@@ -175,7 +313,7 @@ public class SafetyNetSampleFragment extends Fragment {
 
                         /*
                          TODO(developer): Forward this result to your server together with
-                         the nonce for verification.
+                         the nonce and the client id for verification.
                          You can also parse the JwsResult locally to confirm that the API
                          returned a response by checking for an 'error' field first and before
                          retrying the request with an exponential backoff.
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import benchmark.VerificationTargets;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+/**
+ * Gives the benchmarks in the {@code benchmark} package access to the sample classes in the
+ * default package.
+ */
+public class BenchmarkTargets implements VerificationTargets {
+
+    private AttestationVerifier verifier;
+    private final SanHostnameMatcher hostnameMatcher =
+            new SanHostnameMatcher(AttestationVerifier.ATTESTATION_HOSTNAME, 64);
+
+    @Override
+    public void init(KeyStore trustStore, boolean cacheChains, String payloadBinding)
+            throws GeneralSecurityException {
+        verifier = AttestationVerifier.newBuilder()
+                .setTrustStore(trustStore)
+                .setPayloadBinding(PayloadBinding.valueOf(payloadBinding))
+                // A cache size of 0 validates every chain again.
+                .setChainCacheSize(cacheChains ? 64 : 0)
+                .build();
+    }
+
+    @Override
+    public JsonWebSignature.Parser newParser() {
+        return JsonWebSignature.parser(JacksonFactory.getDefaultInstance())
+                .setPayloadClass(AttestationStatement.class);
+    }
+
+    @Override
+    public JsonWebSignature.Payload verifyOffline(String signedAttestationStatement) {
+        return verifier.verify(signedAttestationStatement).getStatement();
+    }
+
+    @Override
+    public boolean matchHostname(X509Certificate leafCert, boolean cached) {
+        return cached ? hostnameMatcher.matches(leafCert)
+                : hostnameMatcher.matchesUncached(leafCert);
+    }
+
+    @Override
+    public byte[] extractJwsData(String signedAttestationStatement) {
+        return OnlineVerify.extractJwsData(signedAttestationStatement);
+    }
+
+    @Override
+    public JsonWebSignature.Payload bindPayload(byte[] data, String payloadBinding)
+            throws IOException {
+        return OnlineVerify.parseJwsData(data, PayloadBinding.valueOf(payloadBinding));
+    }
+}
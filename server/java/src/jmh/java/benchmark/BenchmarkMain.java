@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the verification benchmarks at each of the given thread counts, once for throughput in
+ * operations per second and once for the latency distribution (including p99) in microseconds.
+ * The GC profiler reports the allocation rate of every benchmark.
+ * <p>
+ * Usage: BenchmarkMain [thread counts, e.g. "1,4,max"] [benchmark regex] [result directory]
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String[] threadCounts = (args.length > 0 ? args[0] : "1,4,max").split(",");
+        String include = args.length > 1 ? args[1] : "benchmark\\..*Benchmark.*";
+        File resultDir = new File(args.length > 2 ? args[2] : "build/reports/jmh");
+        resultDir.mkdirs();
+
+        for (String threadCount : threadCounts) {
+            int threads = threadCount.trim().equals("max")
+                    ? Threads.MAX : Integer.parseInt(threadCount.trim());
+            String suffix = threads == Threads.MAX ? "max" : String.valueOf(threads);
+
+            run(include, threads, Mode.Throughput, TimeUnit.SECONDS,
+                    new File(resultDir, "throughput-threads-" + suffix + ".json"));
+            run(include, threads, Mode.SampleTime, TimeUnit.MICROSECONDS,
+                    new File(resultDir, "latency-threads-" + suffix + ".json"));
+        }
+    }
+
+    private static void run(String include, int threads, Mode mode, TimeUnit unit, File result)
+            throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .mode(mode)
+                .timeUnit(unit)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath())
+                .build();
+        new Runner(options).run();
+    }
+}
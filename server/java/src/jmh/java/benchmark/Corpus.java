@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The checked-in benchmark corpus: signed attestation statements issued by a local test CA.
+ * It is generated by {@code TokenGenerator} with {@code gradlew generateCorpus}.
+ */
+final class Corpus {
+
+    private static final String STATEMENTS = "/corpus/attestations.ndjson";
+    private static final String TRUSTED_ROOT = "/corpus/trusted-root.pem";
+
+    private Corpus() {
+    }
+
+    /**
+     * Returns the signed attestation statements, one per line of the corpus file.
+     */
+    static String[] statements() throws IOException {
+        List<String> statements = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                open(STATEMENTS), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    statements.add(line.trim());
+                }
+            }
+        }
+        return statements.toArray(new String[0]);
+    }
+
+    /**
+     * Returns a trust store that only contains the root certificate of the corpus.
+     */
+    static KeyStore trustStore() throws IOException, GeneralSecurityException {
+        Certificate root;
+        try (InputStream in = open(TRUSTED_ROOT)) {
+            root = CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("corpus-root", root);
+        return trustStore;
+    }
+
+    private static InputStream open(String resource) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Missing benchmark resource " + resource);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Benchmarks the complete verification of a signed attestation statement.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Verifier {
+        /**
+         * Whether validated certificate chains are cached, or every chain is validated again.
+         */
+        @Param({"true", "false"})
+        boolean cacheChains;
+
+        /**
+         * How the payload is bound to an attestation statement.
+         */
+        @Param({"STREAMING", "REFLECTIVE"})
+        String payloadBinding;
+
+        String[] statements;
+        VerificationTargets targets;
+
+        @Setup
+        public void setUp() throws IOException, GeneralSecurityException {
+            statements = Corpus.statements();
+            targets = VerificationTargets.create(Corpus.trustStore(), cacheChains,
+                    payloadBinding);
+            for (String statement : statements) {
+                if (targets.verifyOffline(statement) == null) {
+                    throw new IllegalStateException("The corpus contains a statement that can't "
+                            + "be verified. Regenerate it with gradlew generateCorpus.");
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public JsonWebSignature.Payload verifyOffline(Verifier v, Cursor cursor) {
+        return v.targets.verifyOffline(v.statements[cursor.next(v.statements.length)]);
+    }
+
+    /**
+     * The local part of online verification: extracting and binding the payload once the API
+     * has confirmed the signature. The network call itself is not included.
+     */
+    @Benchmark
+    public JsonWebSignature.Payload extractOnlinePayload(Verifier v, Cursor cursor)
+            throws IOException {
+        String statement = v.statements[cursor.next(v.statements.length)];
+        return v.targets.bindPayload(v.targets.extractJwsData(statement), v.payloadBinding);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Benchmarks the individual stages of verifying a signed attestation statement offline
+ * (OfflineVerify) and of extracting the payload after online verification (OnlineVerify).
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Statements {
+        String[] statements;
+        JsonWebSignature.Parser parser;
+        JsonWebSignature[] parsed;
+        X509Certificate[][] chains;
+        PublicKey[] leafKeys;
+        byte[][] payloads;
+        X509TrustManager trustManager;
+        DefaultHostnameVerifier hostnameVerifier;
+        VerificationTargets targets;
+
+        @Setup
+        public void setUp() throws IOException, GeneralSecurityException {
+            statements = Corpus.statements();
+            KeyStore trustStore = Corpus.trustStore();
+            targets = VerificationTargets.create(trustStore, true, "STREAMING");
+            parser = targets.newParser();
+
+            TrustManagerFactory factory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(trustStore);
+            trustManager = (X509TrustManager) factory.getTrustManagers()[0];
+            hostnameVerifier = new DefaultHostnameVerifier();
+
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            parsed = new JsonWebSignature[statements.length];
+            chains = new X509Certificate[statements.length][];
+            leafKeys = new PublicKey[statements.length];
+            payloads = new byte[statements.length][];
+            for (int i = 0; i < statements.length; i++) {
+                parsed[i] = parser.parse(statements[i]);
+                List<String> x5c = parsed[i].getHeader().getX509Certificates();
+                chains[i] = new X509Certificate[x5c.size()];
+                for (int j = 0; j < chains[i].length; j++) {
+                    chains[i][j] = (X509Certificate) certificateFactory.generateCertificate(
+                            new ByteArrayInputStream(Base64.decodeBase64(x5c.get(j))));
+                }
+                leafKeys[i] = chains[i][0].getPublicKey();
+                payloads[i] = targets.extractJwsData(statements[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public JsonWebSignature parseJws(Statements s, Cursor cursor) throws IOException {
+        return s.parser.parse(s.statements[cursor.next(s.statements.length)]);
+    }
+
+    @Benchmark
+    public X509Certificate[] validateChain(Statements s, Cursor cursor)
+            throws GeneralSecurityException {
+        X509Certificate[] chain = s.chains[cursor.next(s.statements.length)];
+        s.trustManager.checkServerTrusted(chain, "RSA");
+        return chain;
+    }
+
+    @Benchmark
+    public boolean verifySignature(Statements s, Cursor cursor) throws GeneralSecurityException {
+        int i = cursor.next(s.statements.length);
+        return s.parsed[i].verifySignature(s.leafKeys[i]);
+    }
+
+    /**
+     * Checks the hostname with the DefaultHostnameVerifier of Apache HttpClient, which the sample
+     * used before the SanHostnameMatcher, as a baseline.
+     */
+    @Benchmark
+    public X509Certificate verifyHostname(Statements s, Cursor cursor) throws SSLException {
+        X509Certificate leaf = s.chains[cursor.next(s.statements.length)][0];
+        s.hostnameVerifier.verify("attest.android.com", leaf);
+        return leaf;
+    }
+
+    @Benchmark
+    public boolean matchHostname(Statements s, Cursor cursor) {
+        return s.targets.matchHostname(s.chains[cursor.next(s.statements.length)][0], false);
+    }
+
+    @Benchmark
+    public boolean matchHostnameCached(Statements s, Cursor cursor) {
+        return s.targets.matchHostname(s.chains[cursor.next(s.statements.length)][0], true);
+    }
+
+    @Benchmark
+    public byte[] extractJwsData(Statements s, Cursor cursor) {
+        return s.targets.extractJwsData(s.statements[cursor.next(s.statements.length)]);
+    }
+
+    /**
+     * Binds the payload with the reflection-driven {@code @Key} mapping of the Google HTTP Client
+     * Library.
+     */
+    @Benchmark
+    public JsonWebSignature.Payload bindPayloadReflective(Statements s, Cursor cursor)
+            throws IOException {
+        return s.targets.bindPayload(s.payloads[cursor.next(s.statements.length)], "REFLECTIVE");
+    }
+
+    /**
+     * Binds the payload with the hand-written streaming binder.
+     */
+    @Benchmark
+    public JsonWebSignature.Payload bindPayloadStreaming(Statements s, Cursor cursor)
+            throws IOException {
+        return s.targets.bindPayload(s.payloads[cursor.next(s.statements.length)], "STREAMING");
+    }
+}
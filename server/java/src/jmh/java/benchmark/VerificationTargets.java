@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.google.api.client.json.webtoken.JsonWebSignature;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+/**
+ * The verification code under benchmark.
+ * JMH does not support benchmarks in the default package, and classes in a named package cannot
+ * refer to the sample classes in the default package. The benchmarks therefore call the sample
+ * code through this interface, which is implemented by {@code BenchmarkTargets} in the default
+ * package.
+ */
+public interface VerificationTargets {
+
+    /**
+     * Returns the implementation, created with a verifier that trusts the given trust store.
+     */
+    static VerificationTargets create(KeyStore trustStore, boolean cacheChains,
+                                      String payloadBinding) throws GeneralSecurityException {
+        try {
+            VerificationTargets targets = (VerificationTargets) Class.forName("BenchmarkTargets")
+                    .getDeclaredConstructor().newInstance();
+            targets.init(trustStore, cacheChains, payloadBinding);
+            return targets;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param payloadBinding name of the PayloadBinding used by the verifier
+     */
+    void init(KeyStore trustStore, boolean cacheChains, String payloadBinding)
+            throws GeneralSecurityException;
+
+    /**
+     * Returns a JWS parser that binds the payload to an attestation statement.
+     */
+    JsonWebSignature.Parser newParser();
+
+    /**
+     * Verifies the statement end-to-end with an AttestationVerifier.
+     */
+    JsonWebSignature.Payload verifyOffline(String signedAttestationStatement);
+
+    /**
+     * Checks the hostname of the leaf certificate with the SanHostnameMatcher.
+     *
+     * @param cached whether to use the result that is cached per certificate
+     */
+    boolean matchHostname(X509Certificate leafCert, boolean cached);
+
+    /**
+     * Extracts the data part of the statement as done by OnlineVerify.
+     */
+    byte[] extractJwsData(String signedAttestationStatement);
+
+    /**
+     * Binds the data part of a statement to an attestation statement as done by OnlineVerify.
+     *
+     * @param payloadBinding name of the PayloadBinding to use
+     */
+    JsonWebSignature.Payload bindPayload(byte[] data, String payloadBinding) throws IOException;
+}
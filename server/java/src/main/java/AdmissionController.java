@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a statement is verified at all, so that a flood of statements, e.g. garbage from
+ * an abusive client, is shed cheaply instead of costing a full parse and signature verification
+ * each. A statement is rejected with a {@link FailureReason} of its own if
+ * <ul>
+ * <li>it is larger than the maximum token size ({@link FailureReason#TOO_LARGE}),</li>
+ * <li>the maximum number of statements or bytes is already being verified
+ * ({@link FailureReason#OVERLOADED}), or</li>
+ * <li>its caller is over its rate limit ({@link FailureReason#RATE_LIMITED}).</li>
+ * </ul>
+ * Each admitted statement must be released with {@link #release} once it is verified. The caps are
+ * single atomic counters that are incremented and rolled back if over the limit, and the rate
+ * limits are striped {@link RateLimiter}s, so admission never blocks.
+ * <p>
+ * The rate limit per package is charged with {@link #checkPackageRate} once a statement is
+ * verified, by the package name of the verified statement. An unverified package name could be
+ * chosen by the client to spend the rate of another package, so statements that fail the
+ * verification are only limited by the rate of their caller.
+ */
+public final class AdmissionController {
+
+    private final int maxTokenSize;
+    private final int maxInFlight;
+    private final long maxInFlightBytes;
+    private final RateLimiter callerLimiter;
+    private final RateLimiter packageLimiter;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder tooLarge = new LongAdder();
+    private final LongAdder overloaded = new LongAdder();
+    private final LongAdder callerRateLimited = new LongAdder();
+    private final LongAdder packageRateLimited = new LongAdder();
+
+    private AdmissionController(Builder builder) {
+        this.maxTokenSize = builder.maxTokenSize;
+        this.maxInFlight = builder.maxInFlight;
+        this.maxInFlightBytes = builder.maxInFlightBytes;
+        this.callerLimiter = builder.callerRate > 0
+                ? new RateLimiter(builder.callerRate, builder.callerBurst, builder.maxKeys) : null;
+        this.packageLimiter = builder.packageRate > 0
+                ? new RateLimiter(builder.packageRate, builder.packageBurst, builder.maxKeys)
+                : null;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Decides whether a statement of the given length is verified, by its size and caller, e.g.
+     * from the Content-Length of a request before its body is read.
+     *
+     * @param caller the client that sent the statement, e.g. its address, or null to not limit
+     *               the rate per caller
+     * @return null if the statement is admitted and must be released with {@link #release} after
+     *         its verification, or the reason why it is rejected
+     */
+    public FailureReason tryAdmit(String caller, int length) {
+        FailureReason reason = acquire(caller, length);
+        if (reason == null) {
+            admitted.increment();
+        }
+        return reason;
+    }
+
+    /**
+     * Takes a permit from the rate limit of the package of a verified statement. Statements
+     * without a package name share one rate limit.
+     *
+     * @return null if the package is within its rate limit, or {@link FailureReason#RATE_LIMITED}
+     */
+    public FailureReason checkPackageRate(AttestationStatement verifiedStatement) {
+        String packageName = verifiedStatement.getApkPackageName();
+        if (packageLimiter == null
+                || packageLimiter.tryAcquire(packageName != null ? packageName : "")) {
+            return null;
+        }
+        packageRateLimited.increment();
+        return FailureReason.RATE_LIMITED;
+    }
+
+    /**
+     * Checks the size and the caller's rate and takes the statement's share of the caps, in order
+     * of their cost.
+     */
+    private FailureReason acquire(String caller, int length) {
+        if (length > maxTokenSize) {
+            tooLarge.increment();
+            return FailureReason.TOO_LARGE;
+        }
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            overloaded.increment();
+            return FailureReason.OVERLOADED;
+        }
+        if (inFlightBytes.addAndGet(length) > maxInFlightBytes) {
+            release(length);
+            overloaded.increment();
+            return FailureReason.OVERLOADED;
+        }
+        if (caller != null && callerLimiter != null && !callerLimiter.tryAcquire(caller)) {
+            release(length);
+            callerRateLimited.increment();
+            return FailureReason.RATE_LIMITED;
+        }
+        return null;
+    }
+
+    /**
+     * Releases the share of the caps of an admitted statement of the given length.
+     */
+    public void release(int length) {
+        inFlightBytes.addAndGet(-length);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of admitted statements that were not released yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of statements that passed the size, the caps and the caller's rate
+     * limit, including those that were then rejected by the package's rate limit after their
+     * verification.
+     */
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * Returns the number of rejected statements, for any reason.
+     */
+    public long getRejectedCount() {
+        return tooLarge.sum() + overloaded.sum() + callerRateLimited.sum()
+                + packageRateLimited.sum();
+    }
+
+    /**
+     * Writes the number of admitted and rejected statements and the current load in the
+     * Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP attestation_admission_admitted_total Statements admitted to "
+                + "verification.\n");
+        out.write("# TYPE attestation_admission_admitted_total counter\n");
+        out.write("attestation_admission_admitted_total " + admitted.sum() + "\n");
+
+        out.write("# HELP attestation_admission_rejected_total Statements rejected by the "
+                + "admission control.\n");
+        out.write("# TYPE attestation_admission_rejected_total counter\n");
+        out.write("attestation_admission_rejected_total{reason=\"too_large\"} " + tooLarge.sum()
+                + "\n");
+        out.write("attestation_admission_rejected_total{reason=\"overloaded\"} "
+                + overloaded.sum() + "\n");
+        out.write("attestation_admission_rejected_total{reason=\"caller_rate_limited\"} "
+                + callerRateLimited.sum() + "\n");
+        out.write("attestation_admission_rejected_total{reason=\"package_rate_limited\"} "
+                + packageRateLimited.sum() + "\n");
+
+        out.write("# HELP attestation_admission_in_flight Statements being verified.\n");
+        out.write("# TYPE attestation_admission_in_flight gauge\n");
+        out.write("attestation_admission_in_flight " + inFlight.get() + "\n");
+        out.write("# HELP attestation_admission_in_flight_bytes Size of the statements being "
+                + "verified.\n");
+        out.write("# TYPE attestation_admission_in_flight_bytes gauge\n");
+        out.write("attestation_admission_in_flight_bytes " + inFlightBytes.get() + "\n");
+    }
+
+    /**
+     * Builder for {@link AdmissionController}. All limits are off by default.
+     */
+    public static final class Builder {
+        private int maxTokenSize = Integer.MAX_VALUE;
+        private int maxInFlight = Integer.MAX_VALUE;
+        private long maxInFlightBytes = Long.MAX_VALUE;
+        private double callerRate;
+        private int callerBurst;
+        private double packageRate;
+        private int packageBurst;
+        private int maxKeys = 10000;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the size in bytes of the largest statement that is verified.
+         */
+        public Builder setMaxTokenSize(int maxTokenSize) {
+            this.maxTokenSize = maxTokenSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of statements that are verified at the same time.
+         */
+        public Builder setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total size in bytes of the statements that are verified at the same
+         * time.
+         */
+        public Builder setMaxInFlightBytes(long maxInFlightBytes) {
+            this.maxInFlightBytes = maxInFlightBytes;
+            return this;
+        }
+
+        /**
+         * Limits the statements per caller to the rate, allowing bursts of up to {@code burst}
+         * statements.
+         */
+        public Builder setCallerRate(double statementsPerSecond, int burst) {
+            this.callerRate = statementsPerSecond;
+            this.callerBurst = burst;
+            return this;
+        }
+
+        /**
+         * Limits the verified statements per package name to the rate, allowing bursts of up to
+         * {@code burst} statements.
+         */
+        public Builder setPackageRate(double statementsPerSecond, int burst) {
+            this.packageRate = statementsPerSecond;
+            this.packageBurst = burst;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of callers and of packages to keep a rate limit for. Beyond
+         * that, the callers or packages share one limit. Defaults to 10000.
+         */
+        public Builder setMaxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public AdmissionController build() {
+            return new AdmissionController(this);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the number of concurrent requests to a remote service with additive increase and
+ * multiplicative decrease (AIMD), like TCP congestion control.
+ * Each request that succeeds while the limit is in use raises the limit by {@code 1 / limit}, so
+ * about one per round of requests. Each request that is dropped by the service, i.e. times out or
+ * is rejected as overloaded, multiplies the limit by the backoff ratio, once for all requests that
+ * were started before the previous backoff. Requests over the limit wait in a bounded queue and are
+ * started on an executor when earlier requests complete, so that a completing request doesn't run
+ * the requests that waited for it on its own thread.
+ */
+final class AimdLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final int maxQueued;
+    private final Executor executor;
+    private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight;
+    private long lastBackoffNs = System.nanoTime();
+
+    /**
+     * @param initialLimit initial number of concurrent requests
+     * @param minLimit     lowest limit that a backoff can reach
+     * @param maxLimit     highest limit that successful requests can reach
+     * @param backoffRatio factor that the limit is multiplied with when a request is dropped
+     * @param maxQueued    maximum number of requests that wait for the limit
+     * @param executor     executor that waiting requests are started on
+     */
+    AimdLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                int maxQueued, Executor executor) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit
+                || backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Invalid limits.");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the request now if the limit allows it, or once earlier requests have completed.
+     * The request must call {@link #release(boolean, long)} exactly once when it has completed.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void submit(Runnable request) {
+        synchronized (this) {
+            if (inFlight >= (int) limit || !queue.isEmpty()) {
+                if (queue.size() >= maxQueued) {
+                    throw new RejectedExecutionException("Too many requests are waiting.");
+                }
+                queue.add(request);
+                return;
+            }
+            inFlight++;
+        }
+        request.run();
+    }
+
+    /**
+     * Acquires a slot for a request without waiting, e.g. for an optional hedged request.
+     * Returns false if the limit is reached or other requests are waiting.
+     */
+    synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit || !queue.isEmpty()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases the slot of a completed request and adjusts the limit.
+     *
+     * @param dropped   true if the service dropped the request, e.g. it timed out or the service
+     *                  responded that it is overloaded
+     * @param startedNs the {@link System#nanoTime()} at which the request was started
+     */
+    void release(boolean dropped, long startedNs) {
+        synchronized (this) {
+            if (dropped) {
+                // Requests that were sent before the last backoff were sent at the higher limit, so
+                // back off only once for all of them.
+                if (startedNs - lastBackoffNs > 0) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastBackoffNs = System.nanoTime();
+                }
+            } else if (inFlight * 2 >= limit) {
+                // Only raise the limit while it is actually used, so that it doesn't grow without
+                // bounds while there are few requests.
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            inFlight--;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Releases the slot of a request without adjusting the limit, e.g. of a request that was
+     * cancelled, whose outcome says nothing about the load of the service.
+     */
+    void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Starts as many waiting requests as the limit allows, which may have grown.
+     */
+    private void startWaiting() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (inFlight >= (int) limit || queue.isEmpty()) {
+                    return;
+                }
+                next = queue.poll();
+                inFlight++;
+            }
+            executor.execute(next);
+        }
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Verifies signed attestation statements with the Android Device Verification API
+ * asynchronously, for verifying many statements concurrently.
+ * All requests share one {@link HttpClient}, which pools its connections and uses HTTP/2 where the
+ * server supports it. The number of concurrent requests is limited by an {@link AimdLimiter}, which
+ * adapts to the latency and overload responses of the service. A request that has not completed
+ * after the hedge delay is sent a second time if the limit allows it, and the first response is
+ * used and the other one is cancelled, which cuts the tail latency. Requests that fail with a
+ * timeout, a network error or an overload response are retried with exponential backoff.
+ * Optionally, responses are cached by the digest of the statement, so that a resubmitted statement
+ * is only sent once.
+ */
+public final class AsyncOnlineVerifier {
+
+    /**
+     * Endpoint of the Android Device Verification API.
+     */
+    public static final URI DEFAULT_ENDPOINT =
+            URI.create("https://www.googleapis.com/androidcheck/v1/attestations/verify");
+
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final long RETRY_BACKOFF_MS = 50;
+
+    private final HttpClient client;
+    private final URI uri;
+    private final Duration requestTimeout;
+    private final long hedgeDelayMs;
+    private final int maxAttempts;
+    private final AimdLimiter limiter;
+    private final ScheduledExecutorService scheduler;
+    private final VerificationCache<OnlineVerify.VerificationResponse> cache;
+    private final VerificationMetrics metrics;
+
+    private AsyncOnlineVerifier(Builder builder) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(builder.connectTimeoutMs))
+                .build();
+        this.uri = withApiKey(builder.endpoint, builder.apiKey);
+        this.requestTimeout = Duration.ofMillis(builder.requestTimeoutMs);
+        this.hedgeDelayMs = builder.hedgeDelayMs;
+        this.maxAttempts = builder.maxAttempts;
+        this.metrics = builder.metrics != null ? builder.metrics : new VerificationMetrics();
+        this.cache = builder.cacheSize > 0
+                ? new VerificationCache<OnlineVerify.VerificationResponse>(builder.cacheSize,
+                builder.cacheTtlMs, TimeUnit.MILLISECONDS)
+                : null;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "online-verify-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Waiting requests only start an asynchronous send, so the scheduler thread can run them.
+        this.limiter = new AimdLimiter(builder.initialConcurrency, 1, builder.maxConcurrency, 0.7,
+                builder.maxQueued, scheduler);
+    }
+
+    /**
+     * Appends the URL encoded API key to the query of the endpoint, if there is a key.
+     */
+    static URI withApiKey(URI endpoint, String apiKey) {
+        if (apiKey == null) {
+            return endpoint;
+        }
+        return URI.create(endpoint + (endpoint.getRawQuery() == null ? "?" : "&") + "key="
+                + URLEncoder.encode(apiKey, StandardCharsets.UTF_8));
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Sends the signed attestation statement to the API for verification. The returned future
+     * completes with the response of the API, or exceptionally with an {@link IOException} if all
+     * attempts failed, or with a {@link RejectedExecutionException} if too many requests are
+     * waiting.
+     */
+    public CompletableFuture<OnlineVerify.VerificationResponse> verify(
+            final String signedAttestation) {
+        if (cache == null) {
+            return send(signedAttestation);
+        }
+        return cache.get(VerificationCache.keyOf(signedAttestation),
+                new Supplier<CompletableFuture<OnlineVerify.VerificationResponse>>() {
+                    @Override
+                    public CompletableFuture<OnlineVerify.VerificationResponse> get() {
+                        return send(signedAttestation);
+                    }
+                });
+    }
+
+    private CompletableFuture<OnlineVerify.VerificationResponse> send(String signedAttestation) {
+        CompletableFuture<OnlineVerify.VerificationResponse> result = new CompletableFuture<>();
+        byte[] body;
+        try {
+            body = JSON_FACTORY.toByteArray(
+                    new OnlineVerify.VerificationRequest(signedAttestation));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        new Call(request, result).attempt();
+        return result;
+    }
+
+    /**
+     * Returns the metrics with the latency of each HTTP call and the verifications that failed
+     * with {@link FailureReason#API_ERROR} or {@link FailureReason#NETWORK_ERROR}.
+     */
+    public VerificationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the current limit of concurrent requests.
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * One verification, consisting of one or more attempts, of which up to two may be in flight at
+     * the same time.
+     */
+    private final class Call {
+        private final HttpRequest request;
+        private final CompletableFuture<OnlineVerify.VerificationResponse> result;
+        /** The attempts that are in flight, to cancel them once one of them has won. */
+        private final List<CompletableFuture<HttpResponse<byte[]>>> pending = new ArrayList<>(2);
+        private int attempts;
+        private int inFlight;
+        private boolean decided;
+        private IOException lastFailure;
+
+        Call(HttpRequest request, CompletableFuture<OnlineVerify.VerificationResponse> result) {
+            this.request = request;
+            this.result = result;
+        }
+
+        /**
+         * Starts the next attempt once the limiter allows it.
+         */
+        void attempt() {
+            synchronized (this) {
+                attempts++;
+                inFlight++;
+            }
+            try {
+                limiter.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Sends one attempt, for which a slot of the limiter has been acquired.
+         */
+        void send(boolean hedge) {
+            final long startedNs = System.nanoTime();
+            final CompletableFuture<HttpResponse<byte[]>> attempt =
+                    client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+            boolean lost;
+            synchronized (this) {
+                lost = decided;
+                if (!lost) {
+                    pending.add(attempt);
+                }
+            }
+            if (lost) {
+                attempt.cancel(true);
+            }
+            attempt.whenComplete(new BiConsumer<HttpResponse<byte[]>, Throwable>() {
+                @Override
+                public void accept(HttpResponse<byte[]> response, Throwable failure) {
+                    complete(attempt, response, failure, startedNs);
+                }
+            });
+
+            if (!hedge && hedgeDelayMs > 0) {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hedge();
+                    }
+                }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Sends a second attempt if the first one is still in flight, but only if the limiter has
+         * a free slot, so that hedging does not add load to an overloaded service.
+         */
+        void hedge() {
+            synchronized (this) {
+                if (decided || inFlight != 1 || attempts >= maxAttempts) {
+                    return;
+                }
+                if (!limiter.tryAcquire()) {
+                    return;
+                }
+                attempts++;
+                inFlight++;
+            }
+            send(true);
+        }
+
+        void complete(CompletableFuture<HttpResponse<byte[]>> attempt,
+                      HttpResponse<byte[]> response, Throwable failure, long startedNs) {
+            failure = unwrap(failure);
+            int status = response != null ? response.statusCode() : 0;
+            if (failure instanceof CancellationException) {
+                // An attempt that lost to another one, which says nothing about the load.
+                limiter.release();
+            } else {
+                // A timeout or an explicit overload response means that the service dropped the
+                // request, other failures say nothing about its load.
+                boolean dropped = failure instanceof HttpTimeoutException
+                        || status == 429 || status == 503;
+                limiter.release(dropped, startedNs);
+                metrics.recordStage(VerificationMetrics.Stage.ONLINE_CALL,
+                        System.nanoTime() - startedNs);
+            }
+
+            boolean retry = false;
+            FailureReason failed = null;
+            List<CompletableFuture<HttpResponse<byte[]>>> losers;
+            synchronized (this) {
+                inFlight--;
+                pending.remove(attempt);
+                if (decided) {
+                    return;
+                }
+                if (status != 200) {
+                    lastFailure = failure instanceof IOException ? (IOException) failure
+                            : new IOException(failure != null ? failure.toString()
+                            : "The API responded with status " + status + ".");
+                    boolean retryable = failure != null || status == 429 || status >= 500;
+                    if (retryable && inFlight > 0) {
+                        // Wait for the other attempt.
+                        return;
+                    }
+                    if (!retryable) {
+                        failed = FailureReason.API_ERROR;
+                    } else if (attempts >= maxAttempts) {
+                        failed = failure != null ? FailureReason.NETWORK_ERROR
+                                : FailureReason.API_ERROR;
+                    } else {
+                        retry = true;
+                    }
+                }
+                if (!retry) {
+                    decided = true;
+                }
+                losers = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            if (retry) {
+                // Exponential backoff with jitter.
+                long delayMs = RETRY_BACKOFF_MS << Math.min(attempts - 1, 10);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt();
+                    }
+                }, ThreadLocalRandom.current().nextLong(delayMs / 2, delayMs + 1),
+                        TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            // The other attempt lost, so it no longer needs its connection or its slot of the
+            // limiter. Its completion releases the slot and is otherwise ignored.
+            for (CompletableFuture<HttpResponse<byte[]>> loser : losers) {
+                loser.cancel(true);
+            }
+            if (failed != null) {
+                fail(failed);
+                return;
+            }
+            try {
+                result.complete(JSON_FACTORY.createJsonParser(
+                        new ByteArrayInputStream(response.body()), StandardCharsets.UTF_8)
+                        .parseAndClose(OnlineVerify.VerificationResponse.class));
+            } catch (IOException | IllegalArgumentException e) {
+                metrics.recordFailure(FailureReason.API_ERROR);
+                result.completeExceptionally(new IOException(
+                        "The response of the API is not valid JSON.", e));
+            }
+        }
+
+        private void fail(FailureReason reason) {
+            metrics.recordFailure(reason);
+            result.completeExceptionally(lastFailure);
+        }
+    }
+
+    /**
+     * Returns the cause of a failure that the HTTP client wrapped on its way through a future.
+     */
+    private static Throwable unwrap(Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException)
+                && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+
+    /**
+     * Configuration of an {@link AsyncOnlineVerifier}.
+     */
+    public static final class Builder {
+        private URI endpoint = DEFAULT_ENDPOINT;
+        private String apiKey;
+        private long connectTimeoutMs = 5000;
+        private long requestTimeoutMs = 5000;
+        private long hedgeDelayMs = 250;
+        private int maxAttempts = 3;
+        private int initialConcurrency = 16;
+        private int maxConcurrency = 512;
+        private int maxQueued = 100000;
+        private int cacheSize;
+        private long cacheTtlMs;
+        private VerificationMetrics metrics;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the endpoint of the API. Defaults to {@link #DEFAULT_ENDPOINT}, change it to test
+         * against a local stand-in.
+         */
+        public Builder setEndpoint(URI endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * Sets the API key, which is appended to the endpoint.
+         */
+        public Builder setApiKey(String apiKey) {
+            this.apiKey = apiKey;
+            return this;
+        }
+
+        public Builder setConnectTimeout(long duration, TimeUnit unit) {
+            this.connectTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets the time after which an attempt fails and counts as dropped.
+         */
+        public Builder setRequestTimeout(long duration, TimeUnit unit) {
+            this.requestTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets the time after which a second attempt is sent for a request that has not
+         * completed, or 0 to disable hedging. Set it to about the 95th percentile of the latency.
+         */
+        public Builder setHedgeDelay(long duration, TimeUnit unit) {
+            this.hedgeDelayMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of attempts per statement, including hedged attempts.
+         */
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Sets the initial and the maximum number of concurrent requests.
+         */
+        public Builder setConcurrency(int initialConcurrency, int maxConcurrency) {
+            this.initialConcurrency = initialConcurrency;
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of requests that wait for the concurrency limit before new
+         * requests are rejected.
+         */
+        public Builder setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * Caches up to {@code maxEntries} responses for the given time, or disables the cache if
+         * {@code maxEntries} is 0. Disabled by default. Failed requests are not cached.
+         */
+        public Builder setResultCache(int maxEntries, long ttl, TimeUnit unit) {
+            this.cacheSize = maxEntries;
+            this.cacheTtlMs = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Sets the metrics to record the latencies and failures in, e.g. to share them with an
+         * {@link AttestationVerifier}. Defaults to new metrics for this verifier.
+         */
+        public Builder setMetrics(VerificationMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public AsyncOnlineVerifier build() {
+            return new AsyncOnlineVerifier(this);
+        }
+    }
+}
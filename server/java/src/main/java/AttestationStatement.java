@@ -16,9 +16,10 @@
  */
 
 import com.google.api.client.json.webtoken.JsonWebSignature;
-import com.google.api.client.util.Base64;
 import com.google.api.client.util.Key;
 
+import java.security.MessageDigest;
+
 /**
  * A statement returned by the Attestation API.
  */
@@ -71,8 +72,30 @@ public class AttestationStatement extends JsonWebSignature.Payload {
     @Key
     private String evaluationType;
 
+    /**
+     * Flag for the BASIC evaluation type in {@link #getEvaluationTypes()}.
+     */
+    public static final int EVALUATION_TYPE_BASIC = 1;
+
+    /**
+     * Flag for the HARDWARE_BACKED evaluation type in {@link #getEvaluationTypes()}.
+     */
+    public static final int EVALUATION_TYPE_HARDWARE_BACKED = 1 << 1;
+
+    private static final int EVALUATION_TYPES_UNKNOWN = -1;
+
+    private static final byte[][] NO_DIGESTS = new byte[0][];
+
+    // The decoded fields, decoded once on first use. They are volatile so that a decoded array is
+    // fully visible to other threads. Concurrent first calls may decode the same field twice.
+    private volatile byte[] decodedNonce;
+    private volatile byte[] decodedApkDigestSha256;
+    private volatile byte[][] decodedApkCertificateDigestSha256;
+    private volatile int evaluationTypes = EVALUATION_TYPES_UNKNOWN;
+
     public byte[] getNonce() {
-        return Base64.decodeBase64(nonce);
+        byte[] decoded = nonce();
+        return decoded == null ? null : decoded.clone();
     }
 
     public long getTimestampMs() {
@@ -84,13 +107,18 @@ public class AttestationStatement extends JsonWebSignature.Payload {
     }
 
     public byte[] getApkDigestSha256() {
-        return Base64.decodeBase64(apkDigestSha256);
+        byte[] decoded = apkDigestSha256();
+        return decoded == null ? null : decoded.clone();
     }
 
     public byte[][] getApkCertificateDigestSha256() {
-        byte[][] certs = new byte[apkCertificateDigestSha256.length][];
-        for (int i = 0; i < apkCertificateDigestSha256.length; i++) {
-            certs[i] = Base64.decodeBase64(apkCertificateDigestSha256[i]);
+        byte[][] decoded = apkCertificateDigestSha256();
+        if (decoded == null) {
+            return null;
+        }
+        byte[][] certs = new byte[decoded.length][];
+        for (int i = 0; i < decoded.length; i++) {
+            certs[i] = decoded[i] == null ? null : decoded[i].clone();
         }
         return certs;
     }
@@ -104,10 +132,184 @@ public class AttestationStatement extends JsonWebSignature.Payload {
     }
 
     public boolean hasBasicEvaluationType() {
-        return evaluationType.contains("BASIC");
+        return (getEvaluationTypes() & EVALUATION_TYPE_BASIC) != 0;
     }
 
     public boolean hasHardwareBackedEvaluationType() {
-        return evaluationType.contains("HARDWARE_BACKED");
+        return (getEvaluationTypes() & EVALUATION_TYPE_HARDWARE_BACKED) != 0;
+    }
+
+    /**
+     * Returns the evaluation types as a combination of the {@code EVALUATION_TYPE_*} flags, or 0
+     * if the statement has no evaluation type.
+     */
+    public int getEvaluationTypes() {
+        int types = evaluationTypes;
+        if (types == EVALUATION_TYPES_UNKNOWN) {
+            types = parseEvaluationTypes(evaluationType);
+            evaluationTypes = types;
+        }
+        return types;
+    }
+
+    // The comparisons below use the decoded fields directly and do not allocate. They compare in
+    // constant time, so that they don't leak how much of an expected value matched.
+
+    /**
+     * Returns true if the nonce of the statement equals the expected nonce.
+     */
+    public boolean nonceEquals(byte[] expectedNonce) {
+        byte[] decoded = nonce();
+        return decoded != null && expectedNonce != null
+                && MessageDigest.isEqual(decoded, expectedNonce);
+    }
+
+    /**
+     * Returns true if the digest of the APK equals the expected SHA-256 digest.
+     */
+    public boolean apkDigestEquals(byte[] expectedDigest) {
+        byte[] decoded = apkDigestSha256();
+        return decoded != null && expectedDigest != null
+                && MessageDigest.isEqual(decoded, expectedDigest);
+    }
+
+    /**
+     * Returns true if the digest of any of the APK signing certificates equals the expected
+     * SHA-256 digest.
+     */
+    public boolean certDigestMatches(byte[] expectedDigest) {
+        byte[][] decoded = apkCertificateDigestSha256();
+        if (decoded == null || expectedDigest == null) {
+            return false;
+        }
+        boolean matches = false;
+        for (byte[] digest : decoded) {
+            matches |= digest != null && MessageDigest.isEqual(digest, expectedDigest);
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the decoded nonce without copying it, or null if the statement has no valid nonce.
+     * The returned array must not be modified.
+     */
+    byte[] nonce() {
+        byte[] decoded = decodedNonce;
+        if (decoded == null && nonce != null) {
+            decoded = decode(nonce);
+            decodedNonce = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the decoded APK digest without copying it. The returned array must not be modified.
+     */
+    byte[] apkDigestSha256() {
+        byte[] decoded = decodedApkDigestSha256;
+        if (decoded == null && apkDigestSha256 != null) {
+            decoded = decode(apkDigestSha256);
+            decodedApkDigestSha256 = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the decoded APK certificate digests without copying them, or null if the statement
+     * has none. The returned arrays must not be modified.
+     */
+    byte[][] apkCertificateDigestSha256() {
+        byte[][] decoded = decodedApkCertificateDigestSha256;
+        if (decoded == null && apkCertificateDigestSha256 != null) {
+            decoded = apkCertificateDigestSha256.length == 0
+                    ? NO_DIGESTS : new byte[apkCertificateDigestSha256.length][];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = decode(apkCertificateDigestSha256[i]);
+            }
+            decodedApkCertificateDigestSha256 = decoded;
+        }
+        return decoded;
+    }
+
+    private static byte[] decode(String base64) {
+        return base64 == null ? null : Base64Url.decode(base64, 0, base64.length());
+    }
+
+    private static int parseEvaluationTypes(String evaluationType) {
+        if (evaluationType == null) {
+            return 0;
+        }
+        int types = 0;
+        for (String type : evaluationType.split(",")) {
+            switch (type.trim()) {
+                case "BASIC":
+                    types |= EVALUATION_TYPE_BASIC;
+                    break;
+                case "HARDWARE_BACKED":
+                    types |= EVALUATION_TYPE_HARDWARE_BACKED;
+                    break;
+                default:
+                    // Ignore evaluation types that this version doesn't know about.
+                    break;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Sets a field by name and discards the decoded values, which may be based on it.
+     */
+    @Override
+    public AttestationStatement set(String fieldName, Object value) {
+        super.set(fieldName, value);
+        clearDecodedFields();
+        return this;
+    }
+
+    private void clearDecodedFields() {
+        decodedNonce = null;
+        decodedApkDigestSha256 = null;
+        decodedApkCertificateDigestSha256 = null;
+        evaluationTypes = EVALUATION_TYPES_UNKNOWN;
+    }
+
+    // Setters for the streaming AttestationStatementBinder, which does not use the reflection
+    // based @Key binding.
+
+    void setNonce(String nonce) {
+        this.nonce = nonce;
+        this.decodedNonce = null;
+    }
+
+    void setTimestampMs(long timestampMs) {
+        this.timestampMs = timestampMs;
+    }
+
+    void setApkPackageName(String apkPackageName) {
+        this.apkPackageName = apkPackageName;
+    }
+
+    void setApkCertificateDigestSha256(String[] apkCertificateDigestSha256) {
+        this.apkCertificateDigestSha256 = apkCertificateDigestSha256;
+        this.decodedApkCertificateDigestSha256 = null;
+    }
+
+    void setApkDigestSha256(String apkDigestSha256) {
+        this.apkDigestSha256 = apkDigestSha256;
+        this.decodedApkDigestSha256 = null;
+    }
+
+    void setCtsProfileMatch(boolean ctsProfileMatch) {
+        this.ctsProfileMatch = ctsProfileMatch;
+    }
+
+    void setBasicIntegrity(boolean basicIntegrity) {
+        this.basicIntegrity = basicIntegrity;
+    }
+
+    void setEvaluationType(String evaluationType) {
+        this.evaluationType = evaluationType;
+        // Parse the evaluation types when the statement is bound, not on every check.
+        this.evaluationTypes = parseEvaluationTypes(evaluationType);
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binds the JSON payload of a statement to an {@link AttestationStatement} with a streaming
+ * Jackson parser. Only the known fields are read, all other values are skipped.
+ */
+final class AttestationStatementBinder {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private AttestationStatementBinder() {
+    }
+
+    /**
+     * Binds {@code length} bytes of JSON starting at {@code offset}.
+     *
+     * @throws IOException if the data is not a JSON object or a known field has the wrong type
+     */
+    static AttestationStatement bind(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(data, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("The payload is not a JSON object.",
+                        parser.getCurrentLocation());
+            }
+
+            AttestationStatement stmt = new AttestationStatement();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "nonce":
+                        stmt.setNonce(readString(parser, field));
+                        break;
+                    case "timestampMs":
+                        if (value != JsonToken.VALUE_NUMBER_INT) {
+                            throw unexpected(parser, field);
+                        }
+                        stmt.setTimestampMs(parser.getLongValue());
+                        break;
+                    case "apkPackageName":
+                        stmt.setApkPackageName(readString(parser, field));
+                        break;
+                    case "apkDigestSha256":
+                        stmt.setApkDigestSha256(readString(parser, field));
+                        break;
+                    case "apkCertificateDigestSha256":
+                        stmt.setApkCertificateDigestSha256(readStringArray(parser, field));
+                        break;
+                    case "ctsProfileMatch":
+                        stmt.setCtsProfileMatch(readBoolean(parser, field));
+                        break;
+                    case "basicIntegrity":
+                        stmt.setBasicIntegrity(readBoolean(parser, field));
+                        break;
+                    case "evaluationType":
+                        stmt.setEvaluationType(readString(parser, field));
+                        break;
+                    default:
+                        // Skips nested objects and arrays, scalars are already consumed.
+                        parser.skipChildren();
+                        break;
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException("Unexpected end of the payload.",
+                        parser.getCurrentLocation());
+            }
+            return stmt;
+        }
+    }
+
+    private static String readString(JsonParser parser, String field) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+            throw unexpected(parser, field);
+        }
+        return parser.getText();
+    }
+
+    private static boolean readBoolean(JsonParser parser, String field) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+            throw unexpected(parser, field);
+        }
+        return token == JsonToken.VALUE_TRUE;
+    }
+
+    private static String[] readStringArray(JsonParser parser, String field) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw unexpected(parser, field);
+        }
+        List<String> values = new ArrayList<>(2);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(readString(parser, field));
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static JsonParseException unexpected(JsonParser parser, String field) {
+        return new JsonParseException("Unexpected value for the field " + field + ".",
+                parser.getCurrentLocation());
+    }
+}
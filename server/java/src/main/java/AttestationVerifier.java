@@ -0,0 +1,464 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.SecurityUtils;
+
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Verifies signed attestation statements offline.
+ * An instance is created once from a {@link Builder} and holds everything that is needed for the
+ * verification: the JSON factory, the trust manager, the hostname matcher and a cache of validated
+ * certificate chains. {@link #verify(String)} can be called concurrently from multiple threads.
+ * The statement is tokenized and base64 decoded into per-thread buffers, and the signature is
+ * verified directly over the bytes of the statement with a per-thread {@link Signature} and the
+ * public key that is cached with the certificate chain. The latency of each stage and the reason of
+ * each failure are recorded in the {@link VerificationMetrics}.
+ */
+public final class AttestationVerifier {
+
+    /**
+     * Hostname that the signing certificate of genuine attestation statements is issued for.
+     */
+    public static final String ATTESTATION_HOSTNAME = "attest.android.com";
+
+    private static final String RS256 = "RS256";
+
+    /**
+     * Maximum number of leaf certificates to keep the result of the hostname check for.
+     */
+    private static final int HOSTNAME_CACHE_SIZE = 64;
+
+    private final JsonFactory jsonFactory;
+    private final PayloadBinding payloadBinding;
+    private final CertificateChainCache chainCache;
+    private final VerificationMetrics metrics;
+    private final RevocationChecker revocationChecker;
+    private final AuditLog auditLog;
+    private final IntegrityAnalytics analytics;
+
+    /**
+     * Per-thread buffers that the statement is copied and decoded into, and the signature engine.
+     */
+    private static final class Scratch {
+        final JwsTokenizer tokenizer = new JwsTokenizer();
+        final Signature signature = newSignature();
+        byte[] token = new byte[8 * 1024];
+        byte[] decoded = new byte[8 * 1024];
+
+        byte[] token(int length) {
+            if (token.length < length) {
+                token = new byte[Math.max(length, token.length * 2)];
+            }
+            return token;
+        }
+
+        byte[] decoded(int length) {
+            if (decoded.length < length) {
+                decoded = new byte[Math.max(length, decoded.length * 2)];
+            }
+            return decoded;
+        }
+    }
+
+    private static final ThreadLocalPool<Scratch> SCRATCH = new ThreadLocalPool<Scratch>(256) {
+        @Override
+        protected Scratch create() {
+            return new Scratch();
+        }
+    };
+
+    private static Signature newSignature() {
+        try {
+            // Looking up the provider is a measurable share of a verification, so it's done once
+            // per thread and the instance is reinitialized with the key of each statement.
+            return SecurityUtils.getSha256WithRsaSignatureAlgorithm();
+        } catch (GeneralSecurityException e) {
+            // Every Java platform is required to support SHA256withRSA.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AttestationVerifier(Builder builder, X509TrustManager trustManager) {
+        this.jsonFactory = JacksonFactory.getDefaultInstance();
+        this.payloadBinding = builder.payloadBinding;
+        final VerificationMetrics metrics = builder.metrics;
+        this.metrics = metrics;
+        this.revocationChecker = builder.revocationChecker;
+        this.auditLog = builder.auditLog;
+        this.analytics = builder.analytics;
+
+        final SanHostnameMatcher hostnameMatcher =
+                new SanHostnameMatcher(builder.hostname, HOSTNAME_CACHE_SIZE);
+        this.chainCache = new CertificateChainCache(builder.chainCacheSize,
+                builder.chainCacheTtlMs, trustManager, new Predicate<X509Certificate>() {
+                    @Override
+                    public boolean test(X509Certificate leafCert) {
+                        long startNs = System.nanoTime();
+                        try {
+                            return hostnameMatcher.matches(leafCert);
+                        } finally {
+                            metrics.recordStage(VerificationMetrics.Stage.HOSTNAME_CHECK,
+                                    System.nanoTime() - startNs);
+                        }
+                    }
+                });
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Parses the signed attestation statement, verifies its certificate chain, hostname and
+     * signature and returns the result with the statement, or with the reason why the statement
+     * could not be parsed or verified.
+     */
+    public VerificationResult verify(String signedAttestationStatement) {
+        Scratch scratch = SCRATCH.acquire();
+        try {
+            // A JWS only consists of ASCII characters, copy them into the per-thread buffer.
+            int length = signedAttestationStatement.length();
+            byte[] token = scratch.token(length);
+            for (int i = 0; i < length; i++) {
+                char c = signedAttestationStatement.charAt(i);
+                if (c > 0x7f) {
+                    VerificationResult result = fail(FailureReason.INVALID_JWS);
+                    if (auditLog != null) {
+                        auditLog.record(signedAttestationStatement, result);
+                    }
+                    return result;
+                }
+                token[i] = (byte) c;
+            }
+            return verify(token, 0, length, scratch);
+        } finally {
+            SCRATCH.release(scratch);
+        }
+    }
+
+    /**
+     * Verifies the signed attestation statement in {@code length} ASCII bytes starting at
+     * {@code offset}, without converting it to a string first.
+     */
+    public VerificationResult verify(byte[] token, int offset, int length) {
+        Scratch scratch = SCRATCH.acquire();
+        try {
+            return verify(token, offset, length, scratch);
+        } finally {
+            SCRATCH.release(scratch);
+        }
+    }
+
+    private VerificationResult verify(byte[] token, int offset, int length, Scratch scratch) {
+        VerificationResult result = verifyToken(token, offset, length, scratch);
+        if (auditLog != null) {
+            // Only hashes the token, the record is written in the background.
+            auditLog.record(token, offset, length, result);
+        }
+        return result;
+    }
+
+    private VerificationResult verifyToken(byte[] token, int offset, int length,
+                                           Scratch scratch) {
+        JwsTokenizer jws = scratch.tokenizer;
+        long startNs = System.nanoTime();
+
+        // Find the header, payload and signature of the JSON Web Signature.
+        if (!jws.tokenize(token, offset, length)) {
+            return fail(FailureReason.INVALID_JWS);
+        }
+
+        // Decode and parse the header.
+        JsonWebSignature.Header header = parsePart(token, jws.headerStart(), jws.headerEnd(),
+                scratch, JsonWebSignature.Header.class);
+        if (header == null) {
+            return fail(FailureReason.INVALID_JWS);
+        }
+        if (!RS256.equals(header.getAlgorithm())) {
+            return fail(FailureReason.UNSUPPORTED_ALGORITHM);
+        }
+        long parsedNs = System.nanoTime();
+        metrics.recordStage(VerificationMetrics.Stage.JWS_PARSE, parsedNs - startNs);
+
+        // Validate the certificate chain and the hostname of the signing certificate.
+        CertificateChainCache.Entry chain = chainCache.get(header.getX509Certificates());
+        if (chain == null || !chain.isTrusted()) {
+            return fail(FailureReason.UNTRUSTED_CERTIFICATE_CHAIN);
+        }
+        if (!chain.isLeafVerified()) {
+            return fail(FailureReason.HOSTNAME_MISMATCH);
+        }
+        // Checked for every statement, not only when the chain is validated, so that a reloaded
+        // snapshot applies to cached chains right away.
+        if (revocationChecker != null && revocationChecker.isRevoked(chain)) {
+            return fail(FailureReason.REVOKED_CERTIFICATE);
+        }
+        long chainNs = System.nanoTime();
+        metrics.recordStage(VerificationMetrics.Stage.CHAIN_VERIFY, chainNs - parsedNs);
+
+        // Verify the signature over the encoded header and payload, directly from the token.
+        int signatureLength = decode(token, jws.signatureStart(), jws.signatureEnd(), scratch);
+        if (signatureLength < 0) {
+            return fail(FailureReason.INVALID_JWS);
+        }
+        try {
+            Signature signature = scratch.signature;
+            signature.initVerify(chain.getLeafPublicKey());
+            signature.update(token, jws.headerStart(), jws.signedContentLength());
+            if (!signature.verify(scratch.decoded, 0, signatureLength)) {
+                return fail(FailureReason.BAD_SIGNATURE);
+            }
+        } catch (GeneralSecurityException e) {
+            return fail(FailureReason.BAD_SIGNATURE);
+        }
+        long signedNs = System.nanoTime();
+        metrics.recordStage(VerificationMetrics.Stage.SIGNATURE_VERIFY, signedNs - chainNs);
+
+        // Bind the payload only once the signature is known to be valid.
+        int payloadLength = decode(token, jws.payloadStart(), jws.payloadEnd(), scratch);
+        if (payloadLength < 0) {
+            return fail(FailureReason.INVALID_PAYLOAD);
+        }
+        AttestationStatement stmt;
+        try {
+            stmt = payloadBinding.bind(jsonFactory, scratch.decoded, 0, payloadLength);
+        } catch (IOException | IllegalArgumentException e) {
+            // The exception was already created by the parser, keep it for the caller.
+            metrics.recordFailure(FailureReason.INVALID_PAYLOAD);
+            return VerificationResult.failure(FailureReason.INVALID_PAYLOAD, e);
+        }
+        metrics.recordStage(VerificationMetrics.Stage.PAYLOAD_BIND, System.nanoTime() - signedNs);
+        metrics.recordVerified();
+        if (analytics != null) {
+            analytics.record(stmt);
+        }
+        return VerificationResult.success(stmt);
+    }
+
+    private VerificationResult fail(FailureReason reason) {
+        metrics.recordFailure(reason);
+        return VerificationResult.failure(reason);
+    }
+
+    /**
+     * Records a result that a caller took from a cache instead of calling {@link #verify}, in the
+     * metrics, the analytics and the audit log, like the result of a verification.
+     */
+    void recordCached(byte[] token, int offset, int length, VerificationResult result) {
+        recordCachedResult(result);
+        if (auditLog != null) {
+            auditLog.record(token, offset, length, result);
+        }
+    }
+
+    /**
+     * Records a cached result of the statement, see {@link #recordCached(byte[], int, int,
+     * VerificationResult)}.
+     */
+    void recordCached(String signedAttestationStatement, VerificationResult result) {
+        recordCachedResult(result);
+        if (auditLog != null) {
+            auditLog.record(signedAttestationStatement, result);
+        }
+    }
+
+    private void recordCachedResult(VerificationResult result) {
+        if (!result.isVerified()) {
+            metrics.recordFailure(result.getFailureReason());
+            return;
+        }
+        metrics.recordVerified();
+        if (analytics != null) {
+            analytics.record(result.getStatement());
+        }
+    }
+
+    /**
+     * Returns the current snapshot of revoked certificates, or null if revocation is not checked.
+     * A result that was verified with another snapshot may be out of date.
+     */
+    RevocationSnapshot getRevocationSnapshot() {
+        return revocationChecker != null ? revocationChecker.getSnapshot() : null;
+    }
+
+    /**
+     * Returns the metrics that the latencies and failures of this verifier are recorded in.
+     */
+    public VerificationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Decodes a part of the token into the scratch buffer and returns the decoded length, or -1 if
+     * it is not valid base64.
+     */
+    private static int decode(byte[] token, int start, int end, Scratch scratch) {
+        int length = Base64Url.decodedLength(token, start, end);
+        if (length < 0) {
+            return -1;
+        }
+        return Base64Url.decode(token, start, end, scratch.decoded(length), 0);
+    }
+
+    private <T> T parsePart(byte[] token, int start, int end, Scratch scratch, Class<T> type) {
+        int length = decode(token, start, end, scratch);
+        if (length < 0) {
+            return null;
+        }
+        try {
+            return jsonFactory.createJsonParser(
+                    new ByteArrayInputStream(scratch.decoded, 0, length)).parseAndClose(type);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Configuration of an {@link AttestationVerifier}.
+     */
+    public static final class Builder {
+        private String hostname = ATTESTATION_HOSTNAME;
+        private KeyStore trustStore;
+        private X509TrustManager trustManager;
+        private int chainCacheSize = 64;
+        private long chainCacheTtlMs = TimeUnit.HOURS.toMillis(1);
+        private PayloadBinding payloadBinding = PayloadBinding.STREAMING;
+        private VerificationMetrics metrics;
+        private RevocationChecker revocationChecker;
+        private AuditLog auditLog;
+        private IntegrityAnalytics analytics;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the hostname that the signing certificate must be issued for. Defaults to
+         * {@link #ATTESTATION_HOSTNAME}.
+         */
+        public Builder setHostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        /**
+         * Sets the trust store with the root certificates that the certificate chain must lead
+         * to. Defaults to the system CA certificates.
+         */
+        public Builder setTrustStore(KeyStore trustStore) {
+            this.trustStore = trustStore;
+            return this;
+        }
+
+        /**
+         * Sets the trust manager used to validate the certificate chain. Takes precedence over
+         * {@link #setTrustStore(KeyStore)}.
+         */
+        public Builder setTrustManager(X509TrustManager trustManager) {
+            this.trustManager = trustManager;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of distinct certificate chains to keep validation results for.
+         */
+        public Builder setChainCacheSize(int chainCacheSize) {
+            this.chainCacheSize = chainCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time to keep the validation result of a certificate chain, even if the
+         * certificates are still valid.
+         */
+        public Builder setChainCacheTtl(long duration, TimeUnit unit) {
+            this.chainCacheTtlMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets how the payload is bound to an {@link AttestationStatement}. Defaults to
+         * {@link PayloadBinding#STREAMING}, use {@link PayloadBinding#REFLECTIVE} to keep fields
+         * that are not declared in {@link AttestationStatement}.
+         */
+        public Builder setPayloadBinding(PayloadBinding payloadBinding) {
+            this.payloadBinding = payloadBinding;
+            return this;
+        }
+
+        /**
+         * Sets the metrics to record the latencies and failures in, e.g. to share them with other
+         * verifiers. Defaults to new metrics for this verifier.
+         */
+        public Builder setMetrics(VerificationMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Sets the checker that rejects chains with revoked certificates. By default, revocation
+         * is not checked.
+         */
+        public Builder setRevocationChecker(RevocationChecker revocationChecker) {
+            this.revocationChecker = revocationChecker;
+            return this;
+        }
+
+        /**
+         * Sets the log that the outcome of every verification is recorded in. By default,
+         * outcomes are not recorded.
+         */
+        public Builder setAuditLog(AuditLog auditLog) {
+            this.auditLog = auditLog;
+            return this;
+        }
+
+        /**
+         * Sets the analytics that every verified statement is added to. By default, no analytics
+         * are kept.
+         */
+        public Builder setAnalytics(IntegrityAnalytics analytics) {
+            this.analytics = analytics;
+            return this;
+        }
+
+        /**
+         * Builds the verifier.
+         *
+         * @throws GeneralSecurityException if the trust store could not be loaded
+         */
+        public AttestationVerifier build() throws GeneralSecurityException {
+            X509TrustManager manager = trustManager != null
+                    ? trustManager : CertificateChainCache.trustManagerFor(trustStore);
+            if (metrics == null) {
+                metrics = new VerificationMetrics();
+            }
+            return new AttestationVerifier(this, manager);
+        }
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only log of verification outcomes, for forensic questions such as "which statements
+ * of package X failed the CTS profile match yesterday".
+ * Each outcome is written as a fixed-size {@link AuditRecord} into memory-mapped segment files in
+ * the log directory. A new segment is started when the current one is full, and the oldest
+ * segments are deleted beyond the configured number. APK package names are interned into ids in
+ * the {@code packages} file. When a segment is full, an index file with its time range and the ids
+ * of its packages is written next to it, so that {@link #query} only scans the segments that can
+ * contain matching records.
+ * <p>
+ * {@link #record} only hashes the statement and hands the outcome to a background writer thread
+ * through a bounded queue, so verification threads never wait for the disk. If the writer falls
+ * behind and the queue is full, outcomes are dropped and counted. Records are visible to queries
+ * in this and other processes as soon as the writer has copied them into the segment; if the
+ * process dies, the outcomes in the queue are lost and the index of the current segment is
+ * rebuilt the next time the log is opened.
+ */
+public final class AuditLog implements Closeable {
+
+    /**
+     * Seed of the hashes of statements and nonces. Fixed, so that the hash of a statement can be
+     * computed again to look it up.
+     */
+    static final long HASH_SEED = 0x61756469746c6f67L;
+
+    private static final int MAGIC = 0x41554454;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final String PACKAGES_FILE = "packages";
+
+    /**
+     * An outcome waiting to be written.
+     */
+    private static final class Event {
+        final long recordedAtMs;
+        final long tokenHash;
+        final VerificationResult result;
+
+        Event(long recordedAtMs, long tokenHash, VerificationResult result) {
+            this.recordedAtMs = recordedAtMs;
+            this.tokenHash = tokenHash;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The time range and the package ids of the records in a segment.
+     */
+    private static final class SegmentIndex {
+        long minRecordedAtMs = Long.MAX_VALUE;
+        long maxRecordedAtMs = Long.MIN_VALUE;
+        int count;
+        final BitSet packageIds = new BitSet();
+
+        void add(long recordedAtMs, int packageId) {
+            minRecordedAtMs = Math.min(minRecordedAtMs, recordedAtMs);
+            maxRecordedAtMs = Math.max(maxRecordedAtMs, recordedAtMs);
+            count++;
+            if (packageId >= 0) {
+                packageIds.set(packageId);
+            }
+        }
+
+        /**
+         * Returns true if the segment may contain records in the time range for the package, or
+         * for any package if the package id is -1.
+         */
+        boolean mayContain(long fromMs, long toMs, int packageId) {
+            return count > 0 && maxRecordedAtMs >= fromMs && minRecordedAtMs < toMs
+                    && (packageId < 0 || packageIds.get(packageId));
+        }
+
+        /**
+         * Writes the index as two lines: the number of records and the time range, and the
+         * package ids.
+         */
+        void write(Path file) throws IOException {
+            StringBuilder packages = new StringBuilder();
+            for (int id = packageIds.nextSetBit(0); id >= 0; id = packageIds.nextSetBit(id + 1)) {
+                packages.append(packages.length() == 0 ? "" : ",").append(id);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII)) {
+                out.write(count + " " + minRecordedAtMs + " " + maxRecordedAtMs + "\n");
+                out.write(packages + "\n");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static SegmentIndex read(Path file) throws IOException {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            SegmentIndex index = new SegmentIndex();
+            try {
+                String[] range = lines.get(0).split(" ");
+                index.count = Integer.parseInt(range[0]);
+                index.minRecordedAtMs = Long.parseLong(range[1]);
+                index.maxRecordedAtMs = Long.parseLong(range[2]);
+                if (lines.size() > 1 && !lines.get(1).isEmpty()) {
+                    for (String id : lines.get(1).split(",")) {
+                        index.packageIds.set(Integer.parseInt(id));
+                    }
+                }
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("Could not parse the audit log index " + file + ".", e);
+            }
+            return index;
+        }
+
+        /**
+         * Builds the index of a segment by scanning its records.
+         */
+        static SegmentIndex scan(ByteBuffer segment) {
+            SegmentIndex index = new SegmentIndex();
+            for (int position = HEADER_SIZE; position + AuditRecord.SIZE <= segment.limit();
+                 position += AuditRecord.SIZE) {
+                long recordedAtMs = AuditRecord.readRecordedAtMs(segment, position);
+                if (recordedAtMs == 0) {
+                    break;
+                }
+                index.add(recordedAtMs, AuditRecord.readPackageId(segment, position));
+            }
+            return index;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final BlockingQueue<Event> queue;
+    private final Thread writer;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private volatile boolean closed;
+
+    // Only accessed by the writer thread, and by close() once the writer has stopped.
+    private final Map<String, Integer> packageIds = new HashMap<>();
+    private final Deque<Long> segments = new ArrayDeque<>();
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private int position;
+    private SegmentIndex index;
+    private Writer packagesOut;
+
+    private AuditLog(Builder builder) throws IOException {
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.maxSegments = builder.maxSegments;
+        this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+
+        Files.createDirectories(directory);
+        List<String> packages = readPackages(directory);
+        for (int i = 0; i < packages.size(); i++) {
+            packageIds.put(packages.get(i), i);
+        }
+        packagesOut = Files.newBufferedWriter(directory.resolve(PACKAGES_FILE),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        // Index the segments that were not closed properly. Appending always starts a new segment.
+        for (long number : segmentNumbers(directory)) {
+            if (!Files.exists(indexFile(directory, number))) {
+                try (FileChannel channel = FileChannel.open(segmentFile(directory, number))) {
+                    SegmentIndex.scan(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            channel.size())).write(indexFile(directory, number));
+                }
+            }
+            segments.add(number);
+            segmentNumber = number;
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "audit-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Records the outcome of verifying the statement in {@code length} bytes starting at
+     * {@code offset}. Never blocks; the outcome is dropped if the writer can't keep up.
+     */
+    public void record(byte[] token, int offset, int length, VerificationResult result) {
+        enqueue(Murmur3.hash64(token, offset, length, HASH_SEED), result);
+    }
+
+    /**
+     * Records the outcome of verifying the statement. Never blocks; the outcome is dropped if the
+     * writer can't keep up.
+     */
+    public void record(String signedAttestationStatement, VerificationResult result) {
+        enqueue(tokenHash(signedAttestationStatement), result);
+    }
+
+    private void enqueue(long tokenHash, VerificationResult result) {
+        if (closed || !queue.offer(new Event(System.currentTimeMillis(), tokenHash, result))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the hash that the statement is recorded with.
+     */
+    public static long tokenHash(String signedAttestationStatement) {
+        byte[] token = signedAttestationStatement.getBytes(StandardCharsets.UTF_8);
+        return Murmur3.hash64(token, 0, token.length, HASH_SEED);
+    }
+
+    /**
+     * Returns the number of outcomes that were written to the log.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the number of outcomes that were dropped because the queue was full, the log was
+     * closed or the segment could not be written.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private void writeEvents() {
+        List<Event> batch = new ArrayList<>();
+        while (true) {
+            Event first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, 1023);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Event> events) {
+        for (Event event : events) {
+            try {
+                if (segment == null || position + AuditRecord.SIZE > segment.limit()) {
+                    startSegment();
+                }
+                int packageId = packageId(event.result);
+                AuditRecord.write(segment, position, event.recordedAtMs, event.tokenHash,
+                        packageId, event.result);
+                index.add(event.recordedAtMs, packageId);
+                position += AuditRecord.SIZE;
+                writtenCount.incrementAndGet();
+            } catch (IOException e) {
+                droppedCount.incrementAndGet();
+                System.err.println("Failure: Could not write to the audit log in " + directory
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the package of the verified statement, adding new packages to the package
+     * table, or -1 if the statement could not be verified.
+     */
+    private int packageId(VerificationResult result) throws IOException {
+        if (!result.isVerified() || result.getStatement().getApkPackageName() == null) {
+            return -1;
+        }
+        String packageName = result.getStatement().getApkPackageName();
+        Integer id = packageIds.get(packageName);
+        if (id == null) {
+            if (packageName.indexOf('\n') >= 0 || packageName.indexOf('\r') >= 0) {
+                // Can't be stored in the package table, and is no valid package name anyway.
+                return -1;
+            }
+            id = packageIds.size();
+            packagesOut.write(packageName + "\n");
+            packagesOut.flush();
+            packageIds.put(packageName, id);
+        }
+        return id;
+    }
+
+    private void startSegment() throws IOException {
+        sealSegment();
+        segmentNumber++;
+        try (FileChannel channel = FileChannel.open(segmentFile(directory, segmentNumber),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Extends the file to the segment size. The pages are only allocated once written.
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putInt(8, AuditRecord.SIZE);
+        position = HEADER_SIZE;
+        index = new SegmentIndex();
+        segments.add(segmentNumber);
+        while (segments.size() > maxSegments) {
+            long oldest = segments.removeFirst();
+            Files.deleteIfExists(indexFile(directory, oldest));
+            Files.deleteIfExists(segmentFile(directory, oldest));
+        }
+    }
+
+    /**
+     * Writes the current segment to disk and writes its index.
+     */
+    private void sealSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        segment.force();
+        index.write(indexFile(directory, segmentNumber));
+        segment = null;
+    }
+
+    /**
+     * Stops the writer thread after it has written the outcomes in the queue, and writes the index
+     * of the current segment.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the audit log.", e);
+        }
+        // Outcomes that were added while the writer was stopping.
+        List<Event> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        write(remaining);
+        sealSegment();
+        packagesOut.close();
+    }
+
+    /**
+     * Returns the records of the log in the directory that were recorded in the time range
+     * {@code [fromMs, toMs)}, for the given package or for all packages if it is null. Only the
+     * segments whose index overlaps the range and contains the package are scanned. This can be
+     * called while the log is being written, also from another process.
+     */
+    public static List<AuditRecord> query(Path directory, long fromMs, long toMs,
+                                          String packageName) throws IOException {
+        List<String> packages = readPackages(directory);
+        int packageId = -1;
+        if (packageName != null) {
+            packageId = packages.indexOf(packageName);
+            if (packageId < 0) {
+                return new ArrayList<>();
+            }
+        }
+        List<AuditRecord> records = new ArrayList<>();
+        for (long number : segmentsFor(directory, fromMs, toMs, packageId)) {
+            ByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(segmentFile(directory, number))) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                // Deleted by the writer in the meantime.
+                continue;
+            }
+            if (segment.limit() < HEADER_SIZE || segment.getInt(0) != MAGIC
+                    || segment.getInt(4) != VERSION) {
+                throw new IOException(segmentFile(directory, number) + " is not an audit log "
+                        + "segment.");
+            }
+            for (int position = HEADER_SIZE; position + AuditRecord.SIZE <= segment.limit();
+                 position += AuditRecord.SIZE) {
+                long recordedAtMs = AuditRecord.readRecordedAtMs(segment, position);
+                if (recordedAtMs == 0) {
+                    break;
+                }
+                int id = AuditRecord.readPackageId(segment, position);
+                if (recordedAtMs < fromMs || recordedAtMs >= toMs
+                        || (packageId >= 0 && id != packageId)) {
+                    continue;
+                }
+                records.add(AuditRecord.read(segment, position,
+                        id >= 0 && id < packages.size() ? packages.get(id) : null));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the numbers of the segments that may contain records in the time range for the
+     * package id, or for all packages if it is -1. Segments without an index, i.e. the one that
+     * is being written, are always included.
+     */
+    static List<Long> segmentsFor(Path directory, long fromMs, long toMs, int packageId)
+            throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        for (long number : segmentNumbers(directory)) {
+            Path indexFile = indexFile(directory, number);
+            SegmentIndex index;
+            try {
+                index = Files.exists(indexFile) ? SegmentIndex.read(indexFile) : null;
+            } catch (IOException e) {
+                // Deleted by the writer in the meantime, or being replaced.
+                index = null;
+            }
+            if (index == null || index.mayContain(fromMs, toMs, packageId)) {
+                numbers.add(number);
+            }
+        }
+        return numbers;
+    }
+
+    private static List<String> readPackages(Path directory) throws IOException {
+        List<String> packages = new ArrayList<>();
+        Path file = directory.resolve(PACKAGES_FILE);
+        if (!Files.exists(file)) {
+            return packages;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                packages.add(line);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Returns the numbers of the segments in the directory in ascending order.
+     */
+    private static List<Long> segmentNumbers(Path directory) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audit-*.seg")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(6, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not a segment of this log.
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private static Path segmentFile(Path directory, long number) {
+        return directory.resolve(String.format("audit-%010d.seg", number));
+    }
+
+    private static Path indexFile(Path directory, long number) {
+        return directory.resolve(String.format("audit-%010d.idx", number));
+    }
+
+    /**
+     * Configuration of an {@link AuditLog}.
+     */
+    public static final class Builder {
+        private Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private int maxSegments = 64;
+        private int queueCapacity = 65536;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the directory of the segment, index and package files. Required.
+         */
+        public Builder setDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Sets the size of a segment file in bytes. Defaults to 64 MB, i.e. about 1.6 million
+         * records.
+         */
+        public Builder setSegmentSize(int segmentSize) {
+            if (segmentSize < HEADER_SIZE + AuditRecord.SIZE) {
+                throw new IllegalArgumentException("segmentSize: " + segmentSize);
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of segments to keep. The oldest segments are deleted when a new segment
+         * is started. Defaults to 64.
+         */
+        public Builder setMaxSegments(int maxSegments) {
+            if (maxSegments < 1) {
+                throw new IllegalArgumentException("maxSegments: " + maxSegments);
+            }
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * Sets the number of outcomes that can wait for the writer before new outcomes are
+         * dropped. Defaults to 65536.
+         */
+        public Builder setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Opens the log and starts its writer thread.
+         *
+         * @throws IOException if the directory or its files could not be read or created
+         */
+        public AuditLog build() throws IOException {
+            if (directory == null) {
+                throw new IllegalStateException("The directory is not set.");
+            }
+            return new AuditLog(this);
+        }
+    }
+}
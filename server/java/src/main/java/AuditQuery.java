@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prints the records of an {@link AuditLog}, one per line, optionally restricted to a time range,
+ * a package or a statement. For example, to list the statements of a package that failed the CTS
+ * profile match on a given day:
+ * <pre>
+ * AuditQuery --from 2016-06-01T00:00:00Z --to 2016-06-02T00:00:00Z --package com.example.app \
+ *     audit-log | grep ctsProfileMatch=false
+ * </pre>
+ */
+public class AuditQuery {
+
+    private static long parseTime(String time) {
+        // Milliseconds since the epoch, or an ISO-8601 instant such as 2016-06-01T00:00:00Z.
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return Instant.parse(time).toEpochMilli();
+        }
+    }
+
+    private static String format(AuditRecord record) {
+        String outcome = record.isVerified()
+                ? "VERIFIED\t" + record.getPackageName()
+                + "\tctsProfileMatch=" + record.isCtsProfileMatch()
+                + "\tbasicIntegrity=" + record.hasBasicIntegrity()
+                + "\ttimestampMs=" + record.getTimestampMs()
+                + "\tnonce=" + String.format("%016x", record.getNonceHash())
+                : "FAILED\t" + record.getFailureReason();
+        return Instant.ofEpochMilli(record.getRecordedAtMs()) + "\t"
+                + String.format("%016x", record.getTokenHash()) + "\t" + outcome;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long fromMs = 0;
+        long toMs = Long.MAX_VALUE;
+        String packageName = null;
+        Long tokenHash = null;
+        try {
+            while (args.length >= 3 && args[0].startsWith("--")) {
+                if (args[0].equals("--from")) {
+                    fromMs = parseTime(args[1]);
+                } else if (args[0].equals("--to")) {
+                    toMs = parseTime(args[1]);
+                } else if (args[0].equals("--package")) {
+                    packageName = args[1];
+                } else if (args[0].equals("--statement")) {
+                    // Only the records of this signed statement.
+                    tokenHash = AuditLog.tokenHash(args[1]);
+                } else {
+                    break;
+                }
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+        } catch (DateTimeParseException e) {
+            System.err.println("Failure: " + e.getMessage());
+            return;
+        }
+        if (args.length != 1) {
+            System.err.println("Usage: AuditQuery [--from <time>] [--to <time>] [--package "
+                    + "<package name>] [--statement <signed attestation statement>] <audit log "
+                    + "directory>");
+            System.err.println("       Times are ISO-8601 instants or milliseconds since the "
+                    + "epoch. The range includes --from and excludes --to.");
+            return;
+        }
+        File directory = new File(args[0]);
+        if (!directory.isDirectory()) {
+            System.err.println("Failure: " + directory + " is not a directory.");
+            return;
+        }
+        List<AuditRecord> records = AuditLog.query(directory.toPath(), fromMs, toMs, packageName);
+        int count = 0;
+        for (AuditRecord record : records) {
+            if (tokenHash == null || record.getTokenHash() == tokenHash) {
+                System.out.println(format(record));
+                count++;
+            }
+        }
+        System.err.println(count + " records.");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * One verification outcome in the {@link AuditLog}.
+ * A record is stored in {@link #SIZE} bytes with a fixed layout, in big-endian byte order:
+ * <pre>
+ *  0  long  time the outcome was recorded, in ms since the epoch (never 0)
+ *  8  long  timestampMs of the statement, 0 if it could not be verified
+ * 16  long  hash of the signed statement, see {@link AuditLog#tokenHash}
+ * 24  long  hash of the nonce, 0 if the statement could not be verified
+ * 32  int   id of the APK package name in the package table, -1 if unknown
+ * 36  byte  integrity flags, see the FLAG_* constants
+ * 37  byte  ordinal of the {@link FailureReason} plus one, 0 if the statement was verified
+ * 38  short reserved, 0
+ * </pre>
+ * The time the outcome was recorded is written last, so that a reader that sees a non-zero time
+ * also sees the rest of the record.
+ */
+public final class AuditRecord {
+
+    static final int SIZE = 40;
+
+    static final int FLAG_CTS_PROFILE_MATCH = 1;
+    static final int FLAG_BASIC_INTEGRITY = 1 << 1;
+    static final int FLAG_BASIC_EVALUATION = 1 << 2;
+    static final int FLAG_HARDWARE_BACKED_EVALUATION = 1 << 3;
+
+    private final long recordedAtMs;
+    private final long timestampMs;
+    private final long tokenHash;
+    private final long nonceHash;
+    private final String packageName;
+    private final int flags;
+    private final FailureReason failureReason;
+
+    private AuditRecord(long recordedAtMs, long timestampMs, long tokenHash, long nonceHash,
+                        String packageName, int flags, FailureReason failureReason) {
+        this.recordedAtMs = recordedAtMs;
+        this.timestampMs = timestampMs;
+        this.tokenHash = tokenHash;
+        this.nonceHash = nonceHash;
+        this.packageName = packageName;
+        this.flags = flags;
+        this.failureReason = failureReason;
+    }
+
+    /**
+     * Writes a record at the given position of the buffer.
+     */
+    static void write(ByteBuffer buffer, int position, long recordedAtMs, long tokenHash,
+                      int packageId, VerificationResult result) {
+        AttestationStatement stmt = result.getStatement();
+        long timestampMs = 0;
+        long nonceHash = 0;
+        int flags = 0;
+        if (stmt != null) {
+            timestampMs = stmt.getTimestampMs();
+            byte[] nonce = stmt.getNonce();
+            if (nonce != null) {
+                nonceHash = Murmur3.hash64(nonce, 0, nonce.length, AuditLog.HASH_SEED);
+            }
+            flags = (stmt.isCtsProfileMatch() ? FLAG_CTS_PROFILE_MATCH : 0)
+                    | (stmt.hasBasicIntegrity() ? FLAG_BASIC_INTEGRITY : 0)
+                    | (stmt.hasBasicEvaluationType() ? FLAG_BASIC_EVALUATION : 0)
+                    | (stmt.hasHardwareBackedEvaluationType()
+                    ? FLAG_HARDWARE_BACKED_EVALUATION : 0);
+        }
+        FailureReason reason = result.getFailureReason();
+        buffer.putLong(position + 8, timestampMs);
+        buffer.putLong(position + 16, tokenHash);
+        buffer.putLong(position + 24, nonceHash);
+        buffer.putInt(position + 32, packageId);
+        buffer.put(position + 36, (byte) flags);
+        buffer.put(position + 37, (byte) (reason == null ? 0 : reason.ordinal() + 1));
+        buffer.putShort(position + 38, (short) 0);
+        buffer.putLong(position, recordedAtMs);
+    }
+
+    /**
+     * Returns the time at which the record at the given position was written, or 0 if there is no
+     * record at that position yet.
+     */
+    static long readRecordedAtMs(ByteBuffer buffer, int position) {
+        return buffer.getLong(position);
+    }
+
+    static int readPackageId(ByteBuffer buffer, int position) {
+        return buffer.getInt(position + 32);
+    }
+
+    /**
+     * Reads the record at the given position of the buffer.
+     *
+     * @param packageName the package name for the package id of the record, or null
+     */
+    static AuditRecord read(ByteBuffer buffer, int position, String packageName) {
+        int reason = buffer.get(position + 37) & 0xff;
+        FailureReason[] reasons = FailureReason.values();
+        return new AuditRecord(buffer.getLong(position), buffer.getLong(position + 8),
+                buffer.getLong(position + 16), buffer.getLong(position + 24), packageName,
+                buffer.get(position + 36) & 0xff,
+                reason == 0 ? null : reasons[reason - 1]);
+    }
+
+    public long getRecordedAtMs() {
+        return recordedAtMs;
+    }
+
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    public long getTokenHash() {
+        return tokenHash;
+    }
+
+    public long getNonceHash() {
+        return nonceHash;
+    }
+
+    /**
+     * Returns the APK package name of the verified statement, or null if the statement could not
+     * be verified.
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public boolean isVerified() {
+        return failureReason == null;
+    }
+
+    /**
+     * Returns the reason why the statement could not be verified, or null if it was verified.
+     */
+    public FailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    public boolean isCtsProfileMatch() {
+        return (flags & FLAG_CTS_PROFILE_MATCH) != 0;
+    }
+
+    public boolean hasBasicIntegrity() {
+        return (flags & FLAG_BASIC_INTEGRITY) != 0;
+    }
+
+    public boolean hasBasicEvaluationType() {
+        return (flags & FLAG_BASIC_EVALUATION) != 0;
+    }
+
+    public boolean hasHardwareBackedEvaluationType() {
+        return (flags & FLAG_HARDWARE_BACKED_EVALUATION) != 0;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Table-driven base64 decoder that decodes directly from a region of a byte array or string into
+ * a caller-provided buffer.
+ * Like {@link com.google.api.client.util.Base64#decodeBase64(String)}, it accepts both the URL-safe
+ * alphabet used in JWS and the standard alphabet used in the fields of the attestation statement,
+ * with or without padding.
+ */
+final class Base64Url {
+
+    private static final byte INVALID = -1;
+
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+        Arrays.fill(DECODE_TABLE, INVALID);
+        for (int i = 0; i < 26; i++) {
+            DECODE_TABLE['A' + i] = (byte) i;
+            DECODE_TABLE['a' + i] = (byte) (26 + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            DECODE_TABLE['0' + i] = (byte) (52 + i);
+        }
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['+'] = 62;
+        DECODE_TABLE['_'] = 63;
+        DECODE_TABLE['/'] = 63;
+    }
+
+    private Base64Url() {
+    }
+
+    /**
+     * Returns the number of bytes that the encoded characters between {@code start} and
+     * {@code end} (including any padding) decode to, or -1 if that is not a valid length.
+     * Like all methods of this class, it takes the region as a start index and an end index, the
+     * same as the offsets returned by {@link JwsTokenizer}.
+     */
+    static int decodedLength(byte[] src, int start, int end) {
+        while (end > start && src[end - 1] == '=') {
+            end--;
+        }
+        return decodedLength(end - start);
+    }
+
+    static int decodedLength(CharSequence src, int start, int end) {
+        while (end > start && src.charAt(end - 1) == '=') {
+            end--;
+        }
+        return decodedLength(end - start);
+    }
+
+    private static int decodedLength(int unpaddedLength) {
+        if (unpaddedLength % 4 == 1) {
+            return -1;
+        }
+        return unpaddedLength / 4 * 3 + Math.max(0, unpaddedLength % 4 - 1);
+    }
+
+    /**
+     * Decodes the characters between {@code start} and {@code end} into {@code dst}, which must
+     * have room for {@link #decodedLength(byte[], int, int)} bytes.
+     *
+     * @return the number of decoded bytes, or -1 if the input is not valid base64
+     */
+    static int decode(byte[] src, int start, int end, byte[] dst, int dstOffset) {
+        while (end > start && src[end - 1] == '=') {
+            end--;
+        }
+        if ((end - start) % 4 == 1) {
+            return -1;
+        }
+
+        int in = start;
+        int out = dstOffset;
+        int fullEnd = end - (end - start) % 4;
+        while (in < fullEnd) {
+            // Any invalid character makes the combined value negative.
+            int bits = DECODE_TABLE[src[in] & 0xff] << 18
+                    | DECODE_TABLE[src[in + 1] & 0xff] << 12
+                    | DECODE_TABLE[src[in + 2] & 0xff] << 6
+                    | DECODE_TABLE[src[in + 3] & 0xff];
+            if (bits < 0) {
+                return -1;
+            }
+            dst[out] = (byte) (bits >> 16);
+            dst[out + 1] = (byte) (bits >> 8);
+            dst[out + 2] = (byte) bits;
+            in += 4;
+            out += 3;
+        }
+
+        int remaining = end - in;
+        if (remaining > 0) {
+            int bits = 0;
+            for (int i = 0; i < 4; i++) {
+                int value = i < remaining ? DECODE_TABLE[src[in + i] & 0xff] : 0;
+                if (value < 0) {
+                    return -1;
+                }
+                bits = bits << 6 | value;
+            }
+            dst[out++] = (byte) (bits >> 16);
+            if (remaining == 3) {
+                dst[out++] = (byte) (bits >> 8);
+            }
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Decodes the characters between {@code start} and {@code end} into {@code dst}, which must
+     * have room for {@link #decodedLength(CharSequence, int, int)} bytes.
+     *
+     * @return the number of decoded bytes, or -1 if the input is not valid base64
+     */
+    static int decode(CharSequence src, int start, int end, byte[] dst, int dstOffset) {
+        while (end > start && src.charAt(end - 1) == '=') {
+            end--;
+        }
+        if ((end - start) % 4 == 1) {
+            return -1;
+        }
+
+        int out = dstOffset;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            int value = c < 256 ? DECODE_TABLE[c] : INVALID;
+            if (value < 0) {
+                return -1;
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                dst[out] = (byte) (bits >> 16);
+                dst[out + 1] = (byte) (bits >> 8);
+                dst[out + 2] = (byte) bits;
+                out += 3;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            bits <<= 6 * (4 - count);
+            dst[out++] = (byte) (bits >> 16);
+            if (count == 3) {
+                dst[out++] = (byte) (bits >> 8);
+            }
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Decodes the characters between {@code start} and {@code end} into a new array.
+     * Returns null if the input is not valid base64.
+     */
+    static byte[] decode(CharSequence src, int start, int end) {
+        int length = decodedLength(src, start, end);
+        if (length < 0) {
+            return null;
+        }
+        byte[] decoded = new byte[length];
+        return decode(src, start, end, decoded, 0) < 0 ? null : decoded;
+    }
+}
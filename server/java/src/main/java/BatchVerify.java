@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Verifies a file of newline-delimited signed attestation statements offline.
+ * The file is memory-mapped and split on line boundaries, and the tokens are verified in parallel
+ * on the common fork-join pool with a shared {@link AttestationVerifier}. Results are written to
+ * standard out in input order, followed by a throughput and latency summary on standard error.
+ * Files that start with the gzip magic bytes are inflated to a temporary file first.
+ */
+public class BatchVerify {
+
+    /**
+     * Largest region of the file that is mapped at once. The end of each window is moved back to
+     * the last line break, so a single token may not be larger than this.
+     */
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Regions smaller than this are verified sequentially instead of being split further.
+     */
+    private static final int SPLIT_THRESHOLD = 64 * 1024;
+
+    private static final byte NEWLINE = '\n';
+
+    private final AttestationVerifier verifier;
+
+    BatchVerify(AttestationVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Results of one region of the file. {@link #lines} holds one entry per input line, or
+     * {@code null} for blank lines.
+     */
+    private static class ChunkResult {
+        final List<String> lines;
+        long[] latenciesNs;
+        int tokens;
+        int verified;
+
+        ChunkResult(int expectedLines) {
+            lines = new ArrayList<>(expectedLines);
+            latenciesNs = new long[Math.max(expectedLines, 16)];
+        }
+
+        void add(String result, long latencyNs, boolean success) {
+            lines.add(result);
+            if (tokens == latenciesNs.length) {
+                latenciesNs = Arrays.copyOf(latenciesNs, tokens * 2);
+            }
+            latenciesNs[tokens++] = latencyNs;
+            if (success) {
+                verified++;
+            }
+        }
+
+        void addBlank() {
+            lines.add(null);
+        }
+
+        ChunkResult append(ChunkResult other) {
+            lines.addAll(other.lines);
+            if (tokens + other.tokens > latenciesNs.length) {
+                latenciesNs = Arrays.copyOf(latenciesNs, tokens + other.tokens);
+            }
+            System.arraycopy(other.latenciesNs, 0, latenciesNs, tokens, other.tokens);
+            tokens += other.tokens;
+            verified += other.verified;
+            return this;
+        }
+    }
+
+    /**
+     * Verifies all lines in a region of a mapped buffer, forking off halves that are split on a
+     * line boundary until the region is small enough.
+     */
+    private class VerifyTask extends RecursiveTask<ChunkResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final MappedByteBuffer buffer;
+        private final int start;
+        private final int end;
+
+        VerifyTask(MappedByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected ChunkResult compute() {
+            if (end - start > SPLIT_THRESHOLD) {
+                int split = nextLineStart(buffer, start + (end - start) / 2, end);
+                if (split < end) {
+                    VerifyTask left = new VerifyTask(buffer, start, split);
+                    left.fork();
+                    ChunkResult right = new VerifyTask(buffer, split, end).compute();
+                    return left.join().append(right);
+                }
+            }
+            return verifyLines(buffer, start, end);
+        }
+    }
+
+    /**
+     * Returns the position just after the next line break at or after {@code from}, or {@code end}
+     * if there is none.
+     */
+    private static int nextLineStart(MappedByteBuffer buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == NEWLINE) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private ChunkResult verifyLines(MappedByteBuffer buffer, int start, int end) {
+        ChunkResult result = new ChunkResult(16);
+        byte[] line = new byte[0];
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = nextLineStart(buffer, lineStart, end);
+            // Strip the line break and surrounding whitespace (including '\r' from CRLF files).
+            int from = lineStart;
+            int to = lineEnd;
+            while (from < to && buffer.get(from) <= ' ') {
+                from++;
+            }
+            while (to > from && buffer.get(to - 1) <= ' ') {
+                to--;
+            }
+            lineStart = lineEnd;
+
+            int length = to - from;
+            if (length == 0) {
+                result.addBlank();
+                continue;
+            }
+            if (line.length < length) {
+                line = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                line[i] = buffer.get(from + i);
+            }
+
+            long startNs = System.nanoTime();
+            VerificationResult verification = verifier.verify(line, 0, length);
+            long latencyNs = System.nanoTime() - startNs;
+            result.add(formatResult(verification), latencyNs, verification.isVerified());
+        }
+        return result;
+    }
+
+    static String formatResult(VerificationResult result) {
+        if (!result.isVerified()) {
+            return "FAILED\t" + result.getFailureReason();
+        }
+        AttestationStatement stmt = result.getStatement();
+        return "VERIFIED\t" + stmt.getApkPackageName()
+                + "\tctsProfileMatch=" + stmt.isCtsProfileMatch()
+                + "\tbasicIntegrity=" + stmt.hasBasicIntegrity()
+                + "\ttimestampMs=" + stmt.getTimestampMs();
+    }
+
+    /**
+     * Inflates a gzip compressed file into a temporary file so that it can be memory-mapped.
+     * Returns the original file if it is not compressed.
+     */
+    private static Path inflateIfCompressed(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            if (in.read() != 0x1f || in.read() != 0x8b) {
+                return file;
+            }
+        }
+
+        Path inflated = Files.createTempFile("attestations", ".ndjson");
+        inflated.toFile().deleteOnExit();
+        try (InputStream in = new GZIPInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), 64 * 1024);
+             OutputStream out = Files.newOutputStream(inflated)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return inflated;
+    }
+
+    /**
+     * Verifies all statements in the file and prints one result line per input line, prefixed by
+     * the line number. Blank lines are skipped.
+     */
+    void process(Path file, PrintStream out) throws IOException {
+        Path source = inflateIfCompressed(file);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        long lineNumber = 0;
+        long tokens = 0;
+        long verified = 0;
+        long[] latenciesNs = new long[0];
+        long startNs = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW_SIZE, size - position));
+                int end = buffer.limit();
+                if (position + end < size) {
+                    // Only verify complete lines, the remainder is part of the next window.
+                    while (end > 0 && buffer.get(end - 1) != NEWLINE) {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line at offset " + position + " is longer than "
+                                + WINDOW_SIZE + " bytes.");
+                    }
+                }
+
+                ChunkResult result = pool.invoke(new VerifyTask(buffer, 0, end));
+                for (String line : result.lines) {
+                    lineNumber++;
+                    if (line != null) {
+                        out.println(lineNumber + "\t" + line);
+                    }
+                }
+
+                latenciesNs = Arrays.copyOf(latenciesNs, (int) tokens + result.tokens);
+                System.arraycopy(result.latenciesNs, 0, latenciesNs, (int) tokens, result.tokens);
+                tokens += result.tokens;
+                verified += result.verified;
+                position += end;
+            }
+        }
+        out.flush();
+
+        printSummary(tokens, verified, System.nanoTime() - startNs, latenciesNs);
+    }
+
+    private static void printSummary(long tokens, long verified, long elapsedNs,
+                                     long[] latenciesNs) {
+        Arrays.sort(latenciesNs);
+        double seconds = elapsedNs / 1e9;
+        System.err.println("Processed " + tokens + " attestation statements in "
+                + String.format("%.3f", seconds) + " s on "
+                + ForkJoinPool.commonPool().getParallelism() + " threads.");
+        System.err.println("Verified: " + verified + ", failed: " + (tokens - verified));
+        System.err.println("Throughput: "
+                + String.format("%.1f", seconds > 0 ? tokens / seconds : 0) + " statements/s");
+        System.err.println("Latency per statement (us): p50=" + percentileMicros(latenciesNs, 50)
+                + " p90=" + percentileMicros(latenciesNs, 90)
+                + " p99=" + percentileMicros(latenciesNs, 99)
+                + " max=" + percentileMicros(latenciesNs, 100));
+    }
+
+    private static long percentileMicros(long[] sortedNs, int percentile) {
+        if (sortedNs.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNs.length) - 1;
+        return sortedNs[Math.max(0, index)] / 1000;
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        run(AttestationVerifier.newBuilder(), null, args);
+    }
+
+    /**
+     * Verifies the file named by the arguments like {@link #main}, with a verifier from the given
+     * builder and its audit log, if any. The options in the arguments are applied on top.
+     */
+    static void run(AttestationVerifier.Builder builder, AuditLog auditLog, String[] args)
+            throws IOException, GeneralSecurityException {
+        Path metricsFile = null;
+        while (args.length >= 3 && args.length % 2 == 1) {
+            if (args[0].equals("--trust-store")) {
+                // Trust the given root certificates instead of the system CAs, e.g. the local test
+                // CA that signed generated statements.
+                builder.setTrustStore(TrustStores.fromCertificates(new File(args[1]).toPath()));
+            } else if (args[0].equals("--metrics")) {
+                // Write the metrics of the run in the Prometheus text format, e.g. for the
+                // textfile collector of the node exporter.
+                metricsFile = new File(args[1]).toPath();
+            } else if (args[0].equals("--revocation")) {
+                // Reject certificates that are revoked in the local snapshot.
+                builder.setRevocationChecker(new RevocationChecker(new File(args[1]).toPath()));
+            } else if (args[0].equals("--audit-log")) {
+                // Record the outcome of every statement, see AuditLog.
+                auditLog = AuditLog.newBuilder().setDirectory(new File(args[1]).toPath()).build();
+                builder.setAuditLog(auditLog);
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length != 1) {
+            System.err.println("Usage: BatchVerify [--trust-store <certificate file>] [--metrics "
+                    + "<metrics file>] [--revocation <revocation file or directory>] [--audit-log "
+                    + "<directory>] <file with one signed attestation statement per line>");
+            System.err.println("       Results are prefixed with the line number of the statement "
+                    + "in the file. Blank lines are skipped, but counted in the line numbers.");
+            return;
+        }
+        File file = new File(args[0]);
+        if (!file.isFile()) {
+            System.err.println("Failure: " + file + " is not a readable file.");
+            return;
+        }
+        AttestationVerifier verifier = builder.build();
+        new BatchVerify(verifier).process(file.toPath(), System.out);
+        if (metricsFile != null) {
+            verifier.getMetrics().writePrometheus(metricsFile);
+        }
+        if (auditLog != null) {
+            auditLog.close();
+            System.err.println("Audit log: " + auditLog.getWrittenCount() + " written, "
+                    + auditLog.getDroppedCount() + " dropped");
+        }
+    }
+}
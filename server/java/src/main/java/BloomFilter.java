@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * A Bloom filter of byte arrays, to rule out most lookups in a larger exact set without touching
+ * it.
+ * The bit positions are derived from two {@link Murmur3} hashes by double hashing. The filter is
+ * filled once and then only read, so {@link #mightContain} can be called concurrently once it has
+ * been safely published.
+ */
+final class BloomFilter {
+
+    private static final long SEED1 = 0x5bd1e995L;
+    private static final long SEED2 = 0x9e3779b97f4a7c15L;
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions number of values that will be added
+     * @param falsePositiveRate  rate of false positives at that number of values, e.g. 0.01
+     */
+    BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        int n = Math.max(1, expectedInsertions);
+        // The optimal size and number of hash functions for n values and the given rate.
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, (m + 63) & ~63L);
+        this.bits = new long[(int) (m / 64)];
+        this.bitCount = m;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    void put(byte[] value) {
+        long h1 = Murmur3.hash64(value, 0, value.length, SEED1);
+        long h2 = Murmur3.hash64(value, 0, value.length, SEED2);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if the value was definitely not added, or true if it may have been added.
+     */
+    boolean mightContain(byte[] value) {
+        long h1 = Murmur3.hash64(value, 0, value.length, SEED1);
+        long h2 = Murmur3.hash64(value, 0, value.length, SEED2);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size of the filter in bytes.
+     */
+    int sizeInBytes() {
+        return bits.length * 8;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue for any number of producers and consumers.
+ * It is a ring buffer in which every slot has a sequence number that says whether the slot is
+ * free for the producer of a given position or filled for its consumer, so producers and consumers
+ * only contend on their own position counter and never on a lock. {@link #put} and {@link #take}
+ * wait for a free slot or an element by yielding and then parking with growing intervals, which
+ * gives back-pressure: a producer that is faster than its consumers is slowed down to their pace.
+ */
+final class BoundedQueue<E> {
+
+    private static final long MAX_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder fullWaits = new LongAdder();
+
+    /**
+     * @param capacity maximum number of elements, rounded up to a power of two of at least 2
+     */
+    BoundedQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        // With a single slot, its sequence number couldn't tell a full slot from a free one.
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.elements = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the element if the queue is not full.
+     *
+     * @return whether the element was added
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    // Publishes the element to the consumer of this position.
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                // The slot still holds the element of the previous round.
+                return false;
+            }
+            // Another producer took the position, try the next one.
+        }
+    }
+
+    /**
+     * Removes and returns the oldest element, or returns null if the queue is empty.
+     */
+    E poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position + 1) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // Frees the slot for the producer of the next round.
+                    sequences.lazySet(index, position + capacity);
+                    return element;
+                }
+            } else if (sequence < position + 1) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds the element, waiting for a free slot if the queue is full.
+     */
+    void put(E element) throws InterruptedException {
+        if (offer(element)) {
+            return;
+        }
+        fullWaits.increment();
+        for (int attempt = 0; !offer(element); attempt++) {
+            idle(attempt);
+        }
+    }
+
+    /**
+     * Removes and returns the oldest element, waiting for one if the queue is empty.
+     */
+    E take() throws InterruptedException {
+        E element = poll();
+        for (int attempt = 0; element == null; attempt++) {
+            idle(attempt);
+            element = poll();
+        }
+        return element;
+    }
+
+    private static void idle(int attempt) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (attempt < 16) {
+            Thread.yield();
+        } else {
+            // Up to 1 ms, so that an idle consumer costs next to nothing but wakes up quickly.
+            LockSupport.parkNanos(Math.min(MAX_PARK_NS, 1000L << Math.min(attempt - 16, 10)));
+        }
+    }
+
+    /**
+     * Returns the number of elements in the queue. It may be out of date by the time it returns.
+     */
+    int size() {
+        // Read the head first, so that the size is never negative.
+        long headPosition = head.get();
+        return (int) Math.min(capacity, Math.max(0, tail.get() - headPosition));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of times that {@link #put} found the queue full and had to wait.
+     */
+    long getFullWaits() {
+        return fullWaits.sum();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte arrays, for example for reading request bodies.
+ * Arrays are handed out to one thread at a time, so the pool works with any number of threads,
+ * including virtual threads, unlike per-thread buffers.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    /**
+     * @param bufferSize size of the pooled arrays
+     * @param maxPooled  maximum number of arrays kept in the pool when they are not in use
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Returns an array of the pool's buffer size, which is allocated if the pool is empty.
+     */
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays of a different size, e.g. a buffer that had to be grown,
+     * and arrays that don't fit into the pool are left to the garbage collector.
+     */
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.util.Base64;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Caches the parsed and validated certificate chains from the "x5c" header of attestation
+ * statements.
+ * Only a few distinct attestation certificate chains are in use at any time, so parsing the DER
+ * certificates, validating the chain against the trust store and checking the hostname of the
+ * leaf certificate only needs to be done once per chain instead of once per statement.
+ * Entries are keyed by the SHA-256 digest of the chain. The least recently used entry is evicted
+ * when the cache is full, and entries expire after a fixed time or when the first certificate in
+ * the chain expires, whichever comes first.
+ * <p>
+ * Chains that fail validation are kept in a separate, much smaller cache. The chain comes from the
+ * statement, so a client can send any number of distinct bad chains, and these must not evict the
+ * few good ones.
+ */
+class CertificateChainCache {
+
+    /**
+     * Maximum number of chains that failed validation to keep.
+     */
+    private static final int MAX_FAILED_ENTRIES = 16;
+
+    /**
+     * The result of validating one certificate chain.
+     */
+    static final class Entry {
+        private final X509Certificate[] chain;
+        private final PublicKey leafPublicKey;
+        private final X500Principal[] issuers;
+        private final byte[][] serialNumbers;
+        private final boolean trusted;
+        private final boolean leafVerified;
+        private final long expiresAtMs;
+
+        Entry(X509Certificate[] chain, boolean trusted, boolean leafVerified, long expiresAtMs) {
+            this.chain = chain;
+            this.leafPublicKey = chain != null && chain.length > 0 ? chain[0].getPublicKey() : null;
+            // Kept for revocation checks, which run for every statement.
+            int length = chain != null ? chain.length : 0;
+            this.issuers = new X500Principal[length];
+            this.serialNumbers = new byte[length][];
+            for (int i = 0; i < length; i++) {
+                issuers[i] = chain[i].getIssuerX500Principal();
+                serialNumbers[i] = chain[i].getSerialNumber().toByteArray();
+            }
+            this.trusted = trusted;
+            this.leafVerified = leafVerified;
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        /**
+         * Returns the signing certificate, or null if the chain could not be parsed.
+         */
+        X509Certificate getLeafCertificate() {
+            return chain != null && chain.length > 0 ? chain[0] : null;
+        }
+
+        /**
+         * Returns the public key of the signing certificate, or null if the chain could not be
+         * parsed. It is extracted once per chain instead of once per statement.
+         */
+        PublicKey getLeafPublicKey() {
+            return leafPublicKey;
+        }
+
+        X500Principal[] getIssuers() {
+            return issuers;
+        }
+
+        /**
+         * Returns the serial numbers of the certificates, as returned by
+         * {@code getSerialNumber().toByteArray()}.
+         */
+        byte[][] getSerialNumbers() {
+            return serialNumbers;
+        }
+
+        /**
+         * Returns true if the chain could be parsed and is trusted by the trust manager.
+         */
+        boolean isTrusted() {
+            return trusted;
+        }
+
+        /**
+         * Returns true if the leaf certificate also passed the additional check, for example that
+         * it was issued for the expected hostname.
+         */
+        boolean isLeafVerified() {
+            return leafVerified;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final X509TrustManager trustManager;
+    private final Predicate<X509Certificate> leafCheck;
+
+    private final LinkedHashMap<DigestKey, Entry> entries;
+    private final LinkedHashMap<DigestKey, Entry> failedEntries;
+
+    /**
+     * @param maxEntries maximum number of chains to keep
+     * @param ttlMs      maximum time in milliseconds to keep a validation result
+     * @param trustManager trust manager used to validate the chain
+     * @param leafCheck  additional check of the leaf certificate, e.g. of the hostname
+     */
+    CertificateChainCache(final int maxEntries, long ttlMs, X509TrustManager trustManager,
+                          Predicate<X509Certificate> leafCheck) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.trustManager = trustManager;
+        this.leafCheck = leafCheck;
+        this.entries = new LinkedHashMap<DigestKey, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<DigestKey, CertificateChainCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.failedEntries = new LinkedHashMap<DigestKey, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<DigestKey, CertificateChainCache.Entry> eldest) {
+                return size() > MAX_FAILED_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Returns the validation result for the base64 encoded certificate chain from the "x5c"
+     * header, validating it first if it is not in the cache.
+     * Returns null if the chain is missing or empty.
+     */
+    Entry get(List<String> x5c) {
+        if (x5c == null || x5c.isEmpty()) {
+            return null;
+        }
+
+        DigestKey key = fingerprint(x5c);
+        long now = System.currentTimeMillis();
+        Entry entry = lookup(entries, key, now);
+        if (entry == null) {
+            entry = lookup(failedEntries, key, now);
+        }
+        if (entry != null) {
+            return entry;
+        }
+
+        // Validate outside the lock. Concurrent misses for the same chain may both validate it,
+        // which is harmless.
+        entry = validate(x5c, now);
+        LinkedHashMap<DigestKey, Entry> cache =
+                entry.isTrusted() && entry.isLeafVerified() ? entries : failedEntries;
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static Entry lookup(LinkedHashMap<DigestKey, Entry> cache, DigestKey key, long now) {
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            return entry != null && entry.expiresAtMs > now ? entry : null;
+        }
+    }
+
+    private Entry validate(List<String> x5c, long now) {
+        X509Certificate[] chain;
+        try {
+            chain = parseChain(x5c);
+        } catch (CertificateException | IllegalArgumentException e) {
+            return new Entry(null, false, false, now + ttlMs);
+        }
+
+        long expiresAtMs = now + ttlMs;
+        for (X509Certificate cert : chain) {
+            expiresAtMs = Math.min(expiresAtMs, cert.getNotAfter().getTime());
+        }
+
+        try {
+            trustManager.checkServerTrusted(chain, "RSA");
+        } catch (CertificateException e) {
+            return new Entry(chain, false, false, expiresAtMs);
+        }
+        return new Entry(chain, true, leafCheck.test(chain[0]), expiresAtMs);
+    }
+
+    private static X509Certificate[] parseChain(List<String> x5c) throws CertificateException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        X509Certificate[] chain = new X509Certificate[x5c.size()];
+        for (int i = 0; i < chain.length; i++) {
+            byte[] der = Base64.decodeBase64(x5c.get(i));
+            chain[i] = (X509Certificate) factory.generateCertificate(
+                    new ByteArrayInputStream(der));
+        }
+        return chain;
+    }
+
+    private static DigestKey fingerprint(List<String> x5c) {
+        MessageDigest digest = DigestKey.newSha256();
+        for (String cert : x5c) {
+            digest.update(cert.getBytes(StandardCharsets.US_ASCII));
+            // Separate the certificates so that different splits of the same bytes differ.
+            digest.update((byte) ',');
+        }
+        return DigestKey.of(digest.digest());
+    }
+
+    /**
+     * Returns the platform's default trust manager, which trusts the system CA certificates.
+     */
+    static X509TrustManager defaultTrustManager() throws GeneralSecurityException {
+        return trustManagerFor(null);
+    }
+
+    /**
+     * Returns a trust manager for the given trust store, or for the system CA certificates if the
+     * trust store is null.
+     */
+    static X509TrustManager trustManagerFor(KeyStore trustStore) throws GeneralSecurityException {
+        TrustManagerFactory factory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(trustStore);
+        for (TrustManager manager : factory.getTrustManagers()) {
+            if (manager instanceof X509TrustManager) {
+                return (X509TrustManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509TrustManager available.");
+    }
+}
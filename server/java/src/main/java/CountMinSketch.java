@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch that estimates how often each value was added, in fixed memory.
+ * Estimates are never too low. With a width of w and a depth of d they are too high by at most
+ * {@code e / w} times the total count with a probability of {@code 1 - e^-d}. Values are added as
+ * 64 bit hashes, e.g. from {@link Murmur3}, and the row positions are derived from the hash by
+ * double hashing. All methods can be called concurrently.
+ */
+final class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray counts;
+
+    /**
+     * @param depth number of rows, e.g. 4
+     * @param width counters per row, e.g. 2048
+     */
+    CountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException("depth: " + depth + ", width: " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counts = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * Adds one occurrence of the value with the given hash and returns its new estimated count.
+     */
+    long add(long hash) {
+        long h2 = secondHash(hash);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counts.incrementAndGet(index(row, hash, h2)));
+        }
+        return min;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of the value with the given hash.
+     */
+    long estimate(long hash) {
+        long h2 = secondHash(hash);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counts.get(index(row, hash, h2)));
+        }
+        return min;
+    }
+
+    private int index(int row, long h1, long h2) {
+        return row * width + (int) Math.floorMod(h1 + row * h2, (long) width);
+    }
+
+    private static long secondHash(long hash) {
+        // An odd multiplier of the rotated hash, so that the rows are independent of each other.
+        return Long.rotateLeft(hash, 32) * 0x9e3779b97f4a7c15L | 1;
+    }
+
+    /**
+     * Returns the memory used by the counters in bytes.
+     */
+    int sizeInBytes() {
+        return depth * width * 8;
+    }
+}
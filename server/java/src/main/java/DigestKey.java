@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SHA-256 digest held as four longs, for use as a compact hash map key.
+ */
+final class DigestKey {
+
+    static final int LENGTH = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private DigestKey(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Wraps an existing 32 byte digest. Returns null if the digest has a different length.
+     */
+    static DigestKey of(byte[] digest) {
+        if (digest == null || digest.length != LENGTH) {
+            return null;
+        }
+        return new DigestKey(readLong(digest, 0), readLong(digest, 8), readLong(digest, 16),
+                readLong(digest, 24));
+    }
+
+    /**
+     * Returns a new SHA-256 message digest.
+     */
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DigestKey)) {
+            return false;
+        }
+        DigestKey other = (DigestKey) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // The digest is uniformly distributed, so any of its bits make a good hash code.
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", w0, w1, w2, w3);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * The reasons why a signed attestation statement could not be verified.
+ * The {@link AuditLog} stores the ordinal of the reason, so new reasons must be added at the end.
+ */
+public enum FailureReason {
+    /**
+     * The statement is not a JSON Web Signature, or its header could not be parsed.
+     */
+    INVALID_JWS,
+    /**
+     * The statement is not signed with RS256.
+     */
+    UNSUPPORTED_ALGORITHM,
+    /**
+     * The certificate chain could not be parsed or is not trusted.
+     */
+    UNTRUSTED_CERTIFICATE_CHAIN,
+    /**
+     * A certificate of the chain is revoked in the {@link RevocationSnapshot}.
+     */
+    REVOKED_CERTIFICATE,
+    /**
+     * The signing certificate is not issued for the attestation hostname.
+     */
+    HOSTNAME_MISMATCH,
+    /**
+     * The signature does not match the statement.
+     */
+    BAD_SIGNATURE,
+    /**
+     * The payload could not be parsed into an {@link AttestationStatement}.
+     */
+    INVALID_PAYLOAD,
+    /**
+     * The Android Device Verification API responded with an error.
+     */
+    API_ERROR,
+    /**
+     * The Android Device Verification API could not be reached.
+     */
+    NETWORK_ERROR,
+    /**
+     * The statement was not verified because it is larger than the {@link AdmissionController}
+     * accepts.
+     */
+    TOO_LARGE,
+    /**
+     * The statement was not verified because the {@link AdmissionController} was at its limit of
+     * statements or bytes being verified, or the {@link NonceReplayRegistry} is full. It can be
+     * submitted again later.
+     */
+    OVERLOADED,
+    /**
+     * The statement was not verified because its caller or package was over its rate limit in the
+     * {@link AdmissionController}. It can be submitted again later.
+     */
+    RATE_LIMITED,
+    /**
+     * The statement is valid, but its nonce was already used by an earlier statement in the
+     * {@link NonceReplayRegistry}.
+     */
+    REPLAYED_NONCE,
+    /**
+     * The statement is valid, but too old or too far in the future to be checked for replay by
+     * the {@link NonceReplayRegistry}, or it has no nonce.
+     */
+    STALE_STATEMENT,
+    /**
+     * The statement is valid, but its nonce was not issued by the {@link NonceIssuer} of the
+     * server to the client that submitted it.
+     */
+    INVALID_NONCE,
+    /**
+     * The statement is valid, but its nonce was issued by the {@link NonceIssuer} too long ago.
+     */
+    EXPIRED_NONCE
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values added to it in fixed memory.
+ * With {@code 2^precision} registers the standard error is about {@code 1.04 / sqrt(2^precision)},
+ * e.g. 1.6% for a precision of 12, which takes 4 KB. Values are added as 64 bit hashes, e.g. from
+ * {@link Murmur3}. The registers are packed four to an int and updated with compare-and-set, so
+ * values can be added and the estimate read concurrently without locks. Most additions don't
+ * change a register and only read it.
+ */
+final class HyperLogLog {
+
+    private final int precision;
+    private final int registerCount;
+    private final AtomicIntegerArray registers;
+
+    HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision: " + precision);
+        }
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+        this.registers = new AtomicIntegerArray(registerCount / 4);
+    }
+
+    /**
+     * Adds a value by its 64 bit hash.
+     */
+    void add(long hash) {
+        int register = (int) (hash >>> (64 - precision));
+        // The rank is the position of the first set bit in the remaining bits, at most 65 - p.
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        int index = register >>> 2;
+        int shift = (register & 3) * 8;
+        while (true) {
+            int packed = registers.get(index);
+            if (((packed >>> shift) & 0xff) >= rank) {
+                return;
+            }
+            int updated = (packed & ~(0xff << shift)) | (rank << shift);
+            if (registers.compareAndSet(index, packed, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct values.
+     */
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < registers.length(); i++) {
+            int packed = registers.get(i);
+            for (int shift = 0; shift < 32; shift += 8) {
+                int rank = (packed >>> shift) & 0xff;
+                sum += 1.0 / (1L << rank);
+                if (rank == 0) {
+                    zeros++;
+                }
+            }
+        }
+        double m = registerCount;
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities.
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the memory used by the registers in bytes.
+     */
+    int sizeInBytes() {
+        return registerCount;
+    }
+}
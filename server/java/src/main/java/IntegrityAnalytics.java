@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live integrity statistics of verified statements, for dashboards and to spot modified builds.
+ * <ul>
+ * <li>The number of statements and how many of them matched the CTS profile, passed the basic
+ * integrity check and were evaluated with the BASIC and HARDWARE_BACKED evaluation types, per APK
+ * package name and per APK certificate digest, over a sliding window. The counters are
+ * {@link SlidingWindowCounters}, so recording threads don't contend.</li>
+ * <li>The number of distinct nonces and distinct APK digests per package, estimated with
+ * {@link HyperLogLog} sketches since the analytics were created. A package with many more APK
+ * digests than releases is a sign of modified builds.</li>
+ * <li>How often an APK digest was seen for a package and how often a nonce was seen, estimated
+ * with {@link CountMinSketch} sketches. A nonce that was seen more than once was replayed.</li>
+ * </ul>
+ * The memory is fixed: each tracked package takes about 8 KB for its sketches plus its window, and
+ * beyond the configured number of packages or certificate digests the statements are counted
+ * under {@link #OTHER}. All methods can be called concurrently.
+ */
+public final class IntegrityAnalytics {
+
+    /**
+     * The key that packages and certificate digests are counted under once the maximum number of
+     * keys is tracked.
+     */
+    public static final String OTHER = "(other)";
+
+    private static final int TOTAL = 1;
+    private static final int CTS_PROFILE_MATCH = 1 << 1;
+    private static final int BASIC_INTEGRITY = 1 << 2;
+    private static final int BASIC_EVALUATION = 1 << 3;
+    private static final int HARDWARE_BACKED_EVALUATION = 1 << 4;
+    private static final int COUNTER_COUNT = 5;
+
+    private static final ByteBuffer OTHER_DIGEST = ByteBuffer.allocate(0);
+
+    private static final int HLL_PRECISION = 12;
+    private static final long NONCE_SEED = 0x6e6f6e6365L;
+    private static final long APK_DIGEST_SEED = 0x61706bL;
+
+    /**
+     * The counters of one package or certificate digest over the sliding window, and for
+     * packages the sketches of their distinct nonces and APK digests.
+     */
+    public static final class Stats {
+        private final String key;
+        private final long[] counts;
+        private final long distinctNonces;
+        private final long distinctApkDigests;
+
+        Stats(String key, long[] counts, long distinctNonces, long distinctApkDigests) {
+            this.key = key;
+            this.counts = counts;
+            this.distinctNonces = distinctNonces;
+            this.distinctApkDigests = distinctApkDigests;
+        }
+
+        /**
+         * Returns the package name or the base64 encoded certificate digest.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return counts[0];
+        }
+
+        public long getCtsProfileMatchCount() {
+            return counts[1];
+        }
+
+        public long getBasicIntegrityCount() {
+            return counts[2];
+        }
+
+        public long getBasicEvaluationCount() {
+            return counts[3];
+        }
+
+        public long getHardwareBackedEvaluationCount() {
+            return counts[4];
+        }
+
+        /**
+         * Returns the fraction of statements that matched the CTS profile, or 0 if there were no
+         * statements in the window.
+         */
+        public double getCtsProfileMatchRate() {
+            return rate(counts[1]);
+        }
+
+        public double getBasicIntegrityRate() {
+            return rate(counts[2]);
+        }
+
+        public double getHardwareBackedEvaluationRate() {
+            return rate(counts[4]);
+        }
+
+        private double rate(long count) {
+            return counts[0] == 0 ? 0 : (double) count / counts[0];
+        }
+
+        /**
+         * Returns the estimated number of distinct nonces of the package, or -1 for certificate
+         * digests.
+         */
+        public long getDistinctNonces() {
+            return distinctNonces;
+        }
+
+        /**
+         * Returns the estimated number of distinct APK digests of the package, or -1 for
+         * certificate digests.
+         */
+        public long getDistinctApkDigests() {
+            return distinctApkDigests;
+        }
+    }
+
+    /**
+     * The statistics of all packages and certificate digests at one point in time, ordered by the
+     * number of statements in the window, most first.
+     */
+    public static final class Snapshot {
+        private final long windowMs;
+        private final List<Stats> packages;
+        private final List<Stats> certificateDigests;
+
+        Snapshot(long windowMs, List<Stats> packages, List<Stats> certificateDigests) {
+            this.windowMs = windowMs;
+            this.packages = packages;
+            this.certificateDigests = certificateDigests;
+        }
+
+        public long getWindowMs() {
+            return windowMs;
+        }
+
+        public List<Stats> getPackages() {
+            return packages;
+        }
+
+        public List<Stats> getCertificateDigests() {
+            return certificateDigests;
+        }
+    }
+
+    private static final class PackageState {
+        final SlidingWindowCounters window;
+        final HyperLogLog nonces = new HyperLogLog(HLL_PRECISION);
+        final HyperLogLog apkDigests = new HyperLogLog(HLL_PRECISION);
+
+        PackageState(SlidingWindowCounters window) {
+            this.window = window;
+        }
+    }
+
+    private final int bucketCount;
+    private final long bucketMs;
+    private final int maxKeys;
+    private final ConcurrentMap<String, PackageState> packages = new ConcurrentHashMap<>();
+    // Keyed by the digest bytes so that recording doesn't have to encode them.
+    private final ConcurrentMap<ByteBuffer, SlidingWindowCounters> certificateDigests =
+            new ConcurrentHashMap<>();
+    private final CountMinSketch apkDigestCounts = new CountMinSketch(4, 8192);
+    private final CountMinSketch nonceCounts = new CountMinSketch(4, 8192);
+
+    /**
+     * @param window   length of the sliding window
+     * @param buckets  number of buckets the window is divided into, e.g. 60 for one minute
+     *                 buckets over an hour
+     * @param maxKeys  maximum number of packages, and of certificate digests, to track
+     */
+    public IntegrityAnalytics(long window, TimeUnit unit, int buckets, int maxKeys) {
+        if (buckets < 1 || unit.toMillis(window) < buckets) {
+            throw new IllegalArgumentException("window: " + window + " " + unit + ", buckets: "
+                    + buckets);
+        }
+        this.bucketCount = buckets;
+        this.bucketMs = unit.toMillis(window) / buckets;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Adds a verified statement to the statistics.
+     */
+    public void record(AttestationStatement stmt) {
+        record(stmt, System.currentTimeMillis());
+    }
+
+    void record(AttestationStatement stmt, long nowMs) {
+        int mask = TOTAL
+                | (stmt.isCtsProfileMatch() ? CTS_PROFILE_MATCH : 0)
+                | (stmt.hasBasicIntegrity() ? BASIC_INTEGRITY : 0)
+                | (stmt.hasBasicEvaluationType() ? BASIC_EVALUATION : 0)
+                | (stmt.hasHardwareBackedEvaluationType() ? HARDWARE_BACKED_EVALUATION : 0);
+
+        String packageName = stmt.getApkPackageName();
+        PackageState state = packageState(packageName == null ? "" : packageName);
+        state.window.increment(nowMs, mask);
+
+        byte[] nonce = stmt.nonce();
+        if (nonce != null) {
+            long hash = Murmur3.hash64(nonce, 0, nonce.length, NONCE_SEED);
+            state.nonces.add(hash);
+            nonceCounts.add(hash);
+        }
+        byte[] apkDigest = stmt.apkDigestSha256();
+        if (apkDigest != null) {
+            long hash = Murmur3.hash64(apkDigest, 0, apkDigest.length, APK_DIGEST_SEED);
+            state.apkDigests.add(hash);
+            apkDigestCounts.add(apkDigestKey(packageName, hash));
+        }
+        byte[][] certificates = stmt.apkCertificateDigestSha256();
+        if (certificates != null) {
+            for (byte[] certificate : certificates) {
+                if (certificate != null) {
+                    certificateWindow(certificate).increment(nowMs, mask);
+                }
+            }
+        }
+    }
+
+    private PackageState packageState(String packageName) {
+        PackageState state = packages.get(packageName);
+        if (state != null) {
+            return state;
+        }
+        // The limit may be exceeded by a few keys when packages are added concurrently.
+        String key = packages.size() < maxKeys ? packageName : OTHER;
+        state = packages.get(key);
+        if (state == null) {
+            state = new PackageState(new SlidingWindowCounters(COUNTER_COUNT, bucketCount,
+                    bucketMs));
+            PackageState existing = packages.putIfAbsent(key, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
+    }
+
+    private SlidingWindowCounters certificateWindow(byte[] digest) {
+        SlidingWindowCounters window = certificateDigests.get(ByteBuffer.wrap(digest));
+        if (window != null) {
+            return window;
+        }
+        // The statement's array is not copied by the accessor, so copy it before keeping it.
+        ByteBuffer key = certificateDigests.size() < maxKeys
+                ? ByteBuffer.wrap(digest.clone()) : OTHER_DIGEST;
+        window = certificateDigests.get(key);
+        if (window == null) {
+            window = new SlidingWindowCounters(COUNTER_COUNT, bucketCount, bucketMs);
+            SlidingWindowCounters existing = certificateDigests.putIfAbsent(key, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        return window;
+    }
+
+    private static long apkDigestKey(String packageName, long apkDigestHash) {
+        return packageName == null ? apkDigestHash
+                : apkDigestHash * 31 + packageName.hashCode();
+    }
+
+    /**
+     * Returns the estimated number of verified statements of the package with the given APK
+     * digest since the analytics were created.
+     */
+    public long estimateApkDigestCount(String packageName, byte[] apkDigestSha256) {
+        long hash = Murmur3.hash64(apkDigestSha256, 0, apkDigestSha256.length, APK_DIGEST_SEED);
+        return apkDigestCounts.estimate(apkDigestKey(packageName, hash));
+    }
+
+    /**
+     * Returns the estimated number of verified statements with the given nonce since the
+     * analytics were created.
+     */
+    public long estimateNonceCount(byte[] nonce) {
+        return nonceCounts.estimate(Murmur3.hash64(nonce, 0, nonce.length, NONCE_SEED));
+    }
+
+    /**
+     * Returns the current statistics.
+     */
+    public Snapshot snapshot() {
+        long nowMs = System.currentTimeMillis();
+        List<Stats> packageStats = new ArrayList<>();
+        for (Map.Entry<String, PackageState> entry : packages.entrySet()) {
+            PackageState state = entry.getValue();
+            packageStats.add(new Stats(entry.getKey(), state.window.sum(nowMs),
+                    state.nonces.estimate(), state.apkDigests.estimate()));
+        }
+        List<Stats> certificateStats = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, SlidingWindowCounters> entry
+                : certificateDigests.entrySet()) {
+            ByteBuffer digest = entry.getKey();
+            String key = digest == OTHER_DIGEST ? OTHER
+                    : Base64.getEncoder().encodeToString(digest.array());
+            certificateStats.add(new Stats(key, entry.getValue().sum(nowMs), -1, -1));
+        }
+        Comparator<Stats> byCount = new Comparator<Stats>() {
+            @Override
+            public int compare(Stats a, Stats b) {
+                return Long.compare(b.getCount(), a.getCount());
+            }
+        };
+        Collections.sort(packageStats, byCount);
+        Collections.sort(certificateStats, byCount);
+        return new Snapshot(bucketMs * bucketCount, Collections.unmodifiableList(packageStats),
+                Collections.unmodifiableList(certificateStats));
+    }
+
+    /**
+     * Writes the current statistics as gauges in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Snapshot snapshot = snapshot();
+        String window = ",window_seconds=\"" + snapshot.getWindowMs() / 1000 + "\"";
+        String[] names = {"statements", "cts_profile_match", "basic_integrity",
+                "basic_evaluation", "hardware_backed_evaluation"};
+        for (int counter = 0; counter < names.length; counter++) {
+            String name = "attestation_window_" + names[counter];
+            out.write("# TYPE " + name + " gauge\n");
+            for (Stats stats : snapshot.getPackages()) {
+                out.write(name + "{package=\"" + escape(stats.getKey()) + "\"" + window + "} "
+                        + stats.counts[counter] + "\n");
+            }
+            for (Stats stats : snapshot.getCertificateDigests()) {
+                out.write(name + "{apk_certificate_digest=\"" + escape(stats.getKey()) + "\""
+                        + window + "} " + stats.counts[counter] + "\n");
+            }
+        }
+        out.write("# HELP attestation_distinct_nonces Estimated distinct nonces per package.\n");
+        out.write("# TYPE attestation_distinct_nonces gauge\n");
+        for (Stats stats : snapshot.getPackages()) {
+            out.write("attestation_distinct_nonces{package=\"" + escape(stats.getKey()) + "\"} "
+                    + stats.getDistinctNonces() + "\n");
+        }
+        out.write("# HELP attestation_distinct_apk_digests Estimated distinct APK digests per "
+                + "package.\n");
+        out.write("# TYPE attestation_distinct_apk_digests gauge\n");
+        for (Stats stats : snapshot.getPackages()) {
+            out.write("attestation_distinct_apk_digests{package=\"" + escape(stats.getKey())
+                    + "\"} " + stats.getDistinctApkDigests() + "\n");
+        }
+    }
+
+    /**
+     * Escapes a label value for the Prometheus text format.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * Finds the three parts of a JWS in compact serialization by their offsets, without splitting
+ * the JWS into substrings.
+ * The format of a JWS is:
+ * {@code <Base64url encoded header>.<Base64url encoded JSON data>.<Base64url encoded signature>}
+ * <p>
+ * An instance holds the offsets of the last tokenized JWS and can be reused, but not shared
+ * between threads.
+ */
+final class JwsTokenizer {
+
+    private int start;
+    private int firstDot;
+    private int secondDot;
+    private int end;
+
+    /**
+     * Finds the parts of the JWS in {@code length} bytes starting at {@code offset}.
+     *
+     * @return true if the JWS consists of three non-empty parts
+     */
+    boolean tokenize(byte[] jws, int offset, int length) {
+        start = offset;
+        end = offset + length;
+        firstDot = -1;
+        secondDot = -1;
+        for (int i = offset; i < end; i++) {
+            if (jws[i] == '.') {
+                if (firstDot < 0) {
+                    firstDot = i;
+                } else if (secondDot < 0) {
+                    secondDot = i;
+                } else {
+                    return false;
+                }
+            }
+        }
+        return isValid();
+    }
+
+    /**
+     * Finds the parts of the JWS in the string.
+     *
+     * @return true if the JWS consists of three non-empty parts
+     */
+    boolean tokenize(CharSequence jws) {
+        start = 0;
+        end = jws.length();
+        firstDot = -1;
+        secondDot = -1;
+        for (int i = 0; i < end; i++) {
+            if (jws.charAt(i) == '.') {
+                if (firstDot < 0) {
+                    firstDot = i;
+                } else if (secondDot < 0) {
+                    secondDot = i;
+                } else {
+                    return false;
+                }
+            }
+        }
+        return isValid();
+    }
+
+    private boolean isValid() {
+        return firstDot > start && secondDot > firstDot + 1 && end > secondDot + 1;
+    }
+
+    int headerStart() {
+        return start;
+    }
+
+    int headerEnd() {
+        return firstDot;
+    }
+
+    int payloadStart() {
+        return firstDot + 1;
+    }
+
+    int payloadEnd() {
+        return secondDot;
+    }
+
+    int signatureStart() {
+        return secondDot + 1;
+    }
+
+    int signatureEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the length of the signed content, the encoded header and payload including the dot
+     * between them, which starts at {@link #headerStart()}.
+     */
+    int signedContentLength() {
+        return secondDot - start;
+    }
+}
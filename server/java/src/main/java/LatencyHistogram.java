@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed relative precision, in the style of
+ * HdrHistogram.
+ * Each power of two is split into 32 linear sub-buckets, so a recorded value is off by at most
+ * about 3%, from 1 ns up to {@link #MAX_VALUE_NS}. Recording a value is a single atomic increment
+ * of a counter, without allocation or locking, so it can be called from many threads on the hot
+ * path. Reads are not synchronized with concurrent recordings and may miss the latest values.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Largest value that can be told apart, about 18 minutes. Larger values are recorded as it.
+     */
+    static final long MAX_VALUE_NS = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE_NS) + 1);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNs = new LongAdder();
+
+    /**
+     * Returns the bucket of the value. Values below {@link #SUB_BUCKET_COUNT} have a bucket each,
+     * larger values share a bucket with the values that have the same top
+     * {@link #SUB_BUCKET_BITS} bits.
+     */
+    private static int indexOf(long valueNs) {
+        if (valueNs < SUB_BUCKET_COUNT) {
+            return (int) valueNs;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(valueNs) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (valueNs >>> shift);
+    }
+
+    /**
+     * Returns the largest value that falls into the bucket.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long lowest = (long) (index % SUB_BUCKET_HALF + SUB_BUCKET_HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    void record(long valueNs) {
+        long value = Math.max(0, Math.min(valueNs, MAX_VALUE_NS));
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalNs.add(value);
+    }
+
+    long getCount() {
+        return totalCount.sum();
+    }
+
+    long getTotalNs() {
+        return totalNs.sum();
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the recorded values are, or 0 if
+     * no values were recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    long getValueAtPercentile(double percentile) {
+        long count = 0;
+        int length = counts.length();
+        long[] snapshot = new long[length];
+        for (int i = 0; i < length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return MAX_VALUE_NS;
+    }
+}
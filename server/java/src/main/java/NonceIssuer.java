@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues nonces for attestation requests and checks the nonces of attestation statements, without
+ * storing the issued nonces.
+ * A nonce consists of a version byte, the time it was issued, random bytes and an HMAC-SHA256 over
+ * these and over a client binding, for example a user or session id. A nonce is only valid for the
+ * client it was issued to and for a limited time, which is checked with a single MAC computation.
+ * Every server that shares the key can check the nonces issued by any other, so no shared
+ * database is needed.
+ * <p>
+ * The nonce can still be used more than once within its lifetime. Use a
+ * {@link NonceReplayRegistry} as well to only accept each nonce once.
+ */
+public final class NonceIssuer {
+
+    /**
+     * The outcome of checking a nonce.
+     */
+    public enum Result {
+        /** The nonce was issued by this issuer to the client and has not expired. */
+        VALID,
+        /** The nonce does not have the format of an issued nonce. */
+        MALFORMED,
+        /** The nonce was not issued by this issuer or not to this client. */
+        INVALID_MAC,
+        /** The nonce was issued too long ago, or in the future. */
+        EXPIRED
+    }
+
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    /**
+     * Version 2 distinguishes a null client binding from an empty one in the MAC.
+     */
+    private static final byte VERSION = 2;
+    private static final int TIME_LENGTH = 8;
+    private static final int RANDOM_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int MAC_OFFSET = 1 + TIME_LENGTH + RANDOM_LENGTH;
+
+    /**
+     * Length of an issued nonce in bytes.
+     */
+    public static final int NONCE_LENGTH = MAC_OFFSET + MAC_LENGTH;
+
+    /**
+     * Nonces issued this far ahead of the local clock are still accepted, to allow for clock
+     * differences between servers.
+     */
+    private static final long MAX_CLOCK_SKEW_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final SecretKeySpec key;
+    private final long lifetimeMs;
+    private final SecureRandom random = new SecureRandom();
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_SHA256);
+                mac.init(key);
+                return mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                // The key was already checked in the constructor.
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Creates an issuer of nonces that are valid for the given lifetime.
+     *
+     * @param key secret key of at least 32 bytes, shared by all servers that check the nonces
+     * @throws GeneralSecurityException if the key is too short or HMAC-SHA256 is not available
+     */
+    public NonceIssuer(byte[] key, long lifetime, TimeUnit unit) throws GeneralSecurityException {
+        if (key == null || key.length < MAC_LENGTH) {
+            throw new InvalidKeyException("The key must be at least " + MAC_LENGTH + " bytes.");
+        }
+        this.key = new SecretKeySpec(key.clone(), HMAC_SHA256);
+        this.lifetimeMs = unit.toMillis(lifetime);
+        // Fail early if the key can't be used.
+        Mac.getInstance(HMAC_SHA256).init(this.key);
+    }
+
+    /**
+     * Returns a new nonce for the client with the given binding, e.g. its user or session id.
+     */
+    public byte[] issue(String clientBinding) {
+        return issue(clientBinding, System.currentTimeMillis());
+    }
+
+    byte[] issue(String clientBinding, long nowMs) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        nonce[0] = VERSION;
+        writeLong(nonce, 1, nowMs);
+        byte[] randomBytes = new byte[RANDOM_LENGTH];
+        random.nextBytes(randomBytes);
+        System.arraycopy(randomBytes, 0, nonce, 1 + TIME_LENGTH, RANDOM_LENGTH);
+        computeMac(nonce, clientBinding, nonce, MAC_OFFSET);
+        return nonce;
+    }
+
+    /**
+     * Checks the nonce of a verified attestation statement against the client that is expected to
+     * have requested it.
+     */
+    public Result check(AttestationStatement stmt, String clientBinding) {
+        return check(stmt.nonce(), clientBinding, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks that a nonce was issued to the client and has not expired.
+     */
+    public Result check(byte[] nonce, String clientBinding) {
+        return check(nonce, clientBinding, System.currentTimeMillis());
+    }
+
+    Result check(byte[] nonce, String clientBinding, long nowMs) {
+        if (nonce == null || nonce.length != NONCE_LENGTH || nonce[0] != VERSION) {
+            return Result.MALFORMED;
+        }
+        byte[] expected = new byte[MAC_LENGTH];
+        computeMac(nonce, clientBinding, expected, 0);
+        // Compare in constant time, like MessageDigest.isEqual.
+        int difference = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            difference |= expected[i] ^ nonce[MAC_OFFSET + i];
+        }
+        if (difference != 0) {
+            return Result.INVALID_MAC;
+        }
+        // Only trust the issue time once the MAC shows that it was not modified.
+        long issuedAtMs = readLong(nonce, 1);
+        if (issuedAtMs > nowMs + MAX_CLOCK_SKEW_MS || nowMs - issuedAtMs > lifetimeMs) {
+            return Result.EXPIRED;
+        }
+        return Result.VALID;
+    }
+
+    /**
+     * Computes the MAC over the version, issue time and random bytes of the nonce and over the
+     * client binding. The binding is preceded by a marker byte, so that a nonce issued without a
+     * binding is not valid for a client with an empty binding and vice versa.
+     */
+    private void computeMac(byte[] nonce, String clientBinding, byte[] out, int outOffset) {
+        Mac mac = macs.get();
+        mac.update(nonce, 0, MAC_OFFSET);
+        if (clientBinding == null) {
+            mac.update((byte) 0);
+        } else {
+            mac.update((byte) 1);
+            mac.update(clientBinding.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            mac.doFinal(out, outOffset);
+        } catch (GeneralSecurityException e) {
+            // The output always has room for the MAC.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
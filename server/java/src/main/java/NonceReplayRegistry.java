@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the nonces of accepted attestation statements and rejects statements that reuse one.
+ * A statement is only accepted within a time window around its {@code timestampMs}, so a nonce only
+ * needs to be remembered until the window of its statement has passed. Older statements are
+ * rejected as stale, which keeps the number of remembered nonces bounded by the attestation rate
+ * times the window.
+ * <p>
+ * Nonces are stored as a 128 bit hash in open addressing hash tables. The tables are striped by
+ * hash and each stripe has its own lock, so that concurrent registrations rarely contend. Each
+ * stripe counts its entries in a timing wheel by expiry time, and rebuilds its table once enough
+ * entries have expired, instead of scanning for expired entries on every registration.
+ * The hash is seeded randomly per registry, so nonces can't be chosen to collide.
+ */
+public final class NonceReplayRegistry {
+
+    /**
+     * The outcome of registering a nonce.
+     */
+    public enum Result {
+        /** The nonce was not seen before and is now registered. */
+        ACCEPTED,
+        /** The nonce was already registered by an earlier statement. */
+        REPLAYED,
+        /** The statement is too old or too far in the future to be checked for replay. */
+        STALE,
+        /** The registry is full. The statement is rejected, as its nonce can't be remembered. */
+        CAPACITY_EXCEEDED
+    }
+
+    /**
+     * Number of slots in the timing wheel of each stripe.
+     */
+    private static final int WHEEL_SLOTS = 64;
+
+    /**
+     * Highest fraction of slots that may be occupied, by live or expired entries, before a stripe
+     * rejects new nonces.
+     */
+    private static final double MAX_LOAD = 0.75;
+
+    private final long windowMs;
+    private final long maxClockSkewMs;
+    private final long tickMs;
+    private final long seed1;
+    private final long seed2;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    /**
+     * One segment of the registry, guarded by its own lock.
+     * An entry is stored in the same index of {@link #hashes1}, {@link #hashes2} and
+     * {@link #expiries}. An expiry of 0 marks a free slot, an entry with an expiry in the past is
+     * dead and may be reused, but lookups probe past it.
+     */
+    private static final class Stripe {
+        long[] hashes1;
+        long[] hashes2;
+        long[] expiries;
+        int mask;
+        /** Number of slots that are not free, including dead entries. */
+        int used;
+        /** Number of entries that have not expired yet according to the wheel. */
+        int live;
+        final int maxUsed;
+        /** Number of entries per expiry tick, indexed by tick modulo the wheel size. */
+        final int[] wheel = new int[WHEEL_SLOTS];
+        long currentTick;
+
+        Stripe(int capacity) {
+            hashes1 = new long[capacity];
+            hashes2 = new long[capacity];
+            expiries = new long[capacity];
+            mask = capacity - 1;
+            maxUsed = (int) (capacity * MAX_LOAD);
+        }
+    }
+
+    /**
+     * Creates a registry for statements that are accepted up to {@code windowMs} after their
+     * timestamp and that is sized for up to {@code maxEntries} nonces in that window.
+     */
+    public NonceReplayRegistry(long window, TimeUnit unit, int maxEntries) {
+        this(unit.toMillis(window), TimeUnit.SECONDS.toMillis(30), maxEntries,
+                Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param windowMs       maximum age of an accepted statement
+     * @param maxClockSkewMs maximum time that a statement may be ahead of the local clock
+     * @param maxEntries     number of nonces that the registry must be able to hold
+     * @param concurrency    expected number of threads registering nonces concurrently
+     */
+    NonceReplayRegistry(long windowMs, long maxClockSkewMs, int maxEntries, int concurrency) {
+        if (windowMs <= 0 || maxClockSkewMs < 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("Window and capacity must be positive.");
+        }
+        this.windowMs = windowMs;
+        this.maxClockSkewMs = maxClockSkewMs;
+        // One turn of the wheel, less a few ticks for rounding, covers the window and the clock
+        // skew, which is the longest time that an entry stays live.
+        long lifetimeMs = windowMs + maxClockSkewMs;
+        this.tickMs = Math.max(1, (lifetimeMs + WHEEL_SLOTS - 5) / (WHEEL_SLOTS - 4));
+
+        SecureRandom random = new SecureRandom();
+        this.seed1 = random.nextLong();
+        this.seed2 = random.nextLong();
+
+        int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(concurrency, 1024)) * 2 - 1);
+        // Leave room for dead entries and for nonces that hash unevenly across the stripes.
+        long perStripe = (long) Math.ceil(maxEntries / (double) stripeCount / MAX_LOAD * 1.25) + 1;
+        int capacity = Integer.highestOneBit((int) Math.min(perStripe, 1 << 29) * 2 - 1);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(Math.max(capacity, 16));
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * Registers the nonce of a verified statement. Returns {@link Result#ACCEPTED} only if the
+     * statement is fresh and its nonce was not registered before.
+     * Statements without a valid nonce are treated as stale.
+     */
+    public Result register(AttestationStatement stmt) {
+        return register(stmt.nonce(), stmt.getTimestampMs(), System.currentTimeMillis());
+    }
+
+    /**
+     * Registers a nonce of a statement with the given timestamp.
+     */
+    public Result register(byte[] nonce, long timestampMs) {
+        return register(nonce, timestampMs, System.currentTimeMillis());
+    }
+
+    Result register(byte[] nonce, long timestampMs, long nowMs) {
+        if (nonce == null || nonce.length == 0
+                || timestampMs < nowMs - windowMs || timestampMs > nowMs + maxClockSkewMs) {
+            return Result.STALE;
+        }
+        long hash1 = Murmur3.hash64(nonce, 0, nonce.length, seed1);
+        long hash2 = Murmur3.hash64(nonce, 0, nonce.length, seed2);
+        // The nonce is remembered for as long as its statement is accepted.
+        long expiresAtMs = timestampMs + windowMs + 1;
+
+        Stripe stripe = stripes[(int) (hash2 >>> 32) & stripeMask];
+        synchronized (stripe) {
+            advance(stripe, nowMs);
+            return insert(stripe, hash1, hash2, expiresAtMs, nowMs);
+        }
+    }
+
+    private Result insert(Stripe stripe, long hash1, long hash2, long expiresAtMs, long nowMs) {
+        int reusable = -1;
+        int index = (int) hash1 & stripe.mask;
+        while (true) {
+            long expiry = stripe.expiries[index];
+            if (expiry == 0) {
+                break;
+            }
+            if (stripe.hashes1[index] == hash1 && stripe.hashes2[index] == hash2) {
+                if (expiry > nowMs) {
+                    return Result.REPLAYED;
+                }
+                // The same nonce in an expired entry. The statement is fresh again only if the
+                // nonce was reused much later, so this is accepted like a new nonce.
+                reusable = index;
+                break;
+            }
+            if (expiry <= nowMs && reusable < 0) {
+                reusable = index;
+            }
+            index = (index + 1) & stripe.mask;
+        }
+
+        if (reusable < 0) {
+            if (stripe.used >= stripe.maxUsed) {
+                // Only rebuild when that frees enough slots, otherwise every insert would rebuild.
+                if (stripe.used - stripe.live < stripe.maxUsed / 4) {
+                    return Result.CAPACITY_EXCEEDED;
+                }
+                rebuild(stripe, nowMs);
+                return insert(stripe, hash1, hash2, expiresAtMs, nowMs);
+            }
+            reusable = index;
+            stripe.used++;
+        }
+        stripe.hashes1[reusable] = hash1;
+        stripe.hashes2[reusable] = hash2;
+        stripe.expiries[reusable] = expiresAtMs;
+        stripe.live++;
+        stripe.wheel[(int) (tick(expiresAtMs) % WHEEL_SLOTS)]++;
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Advances the timing wheel of the stripe to the current time, and rebuilds the table if
+     * more than a quarter of it is taken up by expired entries.
+     */
+    private void advance(Stripe stripe, long nowMs) {
+        long nowTick = tick(nowMs);
+        if (nowTick <= stripe.currentTick) {
+            return;
+        }
+        // Entries in a tick have expired once the tick has passed. If the wheel has turned all
+        // the way around, every entry in it has expired.
+        long from = Math.max(stripe.currentTick, nowTick - WHEEL_SLOTS);
+        for (long tick = from; tick < nowTick; tick++) {
+            int slot = (int) (tick % WHEEL_SLOTS);
+            stripe.live -= stripe.wheel[slot];
+            stripe.wheel[slot] = 0;
+        }
+        stripe.currentTick = nowTick;
+
+        if (stripe.used - stripe.live > stripe.expiries.length / 4) {
+            rebuild(stripe, nowMs);
+        }
+    }
+
+    /**
+     * Rehashes the entries that have not expired yet into fresh tables, which drops all dead
+     * entries and shortens the probe sequences.
+     */
+    private void rebuild(Stripe stripe, long nowMs) {
+        long[] hashes1 = stripe.hashes1;
+        long[] hashes2 = stripe.hashes2;
+        long[] expiries = stripe.expiries;
+        int capacity = expiries.length;
+        stripe.hashes1 = new long[capacity];
+        stripe.hashes2 = new long[capacity];
+        stripe.expiries = new long[capacity];
+        stripe.used = 0;
+        stripe.live = 0;
+        Arrays.fill(stripe.wheel, 0);
+
+        for (int i = 0; i < capacity; i++) {
+            long expiry = expiries[i];
+            if (expiry > nowMs) {
+                int index = (int) hashes1[i] & stripe.mask;
+                while (stripe.expiries[index] != 0) {
+                    index = (index + 1) & stripe.mask;
+                }
+                stripe.hashes1[index] = hashes1[i];
+                stripe.hashes2[index] = hashes2[i];
+                stripe.expiries[index] = expiry;
+                stripe.used++;
+                stripe.live++;
+                stripe.wheel[(int) (tick(expiry) % WHEEL_SLOTS)]++;
+            }
+        }
+    }
+
+    private long tick(long timeMs) {
+        return timeMs / tickMs;
+    }
+
+    /**
+     * Returns the number of nonces that are currently remembered. Nonces that expired since the
+     * last registration in their stripe may still be counted.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.live;
+            }
+        }
+        return size;
+    }
+}
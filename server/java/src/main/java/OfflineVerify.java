@@ -15,90 +15,139 @@
  *
  */
 
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.json.webtoken.JsonWebSignature;
-import org.apache.http.conn.ssl.DefaultHostnameVerifier;
 
-import javax.net.ssl.SSLException;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.security.cert.X509Certificate;
+import java.security.KeyStore;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Sample code to verify the device attestation statement offline.
+ * To verify statements from multiple threads in a server, use an {@link AttestationVerifier}
+ * instead.
  */
 public class OfflineVerify {
 
-    private static final DefaultHostnameVerifier HOSTNAME_VERIFIER = new DefaultHostnameVerifier();
+    private static final String HOSTNAME = AttestationVerifier.ATTESTATION_HOSTNAME;
 
-    private static AttestationStatement parseAndVerify(String signedAttestationStatment) {
-        // Parse JSON Web Signature format.
-        JsonWebSignature jws;
-        try {
-            jws = JsonWebSignature.parser(JacksonFactory.getDefaultInstance())
-                    .setPayloadClass(AttestationStatement.class).parse(signedAttestationStatment);
-        } catch (IOException e) {
-            System.err.println("Failure: " + signedAttestationStatment + " is not valid JWS " +
-                    "format.");
-            return null;
-        }
+    /**
+     * Maximum number of distinct certificate chains to keep validation results for.
+     */
+    private static final int CHAIN_CACHE_SIZE = 64;
 
-        // Verify the signature of the JWS and retrieve the signature certificate.
-        X509Certificate cert;
-        try {
-            cert = jws.verifySignature();
-            if (cert == null) {
-                System.err.println("Failure: Signature verification failed.");
-                return null;
-            }
-        } catch (GeneralSecurityException e) {
-            System.err.println(
-                    "Failure: Error during cryptographic verification of the JWS signature.");
-            return null;
-        }
+    /**
+     * Maximum time to keep a validation result, even if the certificates are still valid.
+     */
+    private static final long CHAIN_CACHE_TTL_MS = TimeUnit.HOURS.toMillis(1);
 
-        // Verify the hostname of the certificate.
-        if (!verifyHostname("attest.android.com", cert)) {
-            System.err.println("Failure: Certificate isn't issued for the hostname attest.android" +
-                    ".com.");
-            return null;
-        }
+    /**
+     * The root certificates to trust instead of the system CAs, set with the "--trust-store"
+     * option.
+     */
+    private static KeyStore trustStore;
 
-        // Extract and use the payload data.
-        AttestationStatement stmt = (AttestationStatement) jws.getPayload();
-        return stmt;
-    }
+    /**
+     * How the payload of the JWS is bound, selected with the "--binding" option.
+     */
+    private static PayloadBinding payloadBinding = PayloadBinding.REFLECTIVE;
+
+    /**
+     * The policy that verified statements are checked against, set with the "--policy" option.
+     */
+    private static VerificationPolicy policy;
 
     /**
-     * Verifies that the certificate matches the specified hostname.
-     * Uses the {@link DefaultHostnameVerifier} from the Apache HttpClient library
-     * to confirm that the hostname matches the certificate.
-     *
-     * @param hostname
-     * @param leafCert
-     * @return
+     * The revoked certificates, set with the "--revocation" option.
      */
-    private static boolean verifyHostname(String hostname, X509Certificate leafCert) {
+    private static RevocationChecker revocationChecker;
+
+    /**
+     * The log that the outcome is recorded in, set with the "--audit-log" option.
+     */
+    private static AuditLog auditLog;
+
+    /**
+     * Latency of the stages and failures of the verifications in this process.
+     */
+    static final VerificationMetrics METRICS = new VerificationMetrics();
+
+    /**
+     * Holds the verifier, which is only created when the first statement is verified. Loading
+     * the trust store is one of the slowest parts of the startup, and it isn't needed to print the
+     * usage or to hand over to {@link BatchVerify}.
+     */
+    private static final class VerifierHolder {
+        static final AttestationVerifier VERIFIER = createVerifier();
+    }
+
+    private static AttestationVerifier createVerifier() {
         try {
-            // Check that the hostname matches the certificate. This method throws an exception if
-            // the cert could not be verified.
-            HOSTNAME_VERIFIER.verify(hostname, leafCert);
-            return true;
-        } catch (SSLException e) {
-            e.printStackTrace();
+            // The outcome is recorded in the audit log by the callers, which also see statements
+            // that are rejected before they are verified.
+            return AttestationVerifier.newBuilder()
+                    .setTrustStore(trustStore)
+                    .setChainCacheSize(CHAIN_CACHE_SIZE)
+                    .setChainCacheTtl(CHAIN_CACHE_TTL_MS, TimeUnit.MILLISECONDS)
+                    .setPayloadBinding(payloadBinding)
+                    .setRevocationChecker(revocationChecker)
+                    .setMetrics(METRICS)
+                    .build();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failure: Could not load the trust store.", e);
         }
+    }
 
-        return false;
+    /**
+     * Parses and verifies the statement. Failures are returned with their reason and are not
+     * logged, so that callers that verify many statements are not slowed down by console output.
+     * The statement is tokenized and decoded in place by the {@link AttestationVerifier}, which
+     * also caches the validated certificate chains and checks the hostname and revocation.
+     */
+    static VerificationResult parseAndVerify(String signedAttestationStatment) {
+        return VerifierHolder.VERIFIER.verify(signedAttestationStatment);
     }
 
+    /**
+     * Returns the message that is shown for a failed verification.
+     */
+    private static String describe(VerificationResult result) {
+        switch (result.getFailureReason()) {
+            case INVALID_JWS:
+                return "The statement is not valid JWS format.";
+            case UNTRUSTED_CERTIFICATE_CHAIN:
+                return "Error during cryptographic verification of the JWS signature.";
+            case REVOKED_CERTIFICATE:
+                return "A certificate of the chain is revoked.";
+            case HOSTNAME_MISMATCH:
+                return "Certificate isn't issued for the hostname " + HOSTNAME + ".";
+            case BAD_SIGNATURE:
+                return "Signature verification failed.";
+            case TOO_LARGE:
+            case OVERLOADED:
+            case RATE_LIMITED:
+                return "The statement was rejected by the admission control: "
+                        + result.getFailureReason();
+            default:
+                return "Failed to parse and verify the attestation statement: " + result;
+        }
+    }
 
     private static void process(String signedAttestationStatement) {
-        AttestationStatement stmt = parseAndVerify(signedAttestationStatement);
-        if (stmt == null) {
-            System.err.println("Failure: Failed to parse and verify the attestation statement.");
+        VerificationResult result = parseAndVerify(signedAttestationStatement);
+        if (auditLog != null) {
+            auditLog.record(signedAttestationStatement, result);
+        }
+        if (!result.isVerified()) {
+            System.err.println("Failure: " + describe(result));
             return;
         }
+        AttestationStatement stmt = result.getStatement();
 
         System.out.println("Successfully verified the attestation statement. The content is:");
 
@@ -114,17 +163,216 @@ public class OfflineVerify {
         System.out.println("Has HARDWARE_BACKED evaluation type: " +
                 stmt.hasHardwareBackedEvaluationType());
 
-        System.out.println("\n** This sample only shows how to verify the authenticity of an "
-                + "attestation response. Next, you must check that the server response matches the "
-                + "request by comparing the nonce, package name, timestamp and digest.");
+        checkPolicy(stmt);
+    }
+
+    /**
+     * Checks the statement against the policy, if one was given.
+     */
+    private static void checkPolicy(AttestationStatement stmt) {
+        if (policy == null) {
+            System.out.println("\n** This sample only shows how to verify the authenticity of an "
+                    + "attestation response. Next, you must check that the server response matches "
+                    + "the request by comparing the nonce, package name, timestamp and digest. "
+                    + "Pass a policy with --policy to check them.");
+            return;
+        }
+        VerificationPolicy.Verdict verdict = policy.check(stmt);
+        if (verdict != VerificationPolicy.Verdict.ALLOWED) {
+            System.err.println("Failure: The statement does not match the policy: " + verdict);
+            return;
+        }
+        System.out.println("The statement matches the policy.");
+    }
+
+    /**
+     * Verifies the statements from standard in, or from connections on a local port, until the
+     * input ends or the process is stopped.
+     */
+    private static void stream(String[] args) throws IOException {
+        StreamingPipeline.Builder builder = StreamingPipeline.newBuilder()
+                .setPolicy(policy)
+                .setAuditLog(auditLog);
+        AdmissionController.Builder admissionBuilder = AdmissionController.newBuilder();
+        boolean admissionControl = false;
+        Integer port = null;
+        long statsIntervalSeconds = 10;
+        Path metricsFile = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                printStreamUsage("Usage: ");
+                return;
+            }
+            switch (args[i]) {
+                case "--listen":
+                    // Accept connections on the loopback interface instead of reading standard in.
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--tokenize-threads":
+                    builder.setTokenizeThreads(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--verify-threads":
+                    builder.setVerifyThreads(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--policy-threads":
+                    builder.setPolicyThreads(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--queue-capacity":
+                    builder.setQueueCapacity(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--max-in-flight":
+                    // Statements in the pipeline beyond these limits are rejected with OVERLOADED
+                    // instead of waiting for the verification.
+                    admissionBuilder.setMaxInFlight(Integer.parseInt(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--max-in-flight-bytes":
+                    admissionBuilder.setMaxInFlightBytes(Long.parseLong(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--max-token-size":
+                    admissionBuilder.setMaxTokenSize(Integer.parseInt(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--caller-rate":
+                    // Statements per second and connecting address, with bursts of one second.
+                    double callerRate = Double.parseDouble(args[i + 1]);
+                    admissionBuilder.setCallerRate(callerRate, (int) Math.ceil(callerRate));
+                    admissionControl = true;
+                    break;
+                case "--package-rate":
+                    // Verified statements per second and package name.
+                    double packageRate = Double.parseDouble(args[i + 1]);
+                    admissionBuilder.setPackageRate(packageRate, (int) Math.ceil(packageRate));
+                    admissionControl = true;
+                    break;
+                case "--stats-interval":
+                    // Seconds between the throughput and queue depth reports, 0 to disable them.
+                    statsIntervalSeconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "--metrics":
+                    // Rewritten with every report, e.g. for the node exporter's textfile collector.
+                    metricsFile = new File(args[i + 1]).toPath();
+                    break;
+                default:
+                    printStreamUsage("Usage: ");
+                    return;
+            }
+        }
+
+        if (admissionControl) {
+            builder.setAdmissionController(admissionBuilder.build());
+        }
+        StreamingPipeline pipeline = builder.build().start();
+        if (statsIntervalSeconds > 0) {
+            pipeline.startReporting(statsIntervalSeconds, TimeUnit.SECONDS, metricsFile);
+        }
+        try {
+            if (port != null) {
+                try (ServerSocket serverSocket = new ServerSocket(port, 64,
+                        InetAddress.getLoopbackAddress())) {
+                    System.err.println("Reading attestation statements from port "
+                            + serverSocket.getLocalPort() + ".");
+                    pipeline.serve(serverSocket);
+                }
+            } else {
+                long startNs = System.nanoTime();
+                pipeline.read(System.in);
+                pipeline.close();
+                double seconds = (System.nanoTime() - startNs) / 1e9;
+                System.err.println("Processed " + pipeline.getTokenizedCount()
+                        + " attestation statements in " + String.format("%.3f", seconds) + " s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (auditLog != null) {
+                auditLog.close();
+            }
+        }
+    }
+
+    private static void printStreamUsage(String prefix) {
+        System.err.println(prefix + "OfflineVerify [--binding reflective|streaming] "
+                + "[--trust-store <certificate file>] [--policy <policy file>] [--revocation "
+                + "<revocation file or directory>] [--audit-log <directory>] --stream "
+                + "[--listen <port>] [--tokenize-threads <threads>] [--verify-threads <threads>] "
+                + "[--policy-threads <threads>] [--queue-capacity <statements>] "
+                + "[--max-in-flight <statements>] [--max-in-flight-bytes <bytes>] "
+                + "[--max-token-size <bytes>] [--caller-rate <statements per second>] "
+                + "[--package-rate <statements per second>] [--stats-interval <seconds>] "
+                + "[--metrics <metrics file>]");
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        boolean batch = false;
+        boolean bindingSet = false;
+        while (args.length >= 2 && args[0].startsWith("--")) {
+            if (args[0].equals("--batch")) {
+                // Verify a file of statements, one per line. See BatchVerify for details.
+                batch = true;
+                args = Arrays.copyOfRange(args, 1, args.length);
+                continue;
+            } else if (args[0].equals("--binding")) {
+                // Either "reflective" (the default) or "streaming", see PayloadBinding. Must be
+                // set before the first statement is verified.
+                payloadBinding = PayloadBinding.valueOf(args[1].toUpperCase(Locale.US));
+                bindingSet = true;
+            } else if (args[0].equals("--trust-store")) {
+                // Trust the given root certificates instead of the system CAs, e.g. the local test
+                // CA. Must be set before the first statement is verified.
+                trustStore = TrustStores.fromCertificates(new File(args[1]).toPath());
+            } else if (args[0].equals("--policy")) {
+                // A JSON file with the expected package names and digests, see VerificationPolicy.
+                policy = VerificationPolicy.load(new File(args[1]).toPath());
+            } else if (args[0].equals("--revocation")) {
+                // Revocation lists or serial numbers, see RevocationSnapshot.
+                revocationChecker = new RevocationChecker(new File(args[1]).toPath());
+            } else if (args[0].equals("--audit-log")) {
+                // A directory that the outcome is recorded in, see AuditLog.
+                auditLog = AuditLog.newBuilder().setDirectory(new File(args[1]).toPath()).build();
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (batch) {
+            // The remaining options, e.g. --metrics, are handled by BatchVerify, which binds
+            // with the builder's default unless a binding was given.
+            AttestationVerifier.Builder builder = AttestationVerifier.newBuilder()
+                    .setTrustStore(trustStore)
+                    .setRevocationChecker(revocationChecker)
+                    .setAuditLog(auditLog);
+            if (bindingSet) {
+                builder.setPayloadBinding(payloadBinding);
+            }
+            BatchVerify.run(builder, auditLog, args);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--stream")) {
+            // Verify a continuous stream of statements, see StreamingPipeline.
+            stream(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args.length != 1) {
-            System.err.println("Usage: OfflineVerify <signed attestation statement>");
+            System.err.println("Usage: OfflineVerify [--binding reflective|streaming] "
+                    + "[--trust-store <certificate file>] [--policy <policy file>] [--revocation "
+                    + "<revocation file or directory>] [--audit-log <directory>] <signed "
+                    + "attestation statement>");
+            System.err.println("       OfflineVerify [--binding reflective|streaming] --batch "
+                    + "[--trust-store <certificate file>] [--metrics <metrics file>] [--revocation "
+                    + "<revocation file or directory>] [--audit-log <directory>] <file with one "
+                    + "signed attestation statement per line>");
+            printStreamUsage("       ");
             return;
         }
-        process(args[0]);
+        try {
+            process(args[0]);
+        } finally {
+            if (auditLog != null) {
+                auditLog.close();
+            }
+        }
     }
 
 }
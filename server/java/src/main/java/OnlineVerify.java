@@ -25,12 +25,12 @@ import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.Base64;
 import com.google.api.client.util.Key;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Locale;
 
 /**
  * Sample code to verify the device attestation statement online.
@@ -44,9 +44,46 @@ public class OnlineVerify {
     // and add it here.
     private static final String API_KEY = "YOUR_API_KEY";
 
-    private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+    private static final int TIMEOUT_MS = 10000;
 
-    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+    /**
+     * Holds the HTTP transport and the request factory, which are only created for the first call
+     * to the API. Runs that only print the usage, and classes that only use the static helpers,
+     * such as {@link AsyncOnlineVerifier}, don't pay for their class loading and setup.
+     */
+    private static final class Http {
+        static final HttpTransport TRANSPORT = new NetHttpTransport();
+
+        /**
+         * Prepares requests to the Device Verification API with a parser for JSON data. The
+         * factory and its transport are shared by all requests. To verify many statements
+         * concurrently, use an {@link AsyncOnlineVerifier} instead.
+         */
+        static final HttpRequestFactory REQUEST_FACTORY =
+                TRANSPORT.createRequestFactory(new HttpRequestInitializer() {
+                    @Override
+                    public void initialize(HttpRequest request) {
+                        request.setParser(new JsonObjectParser(jsonFactory()));
+                        request.setConnectTimeout(TIMEOUT_MS);
+                        request.setReadTimeout(TIMEOUT_MS);
+                    }
+                });
+    }
+
+    /**
+     * How the data part of the JWS is bound, selected with the "--binding" option.
+     */
+    private static PayloadBinding payloadBinding = PayloadBinding.REFLECTIVE;
+
+    /**
+     * The policy that verified statements are checked against, set with the "--policy" option.
+     */
+    private static VerificationPolicy policy;
+
+    /**
+     * Latency of the API calls and failures of the verifications in this process.
+     */
+    static final VerificationMetrics METRICS = new VerificationMetrics();
     private static final String URL =
             "https://www.googleapis.com/androidcheck/v1/attestations/verify?key="
                     + API_KEY;
@@ -78,93 +115,134 @@ public class OnlineVerify {
         public String error;
     }
 
-    private static VerificationResponse onlineVerify(VerificationRequest request) {
-        // Prepare a request to the Device Verification API and set a parser for JSON data.
-        HttpRequestFactory requestFactory =
-                HTTP_TRANSPORT.createRequestFactory(new HttpRequestInitializer() {
-                    @Override
-                    public void initialize(HttpRequest request) {
-                        request.setParser(new JsonObjectParser(JSON_FACTORY));
-                    }
-                });
+    private static VerificationResponse onlineVerify(VerificationRequest request)
+            throws IOException {
         GenericUrl url = new GenericUrl(URL);
-        HttpRequest httpRequest;
+        long startNs = System.nanoTime();
         try {
             // Post the request with the verification statement to the API.
-            httpRequest = requestFactory.buildPostRequest(url, new JsonHttpContent(JSON_FACTORY,
-                    request));
+            HttpRequest httpRequest = Http.REQUEST_FACTORY.buildPostRequest(url,
+                    new JsonHttpContent(jsonFactory(), request));
             // Parse the returned data as a verification response.
             return httpRequest.execute().parseAs(VerificationResponse.class);
-        } catch (IOException e) {
-            System.err.println(
-                    "Failure: Network error while connecting to the Google Service " + URL + ".");
-            System.err.println("Ensure that you added your API key and enabled the Android device "
-                    + "verification API.");
-            return null;
+        } finally {
+            METRICS.recordStage(VerificationMetrics.Stage.ONLINE_CALL, System.nanoTime() - startNs);
         }
     }
 
     /**
-     * Extracts the data part from a JWS signature.
+     * Extracts the data part from a JWS signature. Returns null if it is not a JWS.
      */
-    private static byte[] extractJwsData(String jws) {
+    static byte[] extractJwsData(String jws) {
         // The format of a JWS is:
         // <Base64url encoded header>.<Base64url encoded JSON data>.<Base64url encoded signature>
-        // Split the JWS into the 3 parts and return the JSON data part.
-        String[] parts = jws.split("[.]");
-        if (parts.length != 3) {
-            System.err.println("Failure: Illegal JWS signature format. The JWS consists of "
-                    + parts.length + " parts instead of 3.");
+        // Find the 3 parts by their offsets and decode the JSON data part.
+        JwsTokenizer tokenizer = new JwsTokenizer();
+        if (!tokenizer.tokenize(jws)) {
+            // The JWS doesn't consist of 3 non-empty parts.
             return null;
         }
-        return Base64.decodeBase64(parts[1]);
+        return Base64Url.decode(jws, tokenizer.payloadStart(), tokenizer.payloadEnd());
+    }
+
+    /**
+     * Binds the JSON data part of a JWS signature to an {@link AttestationStatement}.
+     */
+    static AttestationStatement parseJwsData(byte[] data, PayloadBinding binding)
+            throws IOException {
+        return binding.bind(jsonFactory(), data, 0, data.length);
     }
 
-    private static AttestationStatement parseAndVerify(String signedAttestationStatment) {
+    /**
+     * Returns the shared JSON factory, which is created on first use and also used by
+     * {@link OfflineVerify} and the {@link AttestationVerifier}.
+     */
+    private static JsonFactory jsonFactory() {
+        return JacksonFactory.getDefaultInstance();
+    }
+
+    /**
+     * Verifies the statement with the API and parses it. Failures are returned with their reason
+     * and are not logged.
+     */
+    private static VerificationResult parseAndVerify(String signedAttestationStatment) {
         // Send the signed attestation statement to the API for verification.
         VerificationRequest request = new VerificationRequest(signedAttestationStatment);
-        VerificationResponse response = onlineVerify(request);
-        if (response == null) {
-            return null;
+        VerificationResponse response;
+        try {
+            response = onlineVerify(request);
+        } catch (IOException e) {
+            return fail(FailureReason.NETWORK_ERROR, e);
         }
 
         if (response.error != null) {
-            System.err.println(
-                    "Failure: The API encountered an error processing this request: "
-                            + response.error);
-            return null;
+            // Keep the message of the API. This follows a network round-trip, so the cost of the
+            // exception doesn't matter.
+            return fail(FailureReason.API_ERROR, new IOException(response.error));
         }
 
         if (!response.isValidSignature) {
-            System.err.println(
-                    "Failure: The cryptographic signature of the attestation statement couldn't be "
-                            + "verified.");
-            return null;
+            return fail(FailureReason.BAD_SIGNATURE, null);
         }
 
-        System.out.println("Sucessfully verified the signature of the attestation statement.");
-
         // The signature is valid, extract the data JSON from the JWS signature.
         byte[] data = extractJwsData(signedAttestationStatment);
+        if (data == null) {
+            return fail(FailureReason.INVALID_JWS, null);
+        }
 
         // Parse and use the data JSON.
+        long startNs = System.nanoTime();
+        AttestationStatement stmt;
         try {
-            return JSON_FACTORY.fromInputStream(new ByteArrayInputStream(data),
-                    AttestationStatement.class);
-        } catch (IOException e) {
-            System.err.println("Failure: Failed to parse the data portion of the JWS as valid " +
-                    "JSON.");
-            return null;
+            stmt = parseJwsData(data, payloadBinding);
+        } catch (IOException | IllegalArgumentException e) {
+            return fail(FailureReason.INVALID_PAYLOAD, e);
+        }
+        METRICS.recordStage(VerificationMetrics.Stage.PAYLOAD_BIND, System.nanoTime() - startNs);
+        METRICS.recordVerified();
+        return VerificationResult.success(stmt);
+    }
+
+    private static VerificationResult fail(FailureReason reason, Exception cause) {
+        METRICS.recordFailure(reason);
+        return VerificationResult.failure(reason, cause);
+    }
+
+    /**
+     * Returns the message that is shown for a failed verification.
+     */
+    private static String describe(VerificationResult result) {
+        switch (result.getFailureReason()) {
+            case NETWORK_ERROR:
+                return "Network error while connecting to the Google Service " + URL + ".\n"
+                        + "Ensure that you added your API key and enabled the Android device "
+                        + "verification API.";
+            case API_ERROR:
+                return "The API encountered an error processing this request: "
+                        + result.getCause().getMessage();
+            case BAD_SIGNATURE:
+                return "The cryptographic signature of the attestation statement couldn't be "
+                        + "verified.";
+            case INVALID_JWS:
+                return "Illegal JWS signature format. The JWS doesn't consist of 3 non-empty "
+                        + "parts.";
+            case INVALID_PAYLOAD:
+                return "Failed to parse the data portion of the JWS as valid JSON.";
+            default:
+                return "Failed to parse and verify the attestation statement: " + result;
         }
     }
 
     private static void process(String signedAttestationStatement) {
-        AttestationStatement stmt = parseAndVerify(signedAttestationStatement);
-        if (stmt == null) {
-            System.err.println("Failure: Failed to parse and verify the attestation statement.");
+        VerificationResult result = parseAndVerify(signedAttestationStatement);
+        if (!result.isVerified()) {
+            System.err.println("Failure: " + describe(result));
             return;
         }
+        AttestationStatement stmt = result.getStatement();
 
+        System.out.println("Sucessfully verified the signature of the attestation statement.");
         System.out.println("The content of the attestation statement is:");
 
         // Nonce that was submitted as part of this request.
@@ -188,14 +266,38 @@ public class OnlineVerify {
         System.out.println("Has HARDWARE_BACKED evaluation type: " +
                 stmt.hasHardwareBackedEvaluationType());
 
-        System.out.println("\n** This sample only shows how to verify the authenticity of an "
-                + "attestation response. Next, you must check that the server response matches the "
-                + "request by comparing the nonce, package name, timestamp, and digest.");
+        if (policy == null) {
+            System.out.println("\n** This sample only shows how to verify the authenticity of an "
+                    + "attestation response. Next, you must check that the server response matches "
+                    + "the request by comparing the nonce, package name, timestamp, and digest. "
+                    + "Pass a policy with --policy to check them.");
+            return;
+        }
+        // Check the package name, digests, timestamp and integrity verdicts against the policy.
+        VerificationPolicy.Verdict verdict = policy.check(stmt);
+        if (verdict != VerificationPolicy.Verdict.ALLOWED) {
+            System.err.println("Failure: The statement does not match the policy: " + verdict);
+            return;
+        }
+        System.out.println("The statement matches the policy.");
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        while (args.length >= 3 && args[0].startsWith("--")) {
+            if (args[0].equals("--binding")) {
+                // Either "reflective" (the default) or "streaming", see PayloadBinding.
+                payloadBinding = PayloadBinding.valueOf(args[1].toUpperCase(Locale.US));
+            } else if (args[0].equals("--policy")) {
+                // A JSON file with the expected package names and digests, see VerificationPolicy.
+                policy = VerificationPolicy.load(new File(args[1]).toPath());
+            } else {
+                break;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         if (args.length != 1) {
-            System.err.println("Usage: OnlineVerify <signed attestation statement>");
+            System.err.println("Usage: OnlineVerify [--binding reflective|streaming] "
+                    + "[--policy <policy file>] <signed attestation statement>");
             return;
         }
         process(args[0]);
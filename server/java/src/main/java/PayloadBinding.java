@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.json.JsonFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * How the JSON payload of a statement is bound to an {@link AttestationStatement}.
+ */
+public enum PayloadBinding {
+    /**
+     * Reflection-driven binding of the {@code @Key} fields by the Google HTTP Client Library.
+     * Fields that are not declared in {@link AttestationStatement} remain accessible through
+     * {@link AttestationStatement#get(Object)}.
+     */
+    REFLECTIVE {
+        @Override
+        AttestationStatement bind(JsonFactory jsonFactory, byte[] data, int offset, int length)
+                throws IOException {
+            return jsonFactory.createJsonParser(new ByteArrayInputStream(data, offset, length))
+                    .parseAndClose(AttestationStatement.class);
+        }
+    },
+
+    /**
+     * Hand-written binding of the known fields on a streaming Jackson parser. Other fields are
+     * skipped without being materialized.
+     */
+    STREAMING {
+        @Override
+        AttestationStatement bind(JsonFactory jsonFactory, byte[] data, int offset, int length)
+                throws IOException {
+            return AttestationStatementBinder.bind(data, offset, length);
+        }
+    };
+
+    /**
+     * Binds {@code length} bytes of JSON starting at {@code offset}.
+     *
+     * @throws IOException if the data is not a valid JSON object
+     */
+    abstract AttestationStatement bind(JsonFactory jsonFactory, byte[] data, int offset,
+                                       int length) throws IOException;
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks statements against the current {@link VerificationPolicy}, which can be replaced while
+ * statements are being checked.
+ * Compiled policies are immutable snapshots. An update compiles a new snapshot and swaps it in
+ * atomically, so checks never take a lock and always see one complete policy, either the old or the
+ * new one. A policy file can be reloaded periodically when it changes, see
+ * {@link ReloadableSnapshot}.
+ */
+public final class PolicyEngine {
+
+    private final ReloadableSnapshot<VerificationPolicy> policy;
+
+    /**
+     * Creates an engine with a fixed initial policy that is only changed by {@link #update}.
+     */
+    public PolicyEngine(VerificationPolicy policy) {
+        this.policy = newSnapshot(null);
+        this.policy.set(policy);
+    }
+
+    /**
+     * Creates an engine with the policy loaded from a JSON file, which can be reloaded with
+     * {@link #reload()}.
+     */
+    public PolicyEngine(Path file) throws IOException {
+        this.policy = newSnapshot(file);
+        this.policy.loadNow();
+    }
+
+    private static ReloadableSnapshot<VerificationPolicy> newSnapshot(Path file) {
+        return new ReloadableSnapshot<VerificationPolicy>(file, "verification policy") {
+            @Override
+            protected VerificationPolicy load(Path path) throws IOException {
+                // Compile the complete policy before it becomes visible to any check.
+                return VerificationPolicy.load(path);
+            }
+
+            @Override
+            protected String version(Path path) throws IOException {
+                return Files.getLastModifiedTime(path).toString();
+            }
+
+            @Override
+            protected String describe(VerificationPolicy snapshot) {
+                return snapshot.size() + " packages";
+            }
+        };
+    }
+
+    /**
+     * Checks a statement, whose signature must already have been verified, against the current
+     * policy.
+     */
+    public VerificationPolicy.Verdict check(AttestationStatement stmt) {
+        return policy.get().check(stmt);
+    }
+
+    /**
+     * Returns the current policy.
+     */
+    public VerificationPolicy getPolicy() {
+        return policy.get();
+    }
+
+    /**
+     * Replaces the policy. Checks that are in progress finish with the previous policy.
+     */
+    public void update(VerificationPolicy newPolicy) {
+        policy.set(newPolicy);
+    }
+
+    /**
+     * Reloads the policy file if it has changed since it was last loaded. The current policy is
+     * kept if the file can't be read or compiled.
+     *
+     * @return true if a new policy was loaded
+     * @throws IOException if the file has changed but could not be loaded
+     */
+    public boolean reload() throws IOException {
+        return policy.reload();
+    }
+
+    /**
+     * Starts a daemon thread that reloads the policy file whenever it changes, checking it at the
+     * given interval. Failures to load the file are reported on standard error and the current
+     * policy is kept. Returns the executor, which can be shut down to stop reloading.
+     */
+    public ScheduledExecutorService startReloading(long interval, TimeUnit unit) {
+        return policy.startReloading(interval, unit);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A token bucket rate limit per key, e.g. per caller or per package.
+ * Each bucket is split into stripes that each get an equal share of the rate and the burst, so
+ * that threads that take permits for the same key at the same time mostly update different cache
+ * lines. A thread starts with the stripe of its id and only moves on to the other stripes when that
+ * one is empty, so the limit still holds for the bucket as a whole. The share of the burst is
+ * rounded up, so a bucket may hold up to one permit per stripe more than the burst, but never less.
+ * <p>
+ * A stripe is a single number, the time at which it is full again (the generic cell rate
+ * algorithm), so a permit is taken with one compare-and-set. A bucket that is full is the same as a
+ * new one, so full buckets can be removed at any time. Keys beyond the maximum share the bucket
+ * {@link #OTHER}.
+ */
+final class RateLimiter {
+
+    /**
+     * The key of the bucket shared by all keys beyond the maximum number of buckets.
+     */
+    static final String OTHER = "(other)";
+
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * Longs per stripe, so that every stripe is on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private static final long PURGE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int stripes;
+    private final long intervalNs;
+    private final long toleranceNs;
+    private final int maxKeys;
+    private final long originNs = System.nanoTime();
+    private final ConcurrentMap<String, AtomicLongArray> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastPurgeNs = new AtomicLong(Long.MIN_VALUE / 2);
+
+    /**
+     * @param permitsPerSecond rate at which the bucket of each key is refilled
+     * @param burst            permits that a full bucket holds, rounded up to a multiple of the
+     *                         number of stripes
+     * @param maxKeys          maximum number of buckets before keys share the bucket
+     *                         {@link #OTHER}
+     */
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        if (!(permitsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("rate: " + permitsPerSecond + ", burst: " + burst);
+        }
+        // Every stripe needs at least one permit of the burst.
+        int stripeCount = Integer.highestOneBit(Math.min(Math.min(burst, MAX_STRIPES),
+                Runtime.getRuntime().availableProcessors()));
+        this.stripes = stripeCount;
+        this.intervalNs = Math.max(1, Math.round(stripeCount * 1e9 / permitsPerSecond));
+        int stripeBurst = (burst + stripeCount - 1) / stripeCount;
+        this.toleranceNs = (stripeBurst - 1) * intervalNs;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a permit from the bucket of the key.
+     *
+     * @return whether a permit was available
+     */
+    boolean tryAcquire(String key) {
+        long nowNs = System.nanoTime() - originNs;
+        AtomicLongArray bucket = bucket(key, nowNs);
+        int first = (int) Thread.currentThread().getId();
+        for (int i = 0; i < stripes; i++) {
+            int index = ((first + i) & (stripes - 1)) * PADDING;
+            while (true) {
+                long fullAtNs = bucket.get(index);
+                long next = Math.max(fullAtNs, nowNs) + intervalNs;
+                if (next - nowNs > toleranceNs + intervalNs) {
+                    // This stripe is empty.
+                    break;
+                }
+                if (bucket.compareAndSet(index, fullAtNs, next)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private AtomicLongArray bucket(String key, long nowNs) {
+        AtomicLongArray bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= maxKeys) {
+            purge(nowNs);
+            if (buckets.size() >= maxKeys) {
+                key = OTHER;
+            }
+        }
+        bucket = new AtomicLongArray(stripes * PADDING);
+        AtomicLongArray existing = buckets.putIfAbsent(key, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+    /**
+     * Removes the buckets that are full, at most once per second. A permit that is taken from a
+     * bucket while it is removed is lost, so the key may get up to one extra permit.
+     */
+    private void purge(long nowNs) {
+        long last = lastPurgeNs.get();
+        if (nowNs - last < PURGE_INTERVAL_NS || !lastPurgeNs.compareAndSet(last, nowNs)) {
+            return;
+        }
+        for (Iterator<AtomicLongArray> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (isFull(it.next(), nowNs)) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isFull(AtomicLongArray bucket, long nowNs) {
+        for (int i = 0; i < stripes; i++) {
+            if (bucket.get(i * PADDING) > nowNs) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of buckets.
+     */
+    int size() {
+        return buckets.size();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds an immutable snapshot, e.g. a compiled policy, that is loaded from a file or directory and
+ * can be reloaded while it is in use.
+ * A reload builds the complete new snapshot and swaps it in atomically, so readers never take a
+ * lock and always see one complete snapshot, either the old or the new one. Subclasses load the
+ * snapshot and return a version string that changes whenever the files change. Files that can't
+ * be loaded are not retried until they change again.
+ *
+ * @param <T> type of the snapshot
+ */
+abstract class ReloadableSnapshot<T> {
+
+    private final AtomicReference<T> current = new AtomicReference<>();
+    private final Path path;
+    private final String name;
+    private volatile String lastVersion;
+
+    /**
+     * @param path the file or directory to load the snapshot from, or null for a snapshot that is
+     *             only changed by {@link #set}
+     * @param name what the snapshot is, for the thread name and the messages of
+     *             {@link #startReloading}, e.g. "verification policy"
+     */
+    ReloadableSnapshot(Path path, String name) {
+        this.path = path;
+        this.name = name;
+    }
+
+    /**
+     * Loads the snapshot from the path.
+     */
+    protected abstract T load(Path path) throws IOException;
+
+    /**
+     * Returns a string that changes whenever the files of the snapshot change.
+     */
+    protected abstract String version(Path path) throws IOException;
+
+    /**
+     * Returns a short summary of the snapshot for the message that it was reloaded, e.g. its
+     * number of entries.
+     */
+    protected abstract String describe(T snapshot);
+
+    T get() {
+        return current.get();
+    }
+
+    /**
+     * Replaces the snapshot. Readers that already got the previous snapshot keep using it.
+     */
+    void set(T snapshot) {
+        current.set(snapshot);
+    }
+
+    /**
+     * Loads the snapshot from the path, whether or not its files have changed.
+     *
+     * @throws IOException if the files could not be loaded
+     */
+    synchronized void loadNow() throws IOException {
+        // Don't retry broken files until they change again.
+        lastVersion = version(path);
+        current.set(load(path));
+    }
+
+    /**
+     * Reloads the snapshot if its files have changed since they were last loaded. The current
+     * snapshot is kept if the files can't be loaded.
+     *
+     * @return true if a new snapshot was loaded
+     * @throws IOException if the files have changed but could not be loaded
+     */
+    synchronized boolean reload() throws IOException {
+        if (path == null || version(path).equals(lastVersion)) {
+            return false;
+        }
+        loadNow();
+        return true;
+    }
+
+    /**
+     * Starts a daemon thread that reloads the snapshot whenever its files change, checking them at
+     * the given interval. Failures to load the files are reported on standard error and the
+     * current snapshot is kept. Returns the executor, which can be shut down to stop reloading.
+     */
+    ScheduledExecutorService startReloading(long interval, TimeUnit unit) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name.replace(' ', '-') + "-reload");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (reload()) {
+                        System.err.println("Reloaded the " + name + " from " + path + " with "
+                                + describe(current.get()) + ".");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failure: Could not reload the " + name + " from " + path
+                            + ": " + e.getMessage());
+                }
+            }
+        }, interval, interval, unit);
+        return executor;
+    }
+}
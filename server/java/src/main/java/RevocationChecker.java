@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks certificate chains against the current {@link RevocationSnapshot}, which can be reloaded
+ * in the background while chains are being checked.
+ * Like the {@link PolicyEngine}, a reload builds a complete new snapshot and swaps it in
+ * atomically, see {@link ReloadableSnapshot}, so checks never take a lock. The check runs for every
+ * statement rather than once per cached chain, so a certificate is rejected as soon as a snapshot
+ * that revokes it is loaded.
+ */
+public final class RevocationChecker {
+
+    private final ReloadableSnapshot<RevocationSnapshot> snapshot;
+
+    /**
+     * Creates a checker with a fixed snapshot.
+     */
+    public RevocationChecker(RevocationSnapshot snapshot) {
+        this.snapshot = newSnapshot(null);
+        this.snapshot.set(snapshot);
+    }
+
+    /**
+     * Creates a checker with the snapshot loaded from a file or directory, see
+     * {@link RevocationSnapshot#load(Path)}, which can be reloaded with {@link #reload()}.
+     */
+    public RevocationChecker(Path path) throws IOException {
+        this.snapshot = newSnapshot(path);
+        this.snapshot.loadNow();
+    }
+
+    private static ReloadableSnapshot<RevocationSnapshot> newSnapshot(Path path) {
+        return new ReloadableSnapshot<RevocationSnapshot>(path, "revocation snapshot") {
+            @Override
+            protected RevocationSnapshot load(Path path) throws IOException {
+                return RevocationSnapshot.load(path);
+            }
+
+            @Override
+            protected String version(Path path) throws IOException {
+                // Changes whenever a file of the snapshot changes, is added or is removed.
+                StringBuilder version = new StringBuilder();
+                for (Path file : RevocationSnapshot.files(path)) {
+                    version.append(file.getFileName()).append('@')
+                            .append(Files.getLastModifiedTime(file).toMillis()).append('/')
+                            .append(Files.size(file)).append(';');
+                }
+                return version.toString();
+            }
+
+            @Override
+            protected String describe(RevocationSnapshot snapshot) {
+                return snapshot.size() + " revoked certificates";
+            }
+        };
+    }
+
+    /**
+     * Returns true if any certificate of the validated chain is revoked.
+     */
+    boolean isRevoked(CertificateChainCache.Entry chain) {
+        return snapshot.get().isRevoked(chain);
+    }
+
+    public RevocationSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Replaces the snapshot. Checks that are in progress finish with the previous snapshot.
+     */
+    public void update(RevocationSnapshot newSnapshot) {
+        snapshot.set(newSnapshot);
+    }
+
+    /**
+     * Reloads the snapshot if any of its files has changed, been added or been removed since it
+     * was last loaded. The current snapshot is kept if the files can't be loaded.
+     *
+     * @return true if a new snapshot was loaded
+     * @throws IOException if the files have changed but could not be loaded
+     */
+    public boolean reload() throws IOException {
+        return snapshot.reload();
+    }
+
+    /**
+     * Starts a daemon thread that reloads the snapshot whenever its files change, checking them at
+     * the given interval. Failures to load the files are reported on standard error and the
+     * current snapshot is kept. Returns the executor, which can be shut down to stop reloading.
+     */
+    public ScheduledExecutorService startReloading(long interval, TimeUnit unit) {
+        return snapshot.startReloading(interval, unit);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import javax.security.auth.x500.X500Principal;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable set of revoked certificates, loaded from local files so that revocation can be
+ * checked without network access.
+ * The snapshot is read from a file or from all files in a directory:
+ * <ul>
+ * <li>{@code *.crl} and {@code *.pem} files contain DER or PEM encoded certificate revocation
+ * lists. Their entries are revoked for the issuer of the list.</li>
+ * <li>Other files are lists of serial numbers in hex, one per line, with {@code #} comments.
+ * These serial numbers are revoked for any issuer.</li>
+ * </ul>
+ * The signatures of the revocation lists are not checked, so the files must come from a trusted
+ * source. Lookups first check a {@link BloomFilter} of the serial numbers, so that certificates
+ * that are not revoked, i.e. almost all of them, are ruled out in nanoseconds. Only possible
+ * matches are looked up in the exact set.
+ */
+public final class RevocationSnapshot {
+
+    private static final RevocationSnapshot EMPTY =
+            new RevocationSnapshot(new HashSet<RevokedKey>());
+
+    /**
+     * A revoked serial number, either of a given issuer or, if the issuer is null, of any issuer.
+     */
+    private static final class RevokedKey {
+        final X500Principal issuer;
+        final byte[] serialNumber;
+
+        RevokedKey(X500Principal issuer, byte[] serialNumber) {
+            this.issuer = issuer;
+            this.serialNumber = serialNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RevokedKey)) {
+                return false;
+            }
+            RevokedKey other = (RevokedKey) o;
+            return (issuer == null ? other.issuer == null : issuer.equals(other.issuer))
+                    && Arrays.equals(serialNumber, other.serialNumber);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (issuer == null ? 0 : issuer.hashCode()) + Arrays.hashCode(serialNumber);
+        }
+    }
+
+    private final Set<RevokedKey> revoked;
+    private final BloomFilter filter;
+
+    private RevocationSnapshot(Set<RevokedKey> revoked) {
+        this.revoked = revoked;
+        this.filter = new BloomFilter(revoked.size(), 0.001);
+        for (RevokedKey key : revoked) {
+            filter.put(key.serialNumber);
+        }
+    }
+
+    /**
+     * Returns a snapshot in which no certificate is revoked.
+     */
+    public static RevocationSnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Loads the snapshot from a file, or from all files in a directory.
+     *
+     * @throws IOException if a file could not be read or parsed
+     */
+    public static RevocationSnapshot load(Path path) throws IOException {
+        Set<RevokedKey> revoked = new HashSet<>();
+        for (Path file : files(path)) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".crl") || name.endsWith(".pem")) {
+                loadCrls(file, revoked);
+            } else {
+                loadSerialNumbers(file, revoked);
+            }
+        }
+        return new RevocationSnapshot(revoked);
+    }
+
+    /**
+     * Returns the regular files of the snapshot, in a stable order.
+     */
+    static List<Path> files(Path path) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path file : stream) {
+                // Skip hidden files, e.g. partially downloaded lists.
+                if (Files.isRegularFile(file) && !file.getFileName().toString().startsWith(".")) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    private static void loadCrls(Path file, Set<RevokedKey> revoked) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            for (CRL crl : CertificateFactory.getInstance("X.509").generateCRLs(in)) {
+                X509CRL x509Crl = (X509CRL) crl;
+                if (x509Crl.getRevokedCertificates() == null) {
+                    continue;
+                }
+                for (X509CRLEntry entry : x509Crl.getRevokedCertificates()) {
+                    // Entries of indirect lists may name a different issuer.
+                    X500Principal issuer = entry.getCertificateIssuer() != null
+                            ? entry.getCertificateIssuer() : x509Crl.getIssuerX500Principal();
+                    revoked.add(new RevokedKey(issuer, entry.getSerialNumber().toByteArray()));
+                }
+            }
+        } catch (CertificateException | CRLException e) {
+            throw new IOException("Could not parse the revocation list " + file + ".", e);
+        }
+    }
+
+    private static void loadSerialNumbers(Path file, Set<RevokedKey> revoked)
+            throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                String serial = (comment >= 0 ? line.substring(0, comment) : line)
+                        .replace(":", "").trim();
+                if (serial.isEmpty()) {
+                    continue;
+                }
+                try {
+                    revoked.add(new RevokedKey(null, new BigInteger(serial, 16).toByteArray()));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + " is not a hex serial number.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the certificate with the given issuer and serial number, as returned by
+     * {@code getSerialNumber().toByteArray()}, is revoked.
+     */
+    boolean isRevoked(X500Principal issuer, byte[] serialNumber) {
+        if (!filter.mightContain(serialNumber)) {
+            return false;
+        }
+        return revoked.contains(new RevokedKey(issuer, serialNumber))
+                || revoked.contains(new RevokedKey(null, serialNumber));
+    }
+
+    /**
+     * Returns true if any certificate of the validated chain is revoked.
+     */
+    boolean isRevoked(CertificateChainCache.Entry chain) {
+        X500Principal[] issuers = chain.getIssuers();
+        byte[][] serialNumbers = chain.getSerialNumbers();
+        for (int i = 0; i < serialNumbers.length; i++) {
+            if (isRevoked(issuers[i], serialNumbers[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of revoked serial numbers.
+     */
+    public int size() {
+        return revoked.size();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Checks that a certificate is issued for one fixed hostname, using the DNS names in its
+ * subjectAltName extension.
+ * This replaces the general purpose hostname verifier of Apache HttpClient, which also handles IP
+ * addresses and public suffixes and has to be loaded with its dependencies, for the single
+ * hostname that attestation certificates are issued for. The rules follow RFC 6125:
+ * <ul>
+ * <li>Names are compared case-insensitively, ignoring a trailing dot.</li>
+ * <li>A wildcard is only allowed as the complete leftmost label, e.g. {@code *.android.com}, and
+ * matches exactly one label. Wildcards directly below a top-level domain never match.</li>
+ * <li>The common name of the subject is not used, so certificates without DNS names in the
+ * subjectAltName extension never match.</li>
+ * </ul>
+ * The result is cached per certificate, so a certificate is only parsed once. All methods can be
+ * called concurrently.
+ */
+final class SanHostnameMatcher {
+
+    /**
+     * The subjectAltName type of DNS names, see {@link X509Certificate#getSubjectAlternativeNames}.
+     */
+    private static final int DNS_NAME = 2;
+
+    private final String hostname;
+    private final int cacheSize;
+    private final ConcurrentMap<X509Certificate, Boolean> results = new ConcurrentHashMap<>();
+
+    /**
+     * @param hostname  the hostname that certificates must be issued for
+     * @param cacheSize maximum number of certificates to keep the result for
+     */
+    SanHostnameMatcher(String hostname, int cacheSize) {
+        this.hostname = normalize(hostname);
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns true if one of the DNS names of the certificate matches the hostname.
+     */
+    boolean matches(X509Certificate certificate) {
+        Boolean result = results.get(certificate);
+        if (result == null) {
+            result = matchesUncached(certificate);
+            if (results.size() >= cacheSize) {
+                // The same few leaf certificates are seen over and over again, so it's cheaper to
+                // start over in the rare case that the cache is full than to track their use.
+                results.clear();
+            }
+            results.put(certificate, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if one of the DNS names of the certificate matches the hostname, without using
+     * the cache.
+     */
+    boolean matchesUncached(X509Certificate certificate) {
+        Collection<List<?>> names;
+        try {
+            names = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            return false;
+        }
+        if (names == null) {
+            return false;
+        }
+        for (List<?> name : names) {
+            if (((Integer) name.get(0)) == DNS_NAME && name.get(1) instanceof String
+                    && matches(hostname, normalize((String) name.get(1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the normalized hostname matches the normalized DNS name, which may contain a
+     * wildcard in its leftmost label.
+     */
+    static boolean matches(String hostname, String pattern) {
+        if (!pattern.startsWith("*.")) {
+            return hostname.equals(pattern);
+        }
+        String suffix = pattern.substring(1);
+        // At least two labels after the wildcard, so "*.com" does not match "android.com".
+        if (suffix.indexOf('.', 1) < 0) {
+            return false;
+        }
+        int firstDot = hostname.indexOf('.');
+        return firstDot > 0 && hostname.substring(firstDot).equals(suffix);
+    }
+
+    private static String normalize(String name) {
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".")
+                ? lowerCase.substring(0, lowerCase.length() - 1) : lowerCase;
+    }
+}
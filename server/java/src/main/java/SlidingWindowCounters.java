@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of counters over a sliding time window, e.g. the last hour in one minute
+ * buckets.
+ * Each bucket holds one {@link LongAdder} per counter, which stripes concurrent increments over
+ * cells so that threads don't contend. When time moves on to a bucket that still holds an older
+ * period, the bucket is replaced by a new one, so the window always covers the last
+ * {@code bucketCount} periods including the current one. Increments that race with the
+ * replacement of their bucket may be lost; counts are meant for dashboards, not for billing.
+ */
+final class SlidingWindowCounters {
+
+    private static final class Bucket {
+        final long period;
+        final LongAdder[] counters;
+
+        Bucket(long period, int counterCount) {
+            this.period = period;
+            this.counters = new LongAdder[counterCount];
+            for (int i = 0; i < counterCount; i++) {
+                counters[i] = new LongAdder();
+            }
+        }
+    }
+
+    private final long bucketMs;
+    private final int counterCount;
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    SlidingWindowCounters(int counterCount, int bucketCount, long bucketMs) {
+        this.bucketMs = bucketMs;
+        this.counterCount = counterCount;
+        this.buckets = new AtomicReferenceArray<>(bucketCount);
+    }
+
+    /**
+     * Increments each counter whose bit is set in the mask, e.g. 0b101 for the counters 0 and 2.
+     */
+    void increment(long nowMs, int mask) {
+        Bucket bucket = bucket(nowMs / bucketMs);
+        for (int counter = 0; mask != 0; counter++, mask >>>= 1) {
+            if ((mask & 1) != 0) {
+                bucket.counters[counter].increment();
+            }
+        }
+    }
+
+    private Bucket bucket(long period) {
+        int index = (int) (period % buckets.length());
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.period == period) {
+                return bucket;
+            }
+            if (bucket != null && bucket.period > period) {
+                // The clock went back, count in the newer bucket rather than dropping the count.
+                return bucket;
+            }
+            Bucket replacement = new Bucket(period, counterCount);
+            if (buckets.compareAndSet(index, bucket, replacement)) {
+                return replacement;
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of each counter over the window that ends with the current period.
+     */
+    long[] sum(long nowMs) {
+        long period = nowMs / bucketMs;
+        long[] sums = new long[counterCount];
+        for (int i = 0; i < buckets.length(); i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.period > period - buckets.length()
+                    && bucket.period <= period) {
+                for (int counter = 0; counter < counterCount; counter++) {
+                    sums[counter] += bucket.counters[counter].sum();
+                }
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Returns the length of the window in milliseconds.
+     */
+    long getWindowMs() {
+        return bucketMs * buckets.length();
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies a continuous stream of newline-delimited signed attestation statements with
+ * {@link OfflineVerify#parseAndVerify}, e.g. from standard in or from connections on a local
+ * socket. The threads that call {@link #read} only read the lines of the input, which then pass
+ * through four stages, each with its own threads:
+ * <ol>
+ * <li>tokenize: trims the lines, skips blank ones and admits the statements.</li>
+ * <li>verify: verifies the statements and records them in the audit log, if there is one.</li>
+ * <li>policy: checks the verified statements against the policy, if there is one.</li>
+ * <li>sink: writes one result line per statement, prefixed by its sequence number.</li>
+ * </ol>
+ * The stages are connected by {@link BoundedQueue}s. When a stage can't keep up, its queue fills
+ * up and the stage before it waits, down to the reader, which stops reading so that the writer of
+ * the input is slowed down as well. As statements are verified in parallel, results are not
+ * written in input order; the sequence number is the number of the line in the input.
+ * <p>
+ * With an {@link AdmissionController}, statements are admitted by the tokenize stage, with the
+ * connection's address as the caller, and released once they are verified. Rejected statements go
+ * straight to the sink with the reason, so shedding load never waits for the verification. The
+ * rate limit per package is charged by the verify stage, by the package of the verified statement.
+ * <p>
+ * If a stage fails, e.g. because the output can't be written, the remaining statements are
+ * discarded and {@link #close} throws the first failure.
+ */
+public final class StreamingPipeline {
+
+    /**
+     * A statement on its way through the pipeline.
+     */
+    private static final class Item {
+        final long sequence;
+        final String caller;
+        String token;
+        boolean admitted;
+        VerificationResult result;
+        VerificationPolicy.Verdict verdict;
+
+        Item(long sequence, String token, String caller) {
+            this.sequence = sequence;
+            this.token = token;
+            this.caller = caller;
+        }
+    }
+
+    /**
+     * Marks the end of the input. Each thread of a stage stops at the first one it takes.
+     */
+    private static final Item END = new Item(-1, null, null);
+
+    /**
+     * A stage that takes items from its queue on a number of threads and passes them on to the
+     * next stage. When all of its threads have stopped, also after a failure, it passes one end
+     * marker per thread on to the next stage.
+     */
+    private abstract class Stage implements Runnable {
+        final String name;
+        final BoundedQueue<Item> input;
+        final LongAdder processed = new LongAdder();
+        private final List<Thread> threads = new ArrayList<>();
+        private final AtomicInteger running;
+        Stage next;
+
+        Stage(String name, int threadCount, int queueCapacity) {
+            this.name = name;
+            this.input = new BoundedQueue<>(queueCapacity);
+            this.running = new AtomicInteger(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                Thread thread = new Thread(this, "stream-" + name + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+
+        /**
+         * Processes the item. Returns false if the item is dropped instead of passed on.
+         */
+        abstract boolean process(Item item) throws IOException;
+
+        /**
+         * Returns the stage that a processed item is passed on to, or null if there is none.
+         */
+        Stage route(Item item) {
+            return next;
+        }
+
+        /**
+         * Called before a thread waits for its next item.
+         */
+        void idle() throws IOException {
+        }
+
+        @Override
+        public void run() {
+            try {
+                Item item;
+                while ((item = take()) != END) {
+                    if (failure.get() != null) {
+                        // Keep taking items, so that the stages before this one don't block.
+                        discard(item);
+                        continue;
+                    }
+                    try {
+                        if (!process(item)) {
+                            continue;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        fail(name, e);
+                        discard(item);
+                        continue;
+                    }
+                    processed.increment();
+                    Stage target = route(item);
+                    if (target != null) {
+                        target.input.put(item);
+                    }
+                }
+                idleSafely();
+            } catch (InterruptedException e) {
+                fail(name, e);
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet() == 0 && next != null) {
+                    endNext();
+                }
+            }
+        }
+
+        private Item take() throws InterruptedException {
+            Item item = input.poll();
+            if (item == null) {
+                idleSafely();
+                item = input.take();
+            }
+            return item;
+        }
+
+        private void idleSafely() {
+            if (failure.get() != null) {
+                return;
+            }
+            try {
+                idle();
+            } catch (IOException | RuntimeException e) {
+                fail(name, e);
+            }
+        }
+
+        private void endNext() {
+            try {
+                next.end();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void end() throws InterruptedException {
+            for (int i = 0; i < threads.size(); i++) {
+                input.put(END);
+            }
+        }
+
+        void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private final VerificationPolicy policy;
+    private final AuditLog auditLog;
+    private final AdmissionController admission;
+    private final Writer output;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final Stage tokenize;
+    private final Stage verify;
+    private final Stage policyCheck;
+    private final Stage sink;
+    private final Stage[] stages;
+    private final AtomicInteger readerCount = new AtomicInteger();
+
+    private StreamingPipeline(Builder builder) {
+        this.policy = builder.policy;
+        this.auditLog = builder.auditLog;
+        this.admission = builder.admission;
+        this.output = new BufferedWriter(new OutputStreamWriter(builder.output,
+                StandardCharsets.UTF_8), 64 * 1024);
+
+        tokenize = new Stage("tokenize", builder.tokenizeThreads, builder.queueCapacity) {
+            @Override
+            boolean process(Item item) {
+                item.token = item.token.trim();
+                if (item.token.isEmpty()) {
+                    return false;
+                }
+                FailureReason rejection = admission != null
+                        ? admission.tryAdmit(item.caller, item.token.length()) : null;
+                if (rejection != null) {
+                    item.result = VerificationResult.failure(rejection);
+                } else {
+                    item.admitted = admission != null;
+                }
+                return true;
+            }
+
+            @Override
+            Stage route(Item item) {
+                // Rejected statements skip the verification.
+                return item.result != null ? sink : next;
+            }
+        };
+        verify = new Stage("verify", builder.verifyThreads, builder.queueCapacity) {
+            @Override
+            boolean process(Item item) {
+                item.result = OfflineVerify.parseAndVerify(item.token);
+                release(item);
+                if (auditLog != null) {
+                    auditLog.record(item.token, item.result);
+                }
+                if (admission != null && item.result.isVerified()) {
+                    FailureReason rejection =
+                            admission.checkPackageRate(item.result.getStatement());
+                    if (rejection != null) {
+                        item.result = VerificationResult.failure(rejection);
+                    }
+                }
+                return true;
+            }
+        };
+        policyCheck = new Stage("policy", builder.policyThreads, builder.queueCapacity) {
+            @Override
+            boolean process(Item item) {
+                if (policy != null && item.result.isVerified()) {
+                    item.verdict = policy.check(item.result.getStatement());
+                }
+                return true;
+            }
+        };
+        // A single thread, so that the result lines are not interleaved.
+        sink = new Stage("sink", 1, builder.queueCapacity) {
+            @Override
+            boolean process(Item item) throws IOException {
+                output.write(Long.toString(item.sequence));
+                output.write('\t');
+                output.write(BatchVerify.formatResult(item.result));
+                if (item.verdict != null) {
+                    output.write("\tpolicy=" + item.verdict);
+                }
+                output.write('\n');
+                return true;
+            }
+
+            @Override
+            void idle() throws IOException {
+                // Write the results in batches while statements keep coming.
+                output.flush();
+            }
+        };
+        tokenize.next = verify;
+        verify.next = policyCheck;
+        policyCheck.next = sink;
+        stages = new Stage[] {tokenize, verify, policyCheck, sink};
+    }
+
+    /**
+     * Records the first failure of a stage, after which the remaining statements are discarded.
+     */
+    private void fail(String stage, Exception e) {
+        if (failure.compareAndSet(null, e)) {
+            System.err.println("Failure: The " + stage + " stage stopped: " + e);
+        }
+    }
+
+    private void discard(Item item) {
+        release(item);
+    }
+
+    private void release(Item item) {
+        if (item.admitted) {
+            item.admitted = false;
+            admission.release(item.token.length());
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts the threads of the stages. Statements can be passed in with {@link #read} and
+     * {@link #serve} afterwards.
+     */
+    public StreamingPipeline start() {
+        for (Stage stage : stages) {
+            stage.start();
+        }
+        return this;
+    }
+
+    /**
+     * Reads statements from the stream until it ends, one per line, and passes them on to the
+     * tokenize stage. Waits while the tokenize stage is busy. Can be called by several threads at
+     * the same time, e.g. one per connection. Throws if a stage has failed.
+     */
+    public void read(InputStream in) throws IOException, InterruptedException {
+        read(in, null);
+    }
+
+    /**
+     * Reads statements from the stream, see {@link #read(InputStream)}.
+     *
+     * @param caller the source of the stream, which the rate limit per caller of the admission
+     *               control applies to, or null if there is none
+     */
+    public void read(InputStream in, String caller) throws IOException, InterruptedException {
+        readerCount.incrementAndGet();
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(in, StandardCharsets.US_ASCII), 64 * 1024);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (failure.get() != null) {
+                    throw new IOException("The pipeline has failed.", failure.get());
+                }
+                tokenize.input.put(new Item(sequence.incrementAndGet(), line, caller));
+            }
+        } finally {
+            readerCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Accepts connections on the socket until it is closed, and reads the statements from each
+     * connection on its own daemon thread.
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        int connections = 0;
+        while (!serverSocket.isClosed()) {
+            final Socket socket = serverSocket.accept();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket connection = socket) {
+                        read(connection.getInputStream(),
+                                connection.getInetAddress().getHostAddress());
+                    } catch (IOException e) {
+                        System.err.println("Failure: Could not read from "
+                                + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "stream-tokenize-" + connections++);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Waits until all statements that were read have passed through the pipeline and stops its
+     * threads. Must only be called once no more statements are read. Throws the first failure of
+     * a stage, if there was one.
+     */
+    public void close() throws InterruptedException, IOException {
+        tokenize.end();
+        for (Stage stage : stages) {
+            stage.join();
+        }
+        output.flush();
+        Exception e = failure.get();
+        if (e != null) {
+            throw new IOException("The pipeline failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the throughput and queue depths of the stages in the Prometheus text exposition
+     * format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP attestation_pipeline_processed_total Statements that passed a stage.\n");
+        out.write("# TYPE attestation_pipeline_processed_total counter\n");
+        for (Stage stage : stages) {
+            out.write("attestation_pipeline_processed_total{stage=\"" + stage.name + "\"} "
+                    + stage.processed.sum() + "\n");
+        }
+        out.write("# HELP attestation_pipeline_queue_depth Statements waiting for a stage.\n");
+        out.write("# TYPE attestation_pipeline_queue_depth gauge\n");
+        for (Stage stage : stages) {
+            out.write("attestation_pipeline_queue_depth{stage=\"" + stage.name + "\"} "
+                    + stage.input.size() + "\n");
+        }
+        out.write("# HELP attestation_pipeline_queue_capacity Size of the queue of a stage.\n");
+        out.write("# TYPE attestation_pipeline_queue_capacity gauge\n");
+        for (Stage stage : stages) {
+            out.write("attestation_pipeline_queue_capacity{stage=\"" + stage.name + "\"} "
+                    + stage.input.capacity() + "\n");
+        }
+        out.write("# HELP attestation_pipeline_backpressure_total Times that the stage before "
+                + "had to wait for a full queue.\n");
+        out.write("# TYPE attestation_pipeline_backpressure_total counter\n");
+        for (Stage stage : stages) {
+            out.write("attestation_pipeline_backpressure_total{stage=\"" + stage.name + "\"} "
+                    + stage.input.getFullWaits() + "\n");
+        }
+    }
+
+    /**
+     * Starts a daemon thread that prints the throughput and queue depth of each stage on standard
+     * error at the given interval, and writes them together with the verification metrics to the
+     * metrics file, if one is given. Returns the executor, which can be shut down to stop
+     * reporting.
+     */
+    public ScheduledExecutorService startReporting(long interval, TimeUnit unit,
+                                                   final Path metricsFile) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "stream-report");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final double seconds = unit.toMillis(interval) / 1000.0;
+        executor.scheduleAtFixedRate(new Runnable() {
+            private final long[] lastProcessed = new long[stages.length];
+
+            @Override
+            public void run() {
+                StringBuilder line = new StringBuilder().append(readerCount.get())
+                        .append(" readers");
+                for (int i = 0; i < stages.length; i++) {
+                    long processed = stages[i].processed.sum();
+                    line.append(" | ").append(stages[i].name).append(' ')
+                            .append(rate(processed - lastProcessed[i])).append("/s, queue ")
+                            .append(stages[i].input.size()).append('/')
+                            .append(stages[i].input.capacity());
+                    lastProcessed[i] = processed;
+                }
+                System.err.println(line);
+                if (metricsFile != null) {
+                    try {
+                        writeMetrics(metricsFile);
+                    } catch (IOException e) {
+                        System.err.println("Failure: Could not write the metrics to "
+                                + metricsFile + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            private long rate(long count) {
+                return Math.round(count / seconds);
+            }
+        }, interval, interval, unit);
+        return executor;
+    }
+
+    private void writeMetrics(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            OfflineVerify.METRICS.writePrometheus(out);
+            writePrometheus(out);
+            if (admission != null) {
+                admission.writePrometheus(out);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the number of statements that were read.
+     */
+    public long getTokenizedCount() {
+        return tokenize.processed.sum();
+    }
+
+    /**
+     * Builder for {@link StreamingPipeline}.
+     */
+    public static final class Builder {
+        private int tokenizeThreads = 1;
+        private int verifyThreads = Runtime.getRuntime().availableProcessors();
+        private int policyThreads = 1;
+        private int queueCapacity = 1024;
+        private VerificationPolicy policy;
+        private AuditLog auditLog;
+        private AdmissionController admission;
+        private OutputStream output = System.out;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the number of threads that split the lines into statements and admit them.
+         * Defaults to 1, as the readers only read the lines and the verification dominates.
+         */
+        public Builder setTokenizeThreads(int tokenizeThreads) {
+            this.tokenizeThreads = tokenizeThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads that verify statements. Defaults to the number of
+         * processors, as verification is bound by the CPU.
+         */
+        public Builder setVerifyThreads(int verifyThreads) {
+            this.verifyThreads = verifyThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads that check the policy. Defaults to 1, as the check is much
+         * cheaper than the verification.
+         */
+        public Builder setPolicyThreads(int policyThreads) {
+            this.policyThreads = policyThreads;
+            return this;
+        }
+
+        /**
+         * Sets the capacity of the queue in front of each stage. Defaults to 1024.
+         */
+        public Builder setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the policy that verified statements are checked against. By default, the policy is
+         * not checked.
+         */
+        public Builder setPolicy(VerificationPolicy policy) {
+            this.policy = policy;
+            return this;
+        }
+
+        /**
+         * Sets the log that the outcome of every verification is recorded in.
+         */
+        public Builder setAuditLog(AuditLog auditLog) {
+            this.auditLog = auditLog;
+            return this;
+        }
+
+        /**
+         * Sets the admission control that statements pass before they are queued for
+         * verification. By default, every statement is verified.
+         */
+        public Builder setAdmissionController(AdmissionController admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        /**
+         * Sets the stream that the results are written to. Defaults to standard out.
+         */
+        public Builder setOutput(OutputStream output) {
+            this.output = output;
+            return this;
+        }
+
+        public StreamingPipeline build() {
+            if (tokenizeThreads < 1 || verifyThreads < 1 || policyThreads < 1) {
+                throw new IllegalArgumentException("Each stage needs at least one thread.");
+            }
+            return new StreamingPipeline(this);
+        }
+    }
+}
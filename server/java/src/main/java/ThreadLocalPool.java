@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands out reusable objects that must not be shared by concurrent callers, such as buffers and
+ * {@link java.security.Signature} instances.
+ * Platform threads keep their object in a {@link ThreadLocal}. Virtual threads are usually started
+ * per task, so a thread-local object would be created again for every task; they borrow an object
+ * from a small shared pool instead. Every {@link #acquire()} must be followed by a
+ * {@link #release(Object)} of the same object on the same thread.
+ *
+ * @param <T> type of the pooled objects
+ */
+abstract class ThreadLocalPool<T> {
+
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private final ThreadLocal<T> local = new ThreadLocal<T>() {
+        @Override
+        protected T initialValue() {
+            return create();
+        }
+    };
+    private final ArrayBlockingQueue<T> shared;
+
+    /**
+     * @param maxShared maximum number of idle objects kept for virtual threads
+     */
+    ThreadLocalPool(int maxShared) {
+        this.shared = new ArrayBlockingQueue<>(maxShared);
+    }
+
+    /**
+     * Creates a new object, when a thread has none yet or the shared pool is empty.
+     */
+    protected abstract T create();
+
+    T acquire() {
+        if (!isVirtualThread()) {
+            return local.get();
+        }
+        T value = shared.poll();
+        return value != null ? value : create();
+    }
+
+    void release(T value) {
+        if (isVirtualThread()) {
+            // Dropped if the pool is full.
+            shared.offer(value);
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            // Virtual threads were added in Java 21.
+            return null;
+        }
+    }
+
+    static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Verifies signed attestation statements offline and cross-checks some of them with the Android
+ * Device Verification API in the background.
+ * Every statement is verified in-process by an {@link AttestationVerifier}, and its result is
+ * returned right away. A random sample of the verified statements, and a smaller sample of the
+ * statements whose signature or chain failed offline verification, is also sent to an
+ * {@link AsyncOnlineVerifier}, at most at a fixed rate. The API reports whether SafetyNet signed
+ * the statement, which covers the algorithm, the signature, the certificate chain and its
+ * hostname, so statements that failed for other reasons, e.g. malformed tokens or payloads, are
+ * never sent. When both disagree, the {@link DiscrepancyListener} is called. This gives assurance
+ * that the offline verification is correct without a network round-trip per statement.
+ * Optionally, results are cached by the digest of the statement, so that resubmitted statements
+ * are neither verified nor cross-checked again. Cached results are still recorded in the metrics,
+ * the analytics and the audit log of the offline verifier, and a result is verified again if the
+ * revocation snapshot was swapped since it was cached.
+ */
+public final class TieredVerifier {
+
+    /**
+     * The ways in which offline and online verification can disagree.
+     */
+    public enum Discrepancy {
+        /**
+         * The statement was verified offline, but the API reports that SafetyNet did not sign it.
+         */
+        OFFLINE_ACCEPTED_ONLINE_REJECTED,
+        /**
+         * The signature or certificate chain of the statement failed offline verification, but
+         * the API reports that SafetyNet signed it.
+         */
+        OFFLINE_REJECTED_ONLINE_ACCEPTED
+    }
+
+    /**
+     * Receives the statements for which offline and online verification disagree. Called on a
+     * thread of the online verifier, so it must not block.
+     */
+    public interface DiscrepancyListener {
+        void onDiscrepancy(String signedAttestationStatement, VerificationResult offlineResult,
+                           Discrepancy discrepancy);
+    }
+
+    /**
+     * Prints each discrepancy to standard error.
+     */
+    public static final DiscrepancyListener LOGGING_LISTENER = new DiscrepancyListener() {
+        @Override
+        public void onDiscrepancy(String signedAttestationStatement,
+                                  VerificationResult offlineResult, Discrepancy discrepancy) {
+            String token = signedAttestationStatement.length() > 64
+                    ? signedAttestationStatement.substring(0, 64) + "..."
+                    : signedAttestationStatement;
+            System.err.println("Failure: Offline and online verification disagree ("
+                    + discrepancy + ", offline result " + offlineResult + ") for " + token);
+        }
+    };
+
+    /**
+     * The offline failures that the API can disagree with, as it checks whether SafetyNet signed
+     * the statement. Malformed tokens and payload or policy failures aren't checked by the API.
+     */
+    private static final Set<FailureReason> CROSS_CHECKED_FAILURES = EnumSet.of(
+            FailureReason.UNSUPPORTED_ALGORITHM, FailureReason.UNTRUSTED_CERTIFICATE_CHAIN,
+            FailureReason.HOSTNAME_MISMATCH, FailureReason.BAD_SIGNATURE);
+
+    /**
+     * Key of the single bucket of {@link #crossCheckLimiter}.
+     */
+    private static final String CROSS_CHECKS = "cross-checks";
+
+    private final AttestationVerifier offlineVerifier;
+    private final AsyncOnlineVerifier onlineVerifier;
+    private final double sampleRate;
+    private final double failureSampleRate;
+    private final int maxPending;
+    private final RateLimiter crossCheckLimiter;
+    private final DiscrepancyListener listener;
+    private final VerificationCache<CachedResult> cache;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong crossChecked = new AtomicLong();
+    private final AtomicLong discrepancies = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong onlineFailures = new AtomicLong();
+
+    private TieredVerifier(Builder builder) {
+        this.offlineVerifier = builder.offlineVerifier;
+        this.onlineVerifier = builder.onlineVerifier;
+        this.sampleRate = builder.sampleRate;
+        this.failureSampleRate = builder.failureSampleRate;
+        this.maxPending = builder.maxPending;
+        this.crossCheckLimiter = new RateLimiter(builder.maxCrossCheckRate,
+                (int) Math.ceil(builder.maxCrossCheckRate), 1);
+        this.listener = builder.listener;
+        this.cache = builder.cacheSize > 0
+                ? new VerificationCache<CachedResult>(builder.cacheSize,
+                builder.cacheTtlMs, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * A cached result with the revocation snapshot that was current when it was verified.
+     */
+    private static final class CachedResult {
+        final VerificationResult result;
+        final RevocationSnapshot revocationSnapshot;
+
+        CachedResult(VerificationResult result, RevocationSnapshot revocationSnapshot) {
+            this.result = result;
+            this.revocationSnapshot = revocationSnapshot;
+        }
+    }
+
+    /**
+     * Verifies one statement on a cache miss, and records the result on a hit.
+     */
+    private abstract class Loader implements Supplier<CompletableFuture<CachedResult>> {
+        private boolean loaded;
+
+        @Override
+        public CompletableFuture<CachedResult> get() {
+            loaded = true;
+            // Taken before the verification, so that a snapshot swapped during it is noticed.
+            RevocationSnapshot snapshot = offlineVerifier.getRevocationSnapshot();
+            return CompletableFuture.completedFuture(new CachedResult(verify(), snapshot));
+        }
+
+        abstract VerificationResult verify();
+
+        abstract void recordHit(VerificationResult result);
+    }
+
+    /**
+     * Verifies the statement offline and returns the result. The statement may be cross-checked
+     * online after this method returns.
+     */
+    public VerificationResult verify(final String signedAttestationStatement) {
+        if (cache == null) {
+            return verifyUncached(signedAttestationStatement);
+        }
+        return verifyCached(VerificationCache.keyOf(signedAttestationStatement), new Loader() {
+            @Override
+            VerificationResult verify() {
+                return verifyUncached(signedAttestationStatement);
+            }
+
+            @Override
+            void recordHit(VerificationResult result) {
+                offlineVerifier.recordCached(signedAttestationStatement, result);
+            }
+        });
+    }
+
+    /**
+     * Verifies the statement in {@code length} ASCII bytes starting at {@code offset}, like
+     * {@link AttestationVerifier#verify(byte[], int, int)}. The statement is only converted to a
+     * string if it is cross-checked.
+     */
+    public VerificationResult verify(final byte[] token, final int offset, final int length) {
+        if (cache == null) {
+            return verifyUncached(token, offset, length);
+        }
+        return verifyCached(VerificationCache.keyOf(token, offset, length), new Loader() {
+            @Override
+            VerificationResult verify() {
+                return verifyUncached(token, offset, length);
+            }
+
+            @Override
+            void recordHit(VerificationResult result) {
+                offlineVerifier.recordCached(token, offset, length, result);
+            }
+        });
+    }
+
+    private VerificationResult verifyCached(DigestKey key, Loader loader) {
+        CachedResult cached = cache.get(key, loader).join();
+        if (!loader.loaded
+                && cached.revocationSnapshot != offlineVerifier.getRevocationSnapshot()) {
+            // A certificate of the chain may have been revoked since, verify it again.
+            cache.remove(key);
+            cached = cache.get(key, loader).join();
+        }
+        if (!loader.loaded) {
+            loader.recordHit(cached.result);
+        }
+        return cached.result;
+    }
+
+    private VerificationResult verifyUncached(String signedAttestationStatement) {
+        VerificationResult result = offlineVerifier.verify(signedAttestationStatement);
+        if (shouldCrossCheck(result)) {
+            crossCheck(signedAttestationStatement, result);
+        }
+        return result;
+    }
+
+    private VerificationResult verifyUncached(byte[] token, int offset, int length) {
+        VerificationResult result = offlineVerifier.verify(token, offset, length);
+        if (shouldCrossCheck(result)) {
+            crossCheck(new String(token, offset, length, StandardCharsets.US_ASCII), result);
+        }
+        return result;
+    }
+
+    private boolean shouldCrossCheck(VerificationResult offlineResult) {
+        if (onlineVerifier == null) {
+            return false;
+        }
+        if (!offlineResult.isVerified()
+                && !CROSS_CHECKED_FAILURES.contains(offlineResult.getFailureReason())) {
+            return false;
+        }
+        double rate = offlineResult.isVerified() ? sampleRate : failureSampleRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    private void crossCheck(final String signedAttestationStatement,
+                            final VerificationResult offlineResult) {
+        // Skip the cross-check instead of queueing without bounds when the API can't keep up, e.g.
+        // when a flood of invalid statements arrives.
+        if (!crossCheckLimiter.tryAcquire(CROSS_CHECKS)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            skipped.incrementAndGet();
+            return;
+        }
+        onlineVerifier.verify(signedAttestationStatement).whenComplete(
+                new BiConsumer<OnlineVerify.VerificationResponse, Throwable>() {
+                    @Override
+                    public void accept(OnlineVerify.VerificationResponse response,
+                                       Throwable failure) {
+                        pending.decrementAndGet();
+                        if (response == null || response.error != null) {
+                            onlineFailures.incrementAndGet();
+                            return;
+                        }
+                        crossChecked.incrementAndGet();
+                        boolean onlineValid = response.isValidSignature;
+                        if (offlineResult.isVerified() && !onlineValid) {
+                            report(signedAttestationStatement, offlineResult,
+                                    Discrepancy.OFFLINE_ACCEPTED_ONLINE_REJECTED);
+                        } else if (!offlineResult.isVerified() && onlineValid) {
+                            report(signedAttestationStatement, offlineResult,
+                                    Discrepancy.OFFLINE_REJECTED_ONLINE_ACCEPTED);
+                        }
+                    }
+                });
+    }
+
+    private void report(String signedAttestationStatement, VerificationResult offlineResult,
+                        Discrepancy discrepancy) {
+        discrepancies.incrementAndGet();
+        listener.onDiscrepancy(signedAttestationStatement, offlineResult, discrepancy);
+    }
+
+    /**
+     * Returns the number of statements for which an online result was received.
+     */
+    public long getCrossCheckedCount() {
+        return crossChecked.get();
+    }
+
+    /**
+     * Returns the number of cross-checked statements for which offline and online verification
+     * disagreed.
+     */
+    public long getDiscrepancyCount() {
+        return discrepancies.get();
+    }
+
+    /**
+     * Returns the number of statements that were selected for a cross-check but skipped because
+     * of the maximum rate of cross-checks or because too many cross-checks were pending.
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of cross-checks that failed because the API could not be reached.
+     */
+    public long getOnlineFailureCount() {
+        return onlineFailures.get();
+    }
+
+    /**
+     * Returns the number of cross-checks that are waiting for the API.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of statements whose result was taken from the cache, including those
+     * that waited for a concurrent verification of the same statement.
+     */
+    public long getCacheHitCount() {
+        return cache != null ? cache.getHitCount() : 0;
+    }
+
+    /**
+     * Returns the metrics of the offline verifier.
+     */
+    public VerificationMetrics getMetrics() {
+        return offlineVerifier.getMetrics();
+    }
+
+    /**
+     * Configuration of a {@link TieredVerifier}.
+     */
+    public static final class Builder {
+        private AttestationVerifier offlineVerifier;
+        private AsyncOnlineVerifier onlineVerifier;
+        private double sampleRate = 0.01;
+        private double failureSampleRate = 0.05;
+        private double maxCrossCheckRate = 20;
+        private int maxPending = 1024;
+        private DiscrepancyListener listener = LOGGING_LISTENER;
+        private int cacheSize;
+        private long cacheTtlMs;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the verifier that every statement is verified with. Required.
+         */
+        public Builder setOfflineVerifier(AttestationVerifier offlineVerifier) {
+            this.offlineVerifier = offlineVerifier;
+            return this;
+        }
+
+        /**
+         * Sets the verifier for the cross-checks, or null to only verify offline.
+         */
+        public Builder setOnlineVerifier(AsyncOnlineVerifier onlineVerifier) {
+            this.onlineVerifier = onlineVerifier;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the statements that were verified offline that is cross-checked.
+         * Defaults to 0.01.
+         */
+        public Builder setSampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the statements whose signature or certificate chain failed offline
+         * verification that is cross-checked. Defaults to 0.05. Other failures are never
+         * cross-checked.
+         */
+        public Builder setFailureSampleRate(double failureSampleRate) {
+            this.failureSampleRate = failureSampleRate;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cross-checks per second, e.g. to stay within the quota of
+         * the API key. Statements beyond it are not cross-checked. Defaults to 20.
+         */
+        public Builder setMaxCrossCheckRate(double crossChecksPerSecond) {
+            this.maxCrossCheckRate = crossChecksPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cross-checks that wait for the API. Statements beyond it are
+         * not cross-checked.
+         */
+        public Builder setMaxPending(int maxPending) {
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * Sets the listener for discrepancies. Defaults to {@link #LOGGING_LISTENER}.
+         */
+        public Builder setDiscrepancyListener(DiscrepancyListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Caches up to {@code maxEntries} results for the given time, or disables the cache if
+         * {@code maxEntries} is 0. Disabled by default. A statement is verified again once its
+         * result expired, so keep the time short compared to the validity of the statements.
+         */
+        public Builder setResultCache(int maxEntries, long ttl, TimeUnit unit) {
+            this.cacheSize = maxEntries;
+            this.cacheTtlMs = unit.toMillis(ttl);
+            return this;
+        }
+
+        public TieredVerifier build() {
+            if (offlineVerifier == null) {
+                throw new IllegalStateException("An offline verifier is required.");
+            }
+            return new TieredVerifier(this);
+        }
+    }
+}
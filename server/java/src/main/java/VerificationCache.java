@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Caches verification results by the SHA-256 digest of the signed attestation statement, so that a
+ * statement that is submitted again, e.g. by a retrying client, is not verified again.
+ * Concurrent requests for the same statement share a single verification: the first request runs
+ * it and the others wait for its result. Results expire after a fixed time. Failed verifications,
+ * e.g. a null statement, are cached like other results, but exceptions (such as network errors of
+ * the online verification) are not, so that the next request tries again. When the cache is full,
+ * expired entries and then arbitrary entries are evicted.
+ * Cached results are shared between callers and must not be modified.
+ *
+ * @param <V> type of the verification result
+ */
+final class VerificationCache<V> {
+
+    private static final class Entry<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        final long expiresAtNs;
+
+        Entry(long expiresAtNs) {
+            this.expiresAtNs = expiresAtNs;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return DigestKey.newSha256();
+        }
+    };
+
+    private final ConcurrentHashMap<DigestKey, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlNs;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of cached results
+     * @param ttl        time after which a result is verified again
+     */
+    VerificationCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries < 1 || ttl <= 0) {
+            throw new IllegalArgumentException("Invalid cache size or time to live.");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNs = unit.toNanos(ttl);
+    }
+
+    /**
+     * Returns the key of the statement in {@code length} ASCII bytes starting at {@code offset}.
+     */
+    static DigestKey keyOf(byte[] token, int offset, int length) {
+        MessageDigest digest = SHA256.get();
+        digest.update(token, offset, length);
+        return DigestKey.of(digest.digest());
+    }
+
+    /**
+     * Returns the key of the statement. A JWS only consists of ASCII characters, any other
+     * characters are hashed by their low byte; such statements fail verification anyway.
+     */
+    static DigestKey keyOf(String token) {
+        MessageDigest digest = SHA256.get();
+        for (int i = 0; i < token.length(); i++) {
+            digest.update((byte) token.charAt(i));
+        }
+        return DigestKey.of(digest.digest());
+    }
+
+    /**
+     * Returns the cached result for the key, the result of a running verification of the same
+     * statement, or else starts the verification with the loader and caches its result.
+     * The loader is called on the calling thread. If it throws, the returned future completes
+     * exceptionally with what it threw.
+     */
+    CompletableFuture<V> get(final DigestKey key, Supplier<CompletableFuture<V>> loader) {
+        long nowNs = System.nanoTime();
+        final Entry<V> created = new Entry<>(nowNs + ttlNs);
+        while (true) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAtNs - nowNs > 0) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            // Take the key, or replace the expired entry. If another thread got there first, its
+            // entry is found in the next round.
+            if (entry == null ? entries.putIfAbsent(key, created) == null
+                    : entries.replace(key, entry, created)) {
+                break;
+            }
+        }
+
+        misses.incrementAndGet();
+        boolean loading = false;
+        try {
+            if (entries.size() > maxEntries) {
+                evict();
+            }
+            loader.get().whenComplete(new BiConsumer<V, Throwable>() {
+                @Override
+                public void accept(V result, Throwable failure) {
+                    if (failure != null) {
+                        // Don't cache failures to reach the verifier, only verification results.
+                        entries.remove(key, created);
+                        created.result.completeExceptionally(failure);
+                    } else {
+                        created.result.complete(result);
+                    }
+                }
+            });
+            loading = true;
+        } catch (Throwable t) {
+            created.result.completeExceptionally(t);
+        } finally {
+            if (!loading) {
+                // Don't leave the failed entry behind, so that the next request tries again.
+                entries.remove(key, created);
+            }
+        }
+        return created.result;
+    }
+
+    /**
+     * Removes expired entries, and arbitrary entries if that is not enough to get below the
+     * maximum size. Only one thread evicts at a time, the others keep going.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long nowNs = System.nanoTime();
+            Iterator<Map.Entry<DigestKey, Entry<V>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getValue().expiresAtNs - nowNs <= 0) {
+                    iterator.remove();
+                }
+            }
+            // Leave some room, so that the next insertions don't evict again right away.
+            int target = maxEntries - maxEntries / 8;
+            iterator = entries.entrySet().iterator();
+            while (entries.size() > target && iterator.hasNext()) {
+                Entry<V> entry = iterator.next().getValue();
+                if (entry.result.isDone()) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Removes the result for the key, so that the next request verifies the statement again.
+     */
+    void remove(DigestKey key) {
+        entries.remove(key);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of the stages of the verification and counters of verified statements and of
+ * failures by {@link FailureReason}.
+ * One instance is shared by the verifiers of a process, e.g. an {@link AttestationVerifier} and an
+ * {@link AsyncOnlineVerifier}, and all methods can be called concurrently. The metrics can be
+ * written in the Prometheus text exposition format, to serve them over HTTP or to a file for the
+ * node exporter's textfile collector.
+ */
+public final class VerificationMetrics {
+
+    /**
+     * The stages of the verification whose latency is recorded.
+     */
+    public enum Stage {
+        /**
+         * Splitting the JSON Web Signature and parsing its header.
+         */
+        JWS_PARSE,
+        /**
+         * Parsing and validating the certificate chain, usually served from a cache, and checking
+         * it for revoked certificates.
+         */
+        CHAIN_VERIFY,
+        /**
+         * Checking the hostname of the signing certificate, once per new certificate chain.
+         */
+        HOSTNAME_CHECK,
+        /**
+         * Verifying the signature over the header and payload.
+         */
+        SIGNATURE_VERIFY,
+        /**
+         * Decoding and binding the payload to an {@link AttestationStatement}.
+         */
+        PAYLOAD_BIND,
+        /**
+         * One HTTP call to the Android Device Verification API.
+         */
+        ONLINE_CALL
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] failures = new LongAdder[FailureReason.values().length];
+    private final LongAdder verified = new LongAdder();
+
+    public VerificationMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time a stage took, in nanoseconds.
+     */
+    public void recordStage(Stage stage, long elapsedNs) {
+        stages[stage.ordinal()].record(elapsedNs);
+    }
+
+    public void recordVerified() {
+        verified.increment();
+    }
+
+    public void recordFailure(FailureReason reason) {
+        failures[reason.ordinal()].increment();
+    }
+
+    public long getVerifiedCount() {
+        return verified.sum();
+    }
+
+    public long getFailureCount(FailureReason reason) {
+        return failures[reason.ordinal()].sum();
+    }
+
+    public long getStageCount(Stage stage) {
+        return stages[stage.ordinal()].getCount();
+    }
+
+    /**
+     * Returns the latency of the stage in nanoseconds below or at which the given percentage of
+     * the recorded latencies are.
+     */
+    public long getStageLatencyNs(Stage stage, double percentile) {
+        return stages[stage.ordinal()].getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        out.write("# HELP attestation_verified_total Statements that were verified.\n");
+        out.write("# TYPE attestation_verified_total counter\n");
+        out.write("attestation_verified_total " + verified.sum() + "\n");
+
+        out.write("# HELP attestation_failures_total Statements that could not be verified.\n");
+        out.write("# TYPE attestation_failures_total counter\n");
+        for (FailureReason reason : FailureReason.values()) {
+            out.write("attestation_failures_total{reason=\"" + label(reason) + "\"} "
+                    + failures[reason.ordinal()].sum() + "\n");
+        }
+
+        out.write("# HELP attestation_stage_latency_seconds Latency of the stages of the "
+                + "verification.\n");
+        out.write("# TYPE attestation_stage_latency_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = stages[stage.ordinal()];
+            String labels = "stage=\"" + label(stage) + "\"";
+            for (double quantile : QUANTILES) {
+                out.write("attestation_stage_latency_seconds{" + labels + ",quantile=\""
+                        + quantile + "\"} "
+                        + seconds(histogram.getValueAtPercentile(quantile * 100)) + "\n");
+            }
+            out.write("attestation_stage_latency_seconds_sum{" + labels + "} "
+                    + seconds(histogram.getTotalNs()) + "\n");
+            out.write("attestation_stage_latency_seconds_count{" + labels + "} "
+                    + histogram.getCount() + "\n");
+        }
+    }
+
+    /**
+     * Writes the metrics to the file, replacing it atomically so that a collector never reads a
+     * partially written file.
+     */
+    public void writePrometheus(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writePrometheus(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String label(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String seconds(long ns) {
+        return Double.toString(ns / 1e9);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Key;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a verified attestation statement matches what is expected of the app that requested
+ * it: its package name, the digests of its signing certificates and of the APK, the age of the
+ * statement and the device integrity verdicts.
+ * A policy is compiled from a {@link Config}, usually loaded from a JSON file, into one rule per
+ * package name. The digests of a rule are held in hash sets, so a statement is checked with one
+ * map lookup and one set lookup per digest. A compiled policy is immutable and can be used from
+ * multiple threads, see {@link PolicyEngine} for replacing it while in use.
+ */
+public final class VerificationPolicy {
+
+    /**
+     * The outcome of checking a statement. Everything except {@link #ALLOWED} rejects it.
+     */
+    public enum Verdict {
+        ALLOWED,
+        /** The statement has no package name, or there is no rule for it. */
+        UNKNOWN_PACKAGE,
+        /** The app is not signed with an allowed certificate. */
+        CERTIFICATE_DIGEST_MISMATCH,
+        /** The APK is not one of the allowed builds. */
+        APK_DIGEST_MISMATCH,
+        /** The statement is older than allowed, or too far in the future. */
+        TIMESTAMP_OUT_OF_WINDOW,
+        /** The device does not match a CTS profile, but the rule requires it. */
+        CTS_PROFILE_MISMATCH,
+        /** The device failed the basic integrity check, but the rule requires it. */
+        BASIC_INTEGRITY_FAILED,
+        /** The evaluation was not hardware backed, but the rule requires it. */
+        HARDWARE_BACKED_REQUIRED
+    }
+
+    /**
+     * Default maximum age of a statement, if neither the policy nor the package set one.
+     */
+    static final long DEFAULT_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Default time that a statement may be ahead of the local clock.
+     */
+    static final long DEFAULT_MAX_CLOCK_SKEW_MS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The policy as it is read from JSON.
+     */
+    public static class Config {
+        /**
+         * Maximum age of a statement, for packages that don't set their own.
+         */
+        @Key
+        public Long maxAgeMs;
+
+        /**
+         * Maximum time that a statement may be ahead of the local clock.
+         */
+        @Key
+        public Long maxClockSkewMs;
+
+        @Key
+        public List<PackageConfig> packages;
+    }
+
+    /**
+     * The rule for one package as it is read from JSON. Digests are base64 encoded, like in the
+     * attestation statement.
+     */
+    public static class PackageConfig {
+        @Key
+        public String packageName;
+
+        /**
+         * Digests of the allowed signing certificates. Every certificate that the APK is signed
+         * with must be one of them.
+         */
+        @Key
+        public List<String> apkCertificateDigestSha256;
+
+        /**
+         * Digests of the allowed APKs. Any APK is allowed if this is empty.
+         */
+        @Key
+        public List<String> apkDigestSha256;
+
+        @Key
+        public Long maxAgeMs;
+
+        @Key
+        public boolean requireCtsProfileMatch;
+
+        @Key
+        public boolean requireBasicIntegrity;
+
+        @Key
+        public boolean requireHardwareBacked;
+    }
+
+    /**
+     * The compiled rule for one package.
+     */
+    private static final class Rule {
+        final Set<DigestKey> certificateDigests;
+        /** The allowed APK digests, or null if any APK is allowed. */
+        final Set<DigestKey> apkDigests;
+        final long maxAgeMs;
+        final boolean requireCtsProfileMatch;
+        final boolean requireBasicIntegrity;
+        final boolean requireHardwareBacked;
+
+        Rule(PackageConfig config, long defaultMaxAgeMs) throws IOException {
+            if (config.apkCertificateDigestSha256 == null
+                    || config.apkCertificateDigestSha256.isEmpty()) {
+                throw new IOException("No certificate digests for package " + config.packageName);
+            }
+            this.certificateDigests = compileDigests(config.apkCertificateDigestSha256);
+            this.apkDigests = config.apkDigestSha256 == null || config.apkDigestSha256.isEmpty()
+                    ? null : compileDigests(config.apkDigestSha256);
+            this.maxAgeMs = config.maxAgeMs != null ? config.maxAgeMs : defaultMaxAgeMs;
+            this.requireCtsProfileMatch = config.requireCtsProfileMatch;
+            this.requireBasicIntegrity = config.requireBasicIntegrity;
+            this.requireHardwareBacked = config.requireHardwareBacked;
+        }
+
+        private static Set<DigestKey> compileDigests(List<String> digests) throws IOException {
+            Set<DigestKey> keys = new HashSet<>();
+            for (String digest : digests) {
+                DigestKey key = digest == null
+                        ? null : DigestKey.of(Base64Url.decode(digest, 0, digest.length()));
+                if (key == null) {
+                    throw new IOException("Not a base64 encoded SHA-256 digest: " + digest);
+                }
+                keys.add(key);
+            }
+            return Collections.unmodifiableSet(keys);
+        }
+    }
+
+    private static final VerificationPolicy EMPTY =
+            new VerificationPolicy(Collections.<String, Rule>emptyMap(), DEFAULT_MAX_CLOCK_SKEW_MS);
+
+    private final Map<String, Rule> rules;
+    private final long maxClockSkewMs;
+
+    private VerificationPolicy(Map<String, Rule> rules, long maxClockSkewMs) {
+        this.rules = rules;
+        this.maxClockSkewMs = maxClockSkewMs;
+    }
+
+    /**
+     * Returns a policy without any rules, which rejects every statement.
+     */
+    public static VerificationPolicy empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compiles the policy.
+     *
+     * @throws IOException if a rule is incomplete or a digest is not a base64 encoded SHA-256
+     *                     digest
+     */
+    public static VerificationPolicy compile(Config config) throws IOException {
+        long defaultMaxAgeMs = config.maxAgeMs != null ? config.maxAgeMs : DEFAULT_MAX_AGE_MS;
+        Map<String, Rule> rules = new HashMap<>();
+        if (config.packages != null) {
+            for (PackageConfig packageConfig : config.packages) {
+                if (packageConfig.packageName == null) {
+                    throw new IOException("Package rule without a packageName.");
+                }
+                if (rules.put(packageConfig.packageName,
+                        new Rule(packageConfig, defaultMaxAgeMs)) != null) {
+                    throw new IOException("Duplicate rule for package "
+                            + packageConfig.packageName);
+                }
+            }
+        }
+        return new VerificationPolicy(Collections.unmodifiableMap(rules),
+                config.maxClockSkewMs != null ? config.maxClockSkewMs : DEFAULT_MAX_CLOCK_SKEW_MS);
+    }
+
+    /**
+     * Reads and compiles a policy from a JSON file.
+     */
+    public static VerificationPolicy load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return compile(JacksonFactory.getDefaultInstance()
+                    .fromInputStream(in, StandardCharsets.UTF_8, Config.class));
+        } catch (IllegalArgumentException e) {
+            // Thrown by the JSON binding for values of the wrong type.
+            throw new IOException("Invalid policy in " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks a statement, whose signature must already have been verified, against the rule for
+     * its package.
+     */
+    public Verdict check(AttestationStatement stmt) {
+        return check(stmt, System.currentTimeMillis());
+    }
+
+    Verdict check(AttestationStatement stmt, long nowMs) {
+        String packageName = stmt.getApkPackageName();
+        Rule rule = packageName == null ? null : rules.get(packageName);
+        if (rule == null) {
+            return Verdict.UNKNOWN_PACKAGE;
+        }
+
+        byte[][] certificateDigests = stmt.apkCertificateDigestSha256();
+        if (certificateDigests == null || certificateDigests.length == 0) {
+            return Verdict.CERTIFICATE_DIGEST_MISMATCH;
+        }
+        for (byte[] digest : certificateDigests) {
+            DigestKey key = DigestKey.of(digest);
+            if (key == null || !rule.certificateDigests.contains(key)) {
+                return Verdict.CERTIFICATE_DIGEST_MISMATCH;
+            }
+        }
+
+        if (rule.apkDigests != null) {
+            DigestKey key = DigestKey.of(stmt.apkDigestSha256());
+            if (key == null || !rule.apkDigests.contains(key)) {
+                return Verdict.APK_DIGEST_MISMATCH;
+            }
+        }
+
+        long timestampMs = stmt.getTimestampMs();
+        if (timestampMs < nowMs - rule.maxAgeMs || timestampMs > nowMs + maxClockSkewMs) {
+            return Verdict.TIMESTAMP_OUT_OF_WINDOW;
+        }
+
+        if (rule.requireCtsProfileMatch && !stmt.isCtsProfileMatch()) {
+            return Verdict.CTS_PROFILE_MISMATCH;
+        }
+        if (rule.requireBasicIntegrity && !stmt.hasBasicIntegrity()) {
+            return Verdict.BASIC_INTEGRITY_FAILED;
+        }
+        if (rule.requireHardwareBacked && !stmt.hasHardwareBackedEvaluationType()) {
+            return Verdict.HARDWARE_BACKED_REQUIRED;
+        }
+        return Verdict.ALLOWED;
+    }
+
+    /**
+     * Returns the number of packages that have a rule.
+     */
+    public int size() {
+        return rules.size();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+/**
+ * The outcome of verifying a signed attestation statement: either the verified statement, or the
+ * {@link FailureReason} and optionally the exception that caused the failure.
+ * Failures without a cause are shared constants, so reporting a failure neither allocates nor
+ * writes to the console, and costs about the same as a success. Callers decide what to log.
+ */
+public final class VerificationResult {
+
+    private static final VerificationResult[] FAILURES =
+            new VerificationResult[FailureReason.values().length];
+
+    static {
+        for (FailureReason reason : FailureReason.values()) {
+            FAILURES[reason.ordinal()] = new VerificationResult(null, reason, null);
+        }
+    }
+
+    private final AttestationStatement statement;
+    private final FailureReason failureReason;
+    private final Throwable cause;
+
+    private VerificationResult(AttestationStatement statement, FailureReason failureReason,
+                               Throwable cause) {
+        this.statement = statement;
+        this.failureReason = failureReason;
+        this.cause = cause;
+    }
+
+    public static VerificationResult success(AttestationStatement statement) {
+        if (statement == null) {
+            throw new NullPointerException("statement");
+        }
+        return new VerificationResult(statement, null, null);
+    }
+
+    /**
+     * Returns the shared result for failures for the given reason.
+     */
+    public static VerificationResult failure(FailureReason reason) {
+        return FAILURES[reason.ordinal()];
+    }
+
+    /**
+     * Returns a failure for the given reason that keeps the exception that caused it, or the
+     * shared result if the cause is null.
+     */
+    public static VerificationResult failure(FailureReason reason, Throwable cause) {
+        if (cause == null) {
+            return failure(reason);
+        }
+        return new VerificationResult(null, reason, cause);
+    }
+
+    public boolean isVerified() {
+        return statement != null;
+    }
+
+    /**
+     * Returns the verified statement, or null if the verification failed. The statement may be
+     * shared with other callers, e.g. by a cache, and must not be modified.
+     */
+    public AttestationStatement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Returns the reason of the failure, or null if the statement was verified.
+     */
+    public FailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    /**
+     * Returns the exception that caused the failure, if any.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        if (statement != null) {
+            return "VERIFIED";
+        }
+        return cause != null ? failureReason + " (" + cause + ")" : failureReason.toString();
+    }
+}
@@ -0,0 +1,787 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.util.Base64;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP server that verifies signed attestation statements offline with an
+ * {@link AttestationVerifier}.
+ * <ul>
+ * <li>{@code POST /verify} verifies the statement in the request body and responds with a JSON
+ * object with the fields of the verified statement. With a nonce key, the nonce of the statement
+ * must have been issued to the client in the {@code client} parameter.</li>
+ * <li>{@code POST /verify/batch} verifies newline-delimited statements in the request body and
+ * streams back one JSON object per line (NDJSON) while the request is still being read.</li>
+ * <li>{@code GET /nonce?client=<id>} issues a base64url encoded nonce for the client, if the
+ * server was started with a nonce key. See {@link NonceIssuer}.</li>
+ * </ul>
+ * If a policy is configured, the responses include the verdict of the policy for each verified
+ * statement. If a {@link NonceReplayRegistry} is configured, statements that are verified and
+ * allowed by the policy are rejected when their nonce was already used. Requests are handled on
+ * virtual threads where the JVM supports them, and on a fixed thread pool otherwise. Request
+ * bodies are read into pooled buffers.
+ */
+public class VerificationServer {
+
+    /**
+     * Size of the pooled buffers. A statement with its certificate chain is a few kilobytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Largest statement that is accepted. Buffers are grown up to this size for larger statements.
+     */
+    private static final int MAX_STATEMENT_SIZE = 1024 * 1024;
+
+    private static final String JSON = "application/json";
+    private static final String NDJSON = "application/x-ndjson";
+    private static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final TieredVerifier verifier;
+    private final PolicyEngine policyEngine;
+    private final NonceIssuer nonceIssuer;
+    private final IntegrityAnalytics analytics;
+    private final AdmissionController admission;
+    private final NonceReplayRegistry replayRegistry;
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 256);
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param verifier     verifier of the statements, which may cross-check them online
+     * @param policyEngine policy that verified statements are checked against, or null
+     * @param nonceIssuer  issuer for the nonce endpoint, or null to disable it
+     * @param analytics    analytics of the verified statements to serve on /metrics, or null
+     * @param admission    admission control in front of the verifier, or null to verify every
+     *                     statement
+     * @param replayRegistry registry of the nonces of accepted statements, or null to accept
+     *                     statements with a nonce that was already used
+     */
+    VerificationServer(TieredVerifier verifier, PolicyEngine policyEngine,
+                       NonceIssuer nonceIssuer, IntegrityAnalytics analytics,
+                       AdmissionController admission, NonceReplayRegistry replayRegistry) {
+        this.verifier = verifier;
+        this.policyEngine = policyEngine;
+        this.nonceIssuer = nonceIssuer;
+        this.analytics = analytics;
+        this.admission = admission;
+        this.replayRegistry = replayRegistry;
+    }
+
+    /**
+     * Starts listening on the given address.
+     */
+    void start(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 1024);
+        createContext("/verify", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleVerify(exchange);
+            }
+        });
+        createContext("/verify/batch", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleBatch(exchange);
+            }
+        });
+        createContext("/nonce", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleNonce(exchange);
+            }
+        });
+        createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetrics(exchange);
+            }
+        });
+        executor = newHandlerExecutor();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Handles requests for exactly the given path. The contexts of the HTTP server match every
+     * path that starts with theirs, e.g. "/verifyXYZ" for "/verify", so other paths get a 404.
+     */
+    private void createContext(final String path, final HttpHandler handler) {
+        server.createContext(path, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (path.equals(exchange.getRequestURI().getPath())) {
+                    handler.handle(exchange);
+                    return;
+                }
+                try {
+                    sendText(exchange, 404, "Not found.");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given number of seconds for running requests to
+     * complete.
+     */
+    void stop(int delaySeconds) throws InterruptedException {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns an executor that runs each request on a new virtual thread, or a fixed pool of
+     * platform threads if virtual threads are not available in this JVM.
+     */
+    static ExecutorService newHandlerExecutor() {
+        try {
+            // Look the method up reflectively, so that the server also runs on older JVMs.
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException e) {
+            return Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors() * 4);
+        }
+    }
+
+    private void handleVerify(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use POST with the signed statement as the body.");
+                return;
+            }
+            // Reject what can be rejected by the headers alone before reading the body.
+            long contentLength = contentLength(exchange);
+            if (contentLength > MAX_STATEMENT_SIZE) {
+                sendText(exchange, 413, "The statement is too large.");
+                return;
+            }
+            String caller = caller(exchange);
+            int admittedLength = -1;
+            if (admission != null && contentLength >= 0) {
+                FailureReason rejection = admission.tryAdmit(caller, (int) contentLength);
+                if (rejection != null) {
+                    sendResult(exchange, VerificationResult.failure(rejection));
+                    return;
+                }
+                admittedLength = (int) contentLength;
+            }
+            byte[] pooled = buffers.acquire();
+            byte[] buffer = pooled;
+            try {
+                int length = 0;
+                InputStream in = exchange.getRequestBody();
+                int read;
+                while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                    if (length == buffer.length) {
+                        if (buffer.length >= MAX_STATEMENT_SIZE) {
+                            sendText(exchange, 413, "The statement is too large.");
+                            return;
+                        }
+                        buffer = grow(buffer, length);
+                    }
+                }
+
+                int start = 0;
+                int end = length;
+                while (start < end && buffer[start] <= ' ') {
+                    start++;
+                }
+                while (end > start && buffer[end - 1] <= ' ') {
+                    end--;
+                }
+                if (start == end) {
+                    sendText(exchange, 400, "The request body is empty.");
+                    return;
+                }
+
+                String client = clientBinding(exchange);
+                sendResult(exchange, admittedLength >= 0
+                        ? verifyAdmitted(client, buffer, start, end - start)
+                        : admitAndVerify(caller, client, buffer, start, end - start));
+            } finally {
+                // A grown buffer is left to the garbage collector.
+                buffers.release(pooled);
+                if (admittedLength >= 0) {
+                    admission.release(admittedLength);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends the result of a single statement with the status from {@link #statusFor}.
+     */
+    private void sendResult(HttpExchange exchange, VerificationResult result)
+            throws IOException {
+        int status = statusFor(result);
+        if (status != 200 && status != 413) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, 0);
+        try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody())) {
+            writeResult(out, -1, result);
+        }
+    }
+
+    /**
+     * Returns the Content-Length of the request, or -1 if it is not known, e.g. for a chunked
+     * body.
+     */
+    private static long contentLength(HttpExchange exchange) {
+        String value = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use POST with one signed statement per line as the body.");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", NDJSON);
+            // Stream the response with chunked encoding, as its length is not known in advance.
+            exchange.sendResponseHeaders(200, 0);
+
+            String caller = caller(exchange);
+            String client = clientBinding(exchange);
+            byte[] pooled = buffers.acquire();
+            byte[] buffer = pooled;
+            try (OutputStream out = new BufferedOutputStream(exchange.getResponseBody())) {
+                InputStream in = exchange.getRequestBody();
+                long lineNumber = 0;
+                // The buffer holds the unprocessed input from lineStart to length.
+                int lineStart = 0;
+                int length = 0;
+                boolean eof = false;
+                while (!eof) {
+                    if (length == buffer.length) {
+                        if (lineStart > 0) {
+                            // Move the incomplete line to the front to make room.
+                            System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                            length -= lineStart;
+                            lineStart = 0;
+                        } else if (buffer.length < MAX_STATEMENT_SIZE) {
+                            buffer = grow(buffer, length);
+                        } else {
+                            writeError(out, lineNumber + 1, "The statement is too large.");
+                            return;
+                        }
+                    }
+                    int read = in.read(buffer, length, buffer.length - length);
+                    if (read == -1) {
+                        eof = true;
+                        // Terminate the last line if the body doesn't end with a line break. There
+                        // is always room left for it, as the buffer is never full when reading.
+                        buffer[length++] = '\n';
+                    } else {
+                        length += read;
+                    }
+
+                    int newline;
+                    while ((newline = indexOf(buffer, '\n', lineStart, length)) >= 0) {
+                        lineNumber++;
+                        int start = lineStart;
+                        int end = newline;
+                        lineStart = newline + 1;
+                        while (start < end && buffer[start] <= ' ') {
+                            start++;
+                        }
+                        while (end > start && buffer[end - 1] <= ' ') {
+                            end--;
+                        }
+                        if (start < end) {
+                            writeResult(out, lineNumber,
+                                    admitAndVerify(caller, client, buffer, start,
+                                            end - start));
+                        }
+                    }
+                    // Send the results of all complete lines before waiting for more input.
+                    out.flush();
+                    if (lineStart == length) {
+                        lineStart = 0;
+                        length = 0;
+                    }
+                }
+            } finally {
+                buffers.release(pooled);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Verifies the statement if the admission control admits it, or returns the reason why it
+     * was rejected.
+     *
+     * @param client the client binding that the nonce must have been issued to, or null
+     */
+    private VerificationResult admitAndVerify(String caller, String client, byte[] token,
+                                              int offset, int length) {
+        if (admission == null) {
+            return verifyAdmitted(client, token, offset, length);
+        }
+        FailureReason rejection = admission.tryAdmit(caller, length);
+        if (rejection != null) {
+            return VerificationResult.failure(rejection);
+        }
+        try {
+            return verifyAdmitted(client, token, offset, length);
+        } finally {
+            admission.release(length);
+        }
+    }
+
+    /**
+     * Verifies a statement that the admission control admitted by its size and caller, and
+     * rejects it if its verified package is over its rate limit.
+     */
+    private VerificationResult verifyAdmitted(String client, byte[] token, int offset,
+                                              int length) {
+        VerificationResult result = verifier.verify(token, offset, length);
+        if (admission != null && result.isVerified()) {
+            // Before the nonce is registered, so that the statement can be submitted again.
+            FailureReason rejection = admission.checkPackageRate(result.getStatement());
+            if (rejection != null) {
+                return VerificationResult.failure(rejection);
+            }
+        }
+        return checkNonce(result, client);
+    }
+
+    /**
+     * Checks that the nonce of a verified statement was issued to the client, if the server
+     * issues nonces, then registers it and returns a failure if it was already used.
+     * Only statements that the policy allows are registered, as the others are rejected anyway.
+     * This is checked for every request, also when the result comes from the result cache of the
+     * verifier, as a resubmitted statement is exactly what a replay looks like.
+     */
+    private VerificationResult checkNonce(VerificationResult result, String client) {
+        if (!result.isVerified()) {
+            return result;
+        }
+        AttestationStatement stmt = result.getStatement();
+        if (nonceIssuer != null) {
+            switch (nonceIssuer.check(stmt, client)) {
+                case VALID:
+                    break;
+                case EXPIRED:
+                    return nonceFailure(FailureReason.EXPIRED_NONCE);
+                default:
+                    return nonceFailure(FailureReason.INVALID_NONCE);
+            }
+        }
+        if (replayRegistry == null) {
+            return result;
+        }
+        if (policyEngine != null
+                && policyEngine.check(stmt) != VerificationPolicy.Verdict.ALLOWED) {
+            return result;
+        }
+        switch (replayRegistry.register(stmt)) {
+            case ACCEPTED:
+                return result;
+            case REPLAYED:
+                return nonceFailure(FailureReason.REPLAYED_NONCE);
+            case STALE:
+                return nonceFailure(FailureReason.STALE_STATEMENT);
+            default:
+                return nonceFailure(FailureReason.OVERLOADED);
+        }
+    }
+
+    private VerificationResult nonceFailure(FailureReason reason) {
+        verifier.getMetrics().recordFailure(reason);
+        return VerificationResult.failure(reason);
+    }
+
+    /**
+     * Returns the {@code client} parameter of the request, which the nonce of the statement must
+     * have been issued to, or null if there is none.
+     */
+    private static String clientBinding(HttpExchange exchange) throws IOException {
+        return queryParameter(exchange.getRequestURI().getRawQuery(), "client");
+    }
+
+    /**
+     * Returns the client's address, which the rate limit per caller applies to.
+     */
+    private static String caller(HttpExchange exchange) {
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    /**
+     * Returns the status for the result of a single statement. Statements that were not
+     * verified because of the admission control get a status of their own, so that clients can
+     * back off; all other results are a 200 response with the result in the body.
+     */
+    private static int statusFor(VerificationResult result) {
+        if (result.isVerified()) {
+            return 200;
+        }
+        switch (result.getFailureReason()) {
+            case TOO_LARGE:
+                return 413;
+            case OVERLOADED:
+                return 503;
+            case RATE_LIMITED:
+                return 429;
+            default:
+                return 200;
+        }
+    }
+
+    private void handleNonce(HttpExchange exchange) throws IOException {
+        try {
+            if (nonceIssuer == null) {
+                sendText(exchange, 404, "The server was started without a nonce key.");
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use GET with the client id as the client parameter.");
+                return;
+            }
+            String client = queryParameter(exchange.getRequestURI().getRawQuery(), "client");
+            if (client == null || client.isEmpty()) {
+                sendText(exchange, 400, "The client parameter is missing.");
+                return;
+            }
+            sendText(exchange, 200, Base64.encodeBase64URLSafeString(nonceIssuer.issue(client)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Writes the result for one statement as a JSON object followed by a line break.
+     *
+     * @param lineNumber the line of the statement in a batch, or -1 for a single statement
+     */
+    private void writeResult(OutputStream out, long lineNumber, VerificationResult result)
+            throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            if (lineNumber >= 0) {
+                json.writeNumberField("line", lineNumber);
+            }
+            json.writeBooleanField("verified", result.isVerified());
+            if (!result.isVerified()) {
+                json.writeStringField("failureReason", result.getFailureReason().name());
+            } else {
+                AttestationStatement stmt = result.getStatement();
+                writeStatement(json, stmt);
+                if (policyEngine != null) {
+                    json.writeStringField("policy", policyEngine.check(stmt).name());
+                }
+            }
+            json.writeEndObject();
+        }
+        out.write('\n');
+    }
+
+    private static void writeStatement(JsonGenerator json, AttestationStatement stmt)
+            throws IOException {
+        writeBase64Field(json, "nonce", stmt.nonce());
+        json.writeNumberField("timestampMs", stmt.getTimestampMs());
+        if (stmt.getApkPackageName() != null) {
+            json.writeStringField("apkPackageName", stmt.getApkPackageName());
+        }
+        writeBase64Field(json, "apkDigestSha256", stmt.apkDigestSha256());
+        byte[][] certificateDigests = stmt.apkCertificateDigestSha256();
+        if (certificateDigests != null) {
+            json.writeArrayFieldStart("apkCertificateDigestSha256");
+            for (byte[] digest : certificateDigests) {
+                if (digest != null) {
+                    json.writeString(Base64.encodeBase64String(digest));
+                }
+            }
+            json.writeEndArray();
+        }
+        json.writeBooleanField("ctsProfileMatch", stmt.isCtsProfileMatch());
+        json.writeBooleanField("basicIntegrity", stmt.hasBasicIntegrity());
+        json.writeArrayFieldStart("evaluationType");
+        if (stmt.hasBasicEvaluationType()) {
+            json.writeString("BASIC");
+        }
+        if (stmt.hasHardwareBackedEvaluationType()) {
+            json.writeString("HARDWARE_BACKED");
+        }
+        json.writeEndArray();
+    }
+
+    private static void writeBase64Field(JsonGenerator json, String name, byte[] value)
+            throws IOException {
+        if (value != null) {
+            json.writeStringField(name, Base64.encodeBase64String(value));
+        }
+    }
+
+    private static void writeError(OutputStream out, long lineNumber, String error)
+            throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeNumberField("line", lineNumber);
+            json.writeStringField("error", error);
+            json.writeEndObject();
+        }
+        out.write('\n');
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use GET.");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_TEXT);
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = new OutputStreamWriter(exchange.getResponseBody(),
+                    StandardCharsets.UTF_8)) {
+                verifier.getMetrics().writePrometheus(out);
+                if (analytics != null) {
+                    analytics.writePrometheus(out);
+                }
+                if (admission != null) {
+                    admission.writePrometheus(out);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text)
+            throws IOException {
+        byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int length) {
+        byte[] grown = new byte[Math.min(buffer.length * 2, MAX_STATEMENT_SIZE + 1)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        return grown;
+    }
+
+    private static int indexOf(byte[] buffer, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String queryParameter(String rawQuery, String name)
+            throws UnsupportedEncodingException {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0 && parameter.substring(0, separator).equals(name)) {
+                return URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        int port = 8080;
+        AttestationVerifier.Builder builder = AttestationVerifier.newBuilder();
+        PolicyEngine policyEngine = null;
+        NonceIssuer nonceIssuer = null;
+        IntegrityAnalytics analytics = null;
+        AdmissionController.Builder admissionBuilder = AdmissionController.newBuilder();
+        boolean admissionControl = false;
+        // Offline and online verification record into the same metrics, served on /metrics.
+        VerificationMetrics metrics = new VerificationMetrics();
+        builder.setMetrics(metrics);
+        AsyncOnlineVerifier.Builder onlineBuilder = AsyncOnlineVerifier.newBuilder()
+                .setMetrics(metrics);
+        NonceReplayRegistry replayRegistry = null;
+        String apiKey = null;
+        double crossCheckRate = 0.01;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                printUsage();
+                return;
+            }
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--trust-store":
+                    builder.setTrustStore(TrustStores.fromCertificates(
+                            new File(args[i + 1]).toPath()));
+                    break;
+                case "--policy":
+                    policyEngine = new PolicyEngine(new File(args[i + 1]).toPath());
+                    policyEngine.startReloading(10, TimeUnit.SECONDS);
+                    break;
+                case "--nonce-key":
+                    // A file with a secret key of at least 32 bytes, shared by all servers. The
+                    // nonces of verified statements must then have been issued to the client in
+                    // the client parameter, or fail with INVALID_NONCE or EXPIRED_NONCE.
+                    nonceIssuer = new NonceIssuer(Files.readAllBytes(new File(args[i + 1])
+                            .toPath()), 10, TimeUnit.MINUTES);
+                    break;
+                case "--replay-window":
+                    // Rejects statements that reuse a nonce with REPLAYED_NONCE, and statements
+                    // older than this many minutes with STALE_STATEMENT.
+                    replayRegistry = new NonceReplayRegistry(Long.parseLong(args[i + 1]),
+                            TimeUnit.MINUTES, 1000000);
+                    break;
+                case "--revocation":
+                    // Revocation lists or serial numbers, reloaded when they change.
+                    RevocationChecker revocationChecker = new RevocationChecker(
+                            new File(args[i + 1]).toPath());
+                    revocationChecker.startReloading(60, TimeUnit.SECONDS);
+                    builder.setRevocationChecker(revocationChecker);
+                    break;
+                case "--audit-log":
+                    // Records the outcome of every verification, see AuditLog.
+                    builder.setAuditLog(AuditLog.newBuilder()
+                            .setDirectory(new File(args[i + 1]).toPath()).build());
+                    break;
+                case "--analytics-window":
+                    // Integrity rates per package over this many minutes, in one minute buckets.
+                    int minutes = Integer.parseInt(args[i + 1]);
+                    analytics = new IntegrityAnalytics(minutes, TimeUnit.MINUTES, minutes, 1024);
+                    builder.setAnalytics(analytics);
+                    break;
+                case "--max-in-flight":
+                    // Statements beyond these limits are rejected with OVERLOADED (status 503).
+                    admissionBuilder.setMaxInFlight(Integer.parseInt(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--max-in-flight-bytes":
+                    admissionBuilder.setMaxInFlightBytes(Long.parseLong(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--max-token-size":
+                    // Larger statements are rejected with TOO_LARGE (status 413).
+                    admissionBuilder.setMaxTokenSize(Integer.parseInt(args[i + 1]));
+                    admissionControl = true;
+                    break;
+                case "--caller-rate":
+                    // Statements per second and client address, beyond which they are rejected
+                    // with RATE_LIMITED (status 429). Bursts of one second are allowed.
+                    double callerRate = Double.parseDouble(args[i + 1]);
+                    admissionBuilder.setCallerRate(callerRate, (int) Math.ceil(callerRate));
+                    admissionControl = true;
+                    break;
+                case "--package-rate":
+                    // Verified statements per second and package name.
+                    double packageRate = Double.parseDouble(args[i + 1]);
+                    admissionBuilder.setPackageRate(packageRate, (int) Math.ceil(packageRate));
+                    admissionControl = true;
+                    break;
+                case "--api-key":
+                    // Enables cross-checks of statements with the Device Verification API.
+                    apiKey = args[i + 1];
+                    onlineBuilder.setApiKey(apiKey);
+                    break;
+                case "--online-endpoint":
+                    onlineBuilder.setEndpoint(URI.create(args[i + 1]));
+                    break;
+                case "--cross-check-rate":
+                    crossCheckRate = Double.parseDouble(args[i + 1]);
+                    break;
+                default:
+                    printUsage();
+                    return;
+            }
+        }
+
+        TieredVerifier verifier = TieredVerifier.newBuilder()
+                .setOfflineVerifier(builder.build())
+                .setOnlineVerifier(apiKey != null ? onlineBuilder.build() : null)
+                .setSampleRate(crossCheckRate)
+                // Clients and gateways resubmit the same statement within seconds.
+                .setResultCache(100000, 30, TimeUnit.SECONDS)
+                .build();
+        VerificationServer server = new VerificationServer(verifier, policyEngine, nonceIssuer,
+                analytics, admissionControl ? admissionBuilder.build() : null,
+                replayRegistry);
+        server.start(new InetSocketAddress(port));
+        System.err.println("Verifying attestation statements on port " + server.getPort() + ".");
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: VerificationServer [--port <port>] [--trust-store <certificate "
+                + "file>] [--policy <policy file>] [--nonce-key <key file>] [--replay-window "
+                + "<minutes>] [--revocation <revocation file or directory>] [--audit-log "
+                + "<directory>] [--analytics-window <minutes>] [--max-in-flight <statements>] "
+                + "[--max-in-flight-bytes <bytes>] [--max-token-size <bytes>] [--caller-rate "
+                + "<statements per second>] [--package-rate <statements per second>] [--api-key "
+                + "<API key> [--cross-check-rate <fraction>] [--online-endpoint <url>]]");
+    }
+}
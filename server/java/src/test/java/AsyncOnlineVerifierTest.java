@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link AsyncOnlineVerifier} against a local {@link StubVerificationEndpoint}.
+ */
+public class AsyncOnlineVerifierTest {
+
+    private static final int INITIAL_CONCURRENCY = 16;
+
+    private StubVerificationEndpoint endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        endpoint = new StubVerificationEndpoint();
+        endpoint.tailFraction = 0;
+        endpoint.start(0);
+    }
+
+    @After
+    public void tearDown() {
+        endpoint.stop();
+    }
+
+    @Test
+    public void validResponseIsReturned() throws Exception {
+        endpoint.latencyMs = 0;
+        AsyncOnlineVerifier verifier = newBuilder().build();
+        assertTrue(verifier.verify("statement").get(10, TimeUnit.SECONDS).isValidSignature);
+    }
+
+    @Test
+    public void timeoutsLowerConcurrencyLimit() throws Exception {
+        // The endpoint stalls for much longer than the request timeout.
+        endpoint.latencyMs = 10000;
+        AsyncOnlineVerifier verifier = newBuilder()
+                .setRequestTimeout(100, TimeUnit.MILLISECONDS)
+                .build();
+        List<CompletableFuture<OnlineVerify.VerificationResponse>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(verifier.verify("statement " + i));
+        }
+        for (CompletableFuture<OnlineVerify.VerificationResponse> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("The request did not time out.");
+            } catch (ExecutionException e) {
+                // The cause is passed on as it is, not wrapped by the HTTP client's future.
+                assertTrue(String.valueOf(e.getCause()),
+                        e.getCause() instanceof HttpTimeoutException);
+            }
+        }
+        assertTrue("limit: " + verifier.getConcurrencyLimit(),
+                verifier.getConcurrencyLimit() < INITIAL_CONCURRENCY);
+        assertEquals(4, verifier.getMetrics().getFailureCount(FailureReason.NETWORK_ERROR));
+    }
+
+    private AsyncOnlineVerifier.Builder newBuilder() {
+        return AsyncOnlineVerifier.newBuilder()
+                .setEndpoint(endpoint.getEndpoint())
+                .setConcurrency(INITIAL_CONCURRENCY, 64)
+                .setHedgeDelay(0, TimeUnit.MILLISECONDS)
+                .setMaxAttempts(1);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link BoundedQueue}, including concurrent producers and consumers.
+ */
+public class BoundedQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(2, new BoundedQueue<Integer>(1).capacity());
+        assertEquals(8, new BoundedQueue<Integer>(5).capacity());
+        assertEquals(8, new BoundedQueue<Integer>(8).capacity());
+    }
+
+    @Test
+    public void elementsAreTakenInOrder() {
+        BoundedQueue<Integer> queue = new BoundedQueue<>(4);
+        // Several rounds, so that the slots are reused.
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(round * 4 + i));
+            }
+            assertFalse(queue.offer(-1));
+            assertEquals(4, queue.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(round * 4 + i), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullIsRejected() {
+        new BoundedQueue<Integer>(4).offer(null);
+    }
+
+    @Test
+    public void putWaitsForFreeSlot() throws InterruptedException {
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(2);
+        queue.put(1);
+        queue.put(2);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        queue.put(3);
+        consumer.join();
+        assertEquals(1, queue.getFullWaits());
+        assertEquals(Integer.valueOf(2), queue.take());
+        assertEquals(Integer.valueOf(3), queue.take());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void takeIsInterruptible() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        new BoundedQueue<Integer>(2).take();
+    }
+
+    @Test
+    public void everyElementIsTakenExactlyOnce() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 100000;
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(64);
+        final AtomicIntegerArray taken = new AtomicIntegerArray(producers * perProducer);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int first = p * perProducer;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            queue.put(first + i);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // The elements of one producer are taken in the order they were added.
+                        int[] last = new int[producers];
+                        for (int i = 0; i < producers * perProducer / consumers; i++) {
+                            int element = queue.take();
+                            int producer = element / perProducer;
+                            if (element % perProducer < last[producer]) {
+                                throw new AssertionError("out of order: " + element);
+                            }
+                            last[producer] = element % perProducer;
+                            taken.incrementAndGet(element);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+        assertNull(failure.get());
+        for (int i = 0; i < taken.length(); i++) {
+            assertEquals("element " + i, 1, taken.get(i));
+        }
+        assertNull(queue.poll());
+    }
+}
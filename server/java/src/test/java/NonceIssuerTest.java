@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link NonceIssuer}, with the current time passed in explicitly.
+ */
+public class NonceIssuerTest {
+
+    private static final long LIFETIME_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long NOW_MS = 1500000000000L;
+
+    private NonceIssuer issuer;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        issuer = new NonceIssuer(key(1), LIFETIME_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void issuedNonceIsValidForItsClient() {
+        byte[] nonce = issuer.issue("client", NOW_MS);
+        assertEquals(NonceIssuer.NONCE_LENGTH, nonce.length);
+        assertEquals(NonceIssuer.Result.VALID, issuer.check(nonce, "client", NOW_MS));
+        assertEquals(NonceIssuer.Result.INVALID_MAC, issuer.check(nonce, "other", NOW_MS));
+    }
+
+    @Test
+    public void nonceIsRandom() {
+        assertFalse(Arrays.equals(issuer.issue("client", NOW_MS), issuer.issue("client", NOW_MS)));
+    }
+
+    @Test
+    public void nullBindingDiffersFromEmptyBinding() {
+        assertEquals(NonceIssuer.Result.VALID,
+                issuer.check(issuer.issue(null, NOW_MS), null, NOW_MS));
+        assertEquals(NonceIssuer.Result.INVALID_MAC,
+                issuer.check(issuer.issue(null, NOW_MS), "", NOW_MS));
+        assertEquals(NonceIssuer.Result.INVALID_MAC,
+                issuer.check(issuer.issue("", NOW_MS), null, NOW_MS));
+    }
+
+    @Test
+    public void modifiedNonceIsRejected() {
+        byte[] nonce = issuer.issue("client", NOW_MS);
+        for (int i = 1; i < nonce.length; i++) {
+            byte[] modified = nonce.clone();
+            modified[i] ^= 1;
+            assertEquals("byte " + i, NonceIssuer.Result.INVALID_MAC,
+                    issuer.check(modified, "client", NOW_MS));
+        }
+    }
+
+    @Test
+    public void nonceOfOtherKeyIsRejected() throws GeneralSecurityException {
+        NonceIssuer other = new NonceIssuer(key(2), LIFETIME_MS, TimeUnit.MILLISECONDS);
+        assertEquals(NonceIssuer.Result.INVALID_MAC,
+                issuer.check(other.issue("client", NOW_MS), "client", NOW_MS));
+    }
+
+    @Test
+    public void malformedNonceIsRejected() {
+        byte[] nonce = issuer.issue("client", NOW_MS);
+        assertEquals(NonceIssuer.Result.MALFORMED, issuer.check(null, "client", NOW_MS));
+        assertEquals(NonceIssuer.Result.MALFORMED,
+                issuer.check(Arrays.copyOf(nonce, nonce.length - 1), "client", NOW_MS));
+        nonce[0] = 1;
+        assertEquals(NonceIssuer.Result.MALFORMED, issuer.check(nonce, "client", NOW_MS));
+    }
+
+    @Test
+    public void nonceExpiresAfterLifetime() {
+        byte[] nonce = issuer.issue("client", NOW_MS);
+        assertEquals(NonceIssuer.Result.VALID,
+                issuer.check(nonce, "client", NOW_MS + LIFETIME_MS));
+        assertEquals(NonceIssuer.Result.EXPIRED,
+                issuer.check(nonce, "client", NOW_MS + LIFETIME_MS + 1));
+    }
+
+    @Test
+    public void nonceFromFutureIsOnlyValidWithinClockSkew() {
+        assertEquals(NonceIssuer.Result.VALID, issuer.check(
+                issuer.issue("client", NOW_MS + TimeUnit.SECONDS.toMillis(30)), "client", NOW_MS));
+        assertEquals(NonceIssuer.Result.EXPIRED, issuer.check(
+                issuer.issue("client", NOW_MS + TimeUnit.SECONDS.toMillis(31)), "client", NOW_MS));
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void shortKeyIsRejected() throws GeneralSecurityException {
+        new NonceIssuer(new byte[31], LIFETIME_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) seed);
+        return key;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link NonceReplayRegistry}, with the current time passed in explicitly.
+ */
+public class NonceReplayRegistryTest {
+
+    private static final long WINDOW_MS = 60000;
+    private static final long MAX_CLOCK_SKEW_MS = 1000;
+    private static final long NOW_MS = 1500000000000L;
+
+    private NonceReplayRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new NonceReplayRegistry(WINDOW_MS, MAX_CLOCK_SKEW_MS, 100, 1);
+    }
+
+    @Test
+    public void acceptsNewNonceAndRejectsReplay() {
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(1), NOW_MS, NOW_MS));
+        assertEquals(NonceReplayRegistry.Result.REPLAYED,
+                registry.register(nonce(1), NOW_MS, NOW_MS + 10));
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(2), NOW_MS, NOW_MS + 10));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void rejectsStatementsOutsideWindow() {
+        assertEquals(NonceReplayRegistry.Result.STALE,
+                registry.register(nonce(1), NOW_MS - WINDOW_MS - 1, NOW_MS));
+        assertEquals(NonceReplayRegistry.Result.STALE,
+                registry.register(nonce(2), NOW_MS + MAX_CLOCK_SKEW_MS + 1, NOW_MS));
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(3), NOW_MS - WINDOW_MS, NOW_MS));
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(4), NOW_MS + MAX_CLOCK_SKEW_MS, NOW_MS));
+    }
+
+    @Test
+    public void rejectsMissingNonce() {
+        assertEquals(NonceReplayRegistry.Result.STALE, registry.register(null, NOW_MS, NOW_MS));
+        assertEquals(NonceReplayRegistry.Result.STALE,
+                registry.register(new byte[0], NOW_MS, NOW_MS));
+    }
+
+    @Test
+    public void replayIsRejectedUntilStatementExpires() {
+        registry.register(nonce(1), NOW_MS, NOW_MS);
+        assertEquals(NonceReplayRegistry.Result.REPLAYED,
+                registry.register(nonce(1), NOW_MS, NOW_MS + WINDOW_MS));
+        // The same statement is stale by now, but a new statement may reuse the nonce.
+        long laterMs = NOW_MS + WINDOW_MS + 1;
+        assertEquals(NonceReplayRegistry.Result.STALE,
+                registry.register(nonce(1), NOW_MS, laterMs));
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(1), laterMs, laterMs));
+    }
+
+    @Test
+    public void expiredEntriesAreRemovedByWheel() {
+        for (int i = 0; i < 50; i++) {
+            registry.register(nonce(i), NOW_MS, NOW_MS);
+        }
+        assertEquals(50, registry.size());
+
+        long laterMs = NOW_MS + 2 * (WINDOW_MS + MAX_CLOCK_SKEW_MS);
+        assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                registry.register(nonce(1000), laterMs, laterMs));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void fullRegistryRejectsNonceUntilEntriesExpire() {
+        int accepted = 0;
+        NonceReplayRegistry.Result result;
+        while ((result = registry.register(nonce(accepted), NOW_MS, NOW_MS))
+                == NonceReplayRegistry.Result.ACCEPTED) {
+            accepted++;
+        }
+        assertEquals(NonceReplayRegistry.Result.CAPACITY_EXCEEDED, result);
+        assertTrue(accepted >= 100);
+
+        // Once the entries have expired, the table is rebuilt and has room for as many again.
+        long laterMs = NOW_MS + WINDOW_MS + MAX_CLOCK_SKEW_MS + 1;
+        for (int i = 0; i < accepted; i++) {
+            assertEquals(NonceReplayRegistry.Result.ACCEPTED,
+                    registry.register(nonce(accepted + i), laterMs, laterMs));
+        }
+        assertEquals(accepted, registry.size());
+        // The nonces registered after the rebuild are remembered.
+        assertEquals(NonceReplayRegistry.Result.REPLAYED,
+                registry.register(nonce(accepted), laterMs, laterMs));
+    }
+
+    private static byte[] nonce(int value) {
+        return ByteBuffer.allocate(16).putInt(value).putInt(12, ~value).array();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the limits of {@link RateLimiter}. The rate limiter uses the system clock, so the
+ * rates are chosen such that the tests do not depend on the exact timing.
+ */
+public class RateLimiterTest {
+
+    /**
+     * A rate at which no permit is refilled while a test runs.
+     */
+    private static final double ONE_PER_HOUR = 1.0 / 3600;
+
+    @Test
+    public void fullBucketHoldsBurst() {
+        // A multiple of every possible number of stripes, so no rounding is involved.
+        RateLimiter limiter = new RateLimiter(ONE_PER_HOUR, 32, 10);
+        assertEquals(32, drain(limiter, "key"));
+        assertFalse(limiter.tryAcquire("key"));
+    }
+
+    @Test
+    public void burstIsNeverRoundedDown() {
+        for (int burst = 1; burst <= 20; burst++) {
+            int permits = drain(new RateLimiter(ONE_PER_HOUR, burst, 10), "key");
+            assertTrue("burst " + burst + ": " + permits, permits >= burst);
+            // At most one extra permit per stripe, and there are at most as many stripes as the
+            // burst.
+            assertTrue("burst " + burst + ": " + permits, permits < 2 * burst);
+        }
+    }
+
+    @Test
+    public void keysHaveTheirOwnBuckets() {
+        RateLimiter limiter = new RateLimiter(ONE_PER_HOUR, 4, 10);
+        assertEquals(4, drain(limiter, "a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    public void keysBeyondMaximumShareOneBucket() {
+        RateLimiter limiter = new RateLimiter(ONE_PER_HOUR, 4, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(4, drain(limiter, "c"));
+        assertFalse(limiter.tryAcquire("d"));
+        assertEquals(3, limiter.size());
+    }
+
+    @Test
+    public void fullBucketsArePurged() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(1000000, 1, 1);
+        assertTrue(limiter.tryAcquire("a"));
+        // The bucket of "a" is full again after a microsecond, so "b" takes its place.
+        Thread.sleep(10);
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void emptyBucketIsRefilledAtRate() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(10, 1, 10);
+        assertTrue(limiter.tryAcquire("key"));
+        assertFalse(limiter.tryAcquire("key"));
+        Thread.sleep(150);
+        assertTrue(limiter.tryAcquire("key"));
+    }
+
+    @Test
+    public void sustainedRateIsLimited() {
+        RateLimiter limiter = new RateLimiter(200, 1, 10);
+        long endNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        int permits = 0;
+        while (System.nanoTime() < endNs) {
+            if (limiter.tryAcquire("key")) {
+                permits++;
+            }
+        }
+        // 200 permits and the full bucket at the start. Only the upper bound is strict, as the
+        // thread may not get to run all the time.
+        assertTrue("permits: " + permits, permits <= 201);
+        assertTrue("permits: " + permits, permits >= 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroRateIsRejected() {
+        new RateLimiter(0, 1, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBurstIsRejected() {
+        new RateLimiter(1, 0, 10);
+    }
+
+    /**
+     * Takes permits for the key until there are none left, and returns their number.
+     */
+    private static int drain(RateLimiter limiter, String key) {
+        int permits = 0;
+        while (limiter.tryAcquire(key)) {
+            permits++;
+        }
+        return permits;
+    }
+}
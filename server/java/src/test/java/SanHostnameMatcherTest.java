@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Tests for the RFC 6125 rules of {@link SanHostnameMatcher}.
+ */
+public class SanHostnameMatcherTest {
+
+    private static final String HOSTNAME = "attest.android.com";
+
+    @Test
+    public void exactNameMatches() {
+        assertTrue(SanHostnameMatcher.matches(HOSTNAME, "attest.android.com"));
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "android.com"));
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "evil-attest.android.com"));
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "attest.android.com.evil.com"));
+    }
+
+    @Test
+    public void wildcardMatchesExactlyOneLabel() {
+        assertTrue(SanHostnameMatcher.matches(HOSTNAME, "*.android.com"));
+        assertFalse(SanHostnameMatcher.matches("android.com", "*.android.com"));
+        assertFalse(SanHostnameMatcher.matches("a.attest.android.com", "*.android.com"));
+        assertFalse(SanHostnameMatcher.matches(".android.com", "*.android.com"));
+    }
+
+    @Test
+    public void wildcardOnlyAsCompleteLeftmostLabel() {
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "att*.android.com"));
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "attest.*.com"));
+        assertFalse(SanHostnameMatcher.matches(HOSTNAME, "*attest.android.com"));
+    }
+
+    @Test
+    public void wildcardBelowTopLevelDomainNeverMatches() {
+        assertFalse(SanHostnameMatcher.matches("android.com", "*.com"));
+        assertFalse(SanHostnameMatcher.matches("android.com", "*."));
+    }
+
+    @Test
+    public void certificateNamesAreNormalized() throws GeneralSecurityException {
+        SanHostnameMatcher matcher = new SanHostnameMatcher("Attest.Android.COM.", 16);
+        assertTrue(matcher.matches(certificate("ATTEST.android.com.")));
+        assertTrue(matcher.matches(certificate("*.Android.com")));
+        assertFalse(matcher.matches(certificate("attest.android.co")));
+    }
+
+    @Test
+    public void cachedResultEqualsUncachedResult() throws GeneralSecurityException {
+        SanHostnameMatcher matcher = new SanHostnameMatcher(HOSTNAME, 1);
+        X509Certificate matching = certificate(HOSTNAME);
+        X509Certificate other = certificate("attest.example.com");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(matcher.matches(matching));
+            assertFalse(matcher.matches(other));
+        }
+        assertTrue(matcher.matchesUncached(matching));
+        assertFalse(matcher.matchesUncached(other));
+    }
+
+    /**
+     * Returns a leaf certificate with the name as its only DNS name.
+     */
+    private static X509Certificate certificate(String dnsName) throws GeneralSecurityException {
+        return TestCertificateAuthority.create(dnsName, 1).getLeafCertificate();
+    }
+}
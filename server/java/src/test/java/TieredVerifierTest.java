@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the cross-checks of {@link TieredVerifier} against a local
+ * {@link StubVerificationEndpoint}, which reports every statement as signed by SafetyNet.
+ */
+public class TieredVerifierTest {
+
+    private StubVerificationEndpoint endpoint;
+    private TestCertificateAuthority trustedCa;
+    private final List<TieredVerifier.Discrepancy> discrepancies =
+            Collections.synchronizedList(new ArrayList<TieredVerifier.Discrepancy>());
+    private final CountDownLatch reported = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        endpoint = new StubVerificationEndpoint();
+        endpoint.latencyMs = 0;
+        endpoint.tailFraction = 0;
+        endpoint.start(0);
+        trustedCa = TestCertificateAuthority.create(AttestationVerifier.ATTESTATION_HOSTNAME, 1);
+    }
+
+    @After
+    public void tearDown() {
+        endpoint.stop();
+    }
+
+    @Test
+    public void untrustedChainIsCrossChecked() throws Exception {
+        TestCertificateAuthority untrustedCa =
+                TestCertificateAuthority.create(AttestationVerifier.ATTESTATION_HOSTNAME, 1);
+        TieredVerifier verifier = newVerifier();
+
+        VerificationResult result = verifier.verify(mint(untrustedCa));
+
+        assertEquals(FailureReason.UNTRUSTED_CERTIFICATE_CHAIN, result.getFailureReason());
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(
+                TieredVerifier.Discrepancy.OFFLINE_REJECTED_ONLINE_ACCEPTED), discrepancies);
+        assertEquals(1, verifier.getCrossCheckedCount());
+    }
+
+    @Test
+    public void hostnameMismatchIsCrossChecked() throws Exception {
+        trustedCa = TestCertificateAuthority.create("attest.example.com", 1);
+        TieredVerifier verifier = newVerifier();
+
+        VerificationResult result = verifier.verify(mint(trustedCa));
+
+        assertEquals(FailureReason.HOSTNAME_MISMATCH, result.getFailureReason());
+        assertTrue(reported.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(
+                TieredVerifier.Discrepancy.OFFLINE_REJECTED_ONLINE_ACCEPTED), discrepancies);
+    }
+
+    @Test
+    public void verifiedStatementIsNotReported() throws Exception {
+        TieredVerifier verifier = newVerifier();
+
+        assertTrue(verifier.verify(mint(trustedCa)).isVerified());
+        waitForCrossChecks(verifier);
+
+        assertEquals(1, verifier.getCrossCheckedCount());
+        assertTrue(discrepancies.isEmpty());
+    }
+
+    @Test
+    public void malformedStatementIsNotCrossChecked() throws Exception {
+        TieredVerifier verifier = newVerifier();
+
+        VerificationResult result = verifier.verify("not.a.statement");
+
+        assertFalse(result.isVerified());
+        assertEquals(FailureReason.INVALID_JWS, result.getFailureReason());
+        waitForCrossChecks(verifier);
+        assertEquals(0, verifier.getCrossCheckedCount());
+        assertEquals(0, endpoint.getRequestCount());
+    }
+
+    private TieredVerifier newVerifier() throws GeneralSecurityException {
+        AttestationVerifier offlineVerifier = AttestationVerifier.newBuilder()
+                .setTrustStore(trustedCa.getTrustStore())
+                .build();
+        AsyncOnlineVerifier onlineVerifier = AsyncOnlineVerifier.newBuilder()
+                .setEndpoint(endpoint.getEndpoint())
+                .build();
+        return TieredVerifier.newBuilder()
+                .setOfflineVerifier(offlineVerifier)
+                .setOnlineVerifier(onlineVerifier)
+                .setSampleRate(1)
+                .setFailureSampleRate(1)
+                .setDiscrepancyListener(new TieredVerifier.DiscrepancyListener() {
+                    @Override
+                    public void onDiscrepancy(String signedAttestationStatement,
+                                              VerificationResult offlineResult,
+                                              TieredVerifier.Discrepancy discrepancy) {
+                        discrepancies.add(discrepancy);
+                        reported.countDown();
+                    }
+                })
+                .build();
+    }
+
+    private static String mint(TestCertificateAuthority ca) throws Exception {
+        return new TokenGenerator(ca, new TokenGenerator.Distribution())
+                .mint(new SplittableRandom(1), System.currentTimeMillis());
+    }
+
+    private static void waitForCrossChecks(TieredVerifier verifier) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (verifier.getPendingCount() > 0 && System.nanoTime() < deadlineNs) {
+            Thread.sleep(10);
+        }
+    }
+}
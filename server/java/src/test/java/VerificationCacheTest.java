@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Tests for {@link VerificationCache}, including concurrent requests for the same statement.
+ */
+public class VerificationCacheTest {
+
+    private static final int THREADS = 8;
+
+    private static final DigestKey KEY = VerificationCache.keyOf("statement");
+
+    /**
+     * Counts its calls and returns the same future every time.
+     */
+    private static final class CountingLoader implements Supplier<CompletableFuture<String>> {
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<String> result;
+
+        CountingLoader(CompletableFuture<String> result) {
+            this.result = result;
+        }
+
+        @Override
+        public CompletableFuture<String> get() {
+            calls.incrementAndGet();
+            return result;
+        }
+    }
+
+    @Test
+    public void resultIsCachedUntilItExpires() throws InterruptedException {
+        VerificationCache<String> cache = new VerificationCache<>(10, 100, TimeUnit.MILLISECONDS);
+        CountingLoader loader = new CountingLoader(CompletableFuture.completedFuture("valid"));
+        assertEquals("valid", cache.get(KEY, loader).join());
+        assertEquals("valid", cache.get(KEY, loader).join());
+        assertEquals(1, loader.calls.get());
+        assertEquals(1, cache.getHitCount());
+
+        Thread.sleep(150);
+        assertEquals("valid", cache.get(KEY, loader).join());
+        assertEquals(2, loader.calls.get());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneLoad() throws Exception {
+        VerificationCache<String> cache = new VerificationCache<>(10, 1, TimeUnit.MINUTES);
+        CountingLoader loader = new CountingLoader(new CompletableFuture<String>());
+        List<CompletableFuture<String>> results = getConcurrently(cache, loader);
+        assertEquals(1, loader.calls.get());
+        for (CompletableFuture<String> result : results) {
+            assertSame(results.get(0), result);
+            assertFalse(result.isDone());
+        }
+        loader.result.complete("valid");
+        for (CompletableFuture<String> result : results) {
+            assertEquals("valid", result.join());
+        }
+    }
+
+    @Test
+    public void concurrentRequestsShareOneReloadOfExpiredResult() throws Exception {
+        VerificationCache<String> cache = new VerificationCache<>(10, 500, TimeUnit.MILLISECONDS);
+        CountingLoader loader = new CountingLoader(CompletableFuture.completedFuture("valid"));
+        cache.get(KEY, loader).join();
+        Thread.sleep(600);
+        for (CompletableFuture<String> result : getConcurrently(cache, loader)) {
+            assertEquals("valid", result.join());
+        }
+        assertEquals(2, loader.calls.get());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        VerificationCache<String> cache = new VerificationCache<>(10, 1, TimeUnit.MINUTES);
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("unreachable"));
+        CountingLoader loader = new CountingLoader(failed);
+        assertTrue(cache.get(KEY, loader).isCompletedExceptionally());
+        assertTrue(cache.get(KEY, loader).isCompletedExceptionally());
+        assertEquals(2, loader.calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void throwingLoaderDoesNotBlockLaterRequests() {
+        VerificationCache<String> cache = new VerificationCache<>(10, 1, TimeUnit.MINUTES);
+        CompletableFuture<String> result = cache.get(KEY,
+                new Supplier<CompletableFuture<String>>() {
+                    @Override
+                    public CompletableFuture<String> get() {
+                        throw new AssertionError("loader failed");
+                    }
+                });
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, cache.size());
+
+        CountingLoader loader = new CountingLoader(CompletableFuture.completedFuture("valid"));
+        assertEquals("valid", cache.get(KEY, loader).join());
+        assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void racingExpiriesAndRemovalsAlwaysReturnResult() throws Exception {
+        // Every result expires right away, so each request races to replace the last one.
+        final VerificationCache<String> cache =
+                new VerificationCache<>(10, 1, TimeUnit.NANOSECONDS);
+        final Supplier<CompletableFuture<String>> loader = new CountingLoader(
+                CompletableFuture.completedFuture("valid"));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final boolean removing = t % 2 == 0;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 20000; i++) {
+                            if (removing && i % 3 == 0) {
+                                cache.remove(KEY);
+                            }
+                            if (!"valid".equals(cache.get(KEY, loader).join())) {
+                                throw new AssertionError("wrong result");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+        assertNull(failure.get());
+    }
+
+    /**
+     * Requests the key from several threads at the same time and returns their futures.
+     */
+    private static List<CompletableFuture<String>> getConcurrently(
+            final VerificationCache<String> cache, final CountingLoader loader)
+            throws InterruptedException {
+        final List<CompletableFuture<String>> results = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    CompletableFuture<String> result = cache.get(KEY, loader);
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(THREADS, results.size());
+        return results;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+/**
+ * Tests for the verdicts of a compiled {@link VerificationPolicy}.
+ */
+public class VerificationPolicyTest {
+
+    private static final String PACKAGE_NAME = "com.example.app";
+    private static final long NOW_MS = 1500000000000L;
+    private static final long MAX_AGE_MS = 60000;
+
+    private VerificationPolicy.PackageConfig packageConfig;
+    private VerificationPolicy.Config config;
+
+    @Before
+    public void setUp() {
+        packageConfig = new VerificationPolicy.PackageConfig();
+        packageConfig.packageName = PACKAGE_NAME;
+        packageConfig.apkCertificateDigestSha256 = Arrays.asList(digest(1), digest(2));
+        config = new VerificationPolicy.Config();
+        config.maxAgeMs = MAX_AGE_MS;
+        config.packages = Collections.singletonList(packageConfig);
+    }
+
+    @Test
+    public void allowsMatchingStatement() throws IOException {
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(statement()));
+    }
+
+    @Test
+    public void rejectsUnknownPackage() throws IOException {
+        AttestationStatement stmt = statement();
+        stmt.setApkPackageName("com.example.other");
+        assertEquals(VerificationPolicy.Verdict.UNKNOWN_PACKAGE, check(stmt));
+        stmt.setApkPackageName(null);
+        assertEquals(VerificationPolicy.Verdict.UNKNOWN_PACKAGE, check(stmt));
+    }
+
+    @Test
+    public void emptyPolicyRejectsEveryStatement() {
+        assertEquals(VerificationPolicy.Verdict.UNKNOWN_PACKAGE,
+                VerificationPolicy.empty().check(statement(), NOW_MS));
+    }
+
+    @Test
+    public void everyCertificateMustBeAllowed() throws IOException {
+        AttestationStatement stmt = statement();
+        stmt.setApkCertificateDigestSha256(new String[] {digest(1), digest(2)});
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+        stmt.setApkCertificateDigestSha256(new String[] {digest(1), digest(3)});
+        assertEquals(VerificationPolicy.Verdict.CERTIFICATE_DIGEST_MISMATCH, check(stmt));
+        stmt.setApkCertificateDigestSha256(new String[0]);
+        assertEquals(VerificationPolicy.Verdict.CERTIFICATE_DIGEST_MISMATCH, check(stmt));
+        stmt.setApkCertificateDigestSha256(null);
+        assertEquals(VerificationPolicy.Verdict.CERTIFICATE_DIGEST_MISMATCH, check(stmt));
+    }
+
+    @Test
+    public void apkDigestIsOnlyCheckedIfListed() throws IOException {
+        AttestationStatement stmt = statement();
+        stmt.setApkDigestSha256(digest(4));
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+
+        packageConfig.apkDigestSha256 = Collections.singletonList(digest(5));
+        assertEquals(VerificationPolicy.Verdict.APK_DIGEST_MISMATCH, check(stmt));
+        stmt.setApkDigestSha256(digest(5));
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+    }
+
+    @Test
+    public void timestampMustBeWithinWindow() throws IOException {
+        AttestationStatement stmt = statement();
+        stmt.setTimestampMs(NOW_MS - MAX_AGE_MS);
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+        stmt.setTimestampMs(NOW_MS - MAX_AGE_MS - 1);
+        assertEquals(VerificationPolicy.Verdict.TIMESTAMP_OUT_OF_WINDOW, check(stmt));
+        stmt.setTimestampMs(NOW_MS + VerificationPolicy.DEFAULT_MAX_CLOCK_SKEW_MS + 1);
+        assertEquals(VerificationPolicy.Verdict.TIMESTAMP_OUT_OF_WINDOW, check(stmt));
+    }
+
+    @Test
+    public void packageMaxAgeOverridesDefault() throws IOException {
+        packageConfig.maxAgeMs = 2 * MAX_AGE_MS;
+        AttestationStatement stmt = statement();
+        stmt.setTimestampMs(NOW_MS - MAX_AGE_MS - 1);
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+    }
+
+    @Test
+    public void integrityRequirements() throws IOException {
+        AttestationStatement stmt = statement();
+        stmt.setCtsProfileMatch(false);
+        stmt.setBasicIntegrity(false);
+        stmt.setEvaluationType("BASIC");
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+
+        packageConfig.requireCtsProfileMatch = true;
+        assertEquals(VerificationPolicy.Verdict.CTS_PROFILE_MISMATCH, check(stmt));
+        stmt.setCtsProfileMatch(true);
+        packageConfig.requireBasicIntegrity = true;
+        assertEquals(VerificationPolicy.Verdict.BASIC_INTEGRITY_FAILED, check(stmt));
+        stmt.setBasicIntegrity(true);
+        packageConfig.requireHardwareBacked = true;
+        assertEquals(VerificationPolicy.Verdict.HARDWARE_BACKED_REQUIRED, check(stmt));
+        stmt.setEvaluationType("BASIC,HARDWARE_BACKED");
+        assertEquals(VerificationPolicy.Verdict.ALLOWED, check(stmt));
+    }
+
+    @Test(expected = IOException.class)
+    public void ruleWithoutCertificatesIsRejected() throws IOException {
+        packageConfig.apkCertificateDigestSha256 = null;
+        VerificationPolicy.compile(config);
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidDigestIsRejected() throws IOException {
+        packageConfig.apkCertificateDigestSha256 = Collections.singletonList("not a digest");
+        VerificationPolicy.compile(config);
+    }
+
+    @Test(expected = IOException.class)
+    public void duplicateRuleIsRejected() throws IOException {
+        config.packages = Arrays.asList(packageConfig, packageConfig);
+        VerificationPolicy.compile(config);
+    }
+
+    private VerificationPolicy.Verdict check(AttestationStatement stmt) throws IOException {
+        return VerificationPolicy.compile(config).check(stmt, NOW_MS);
+    }
+
+    private static AttestationStatement statement() {
+        AttestationStatement stmt = new AttestationStatement();
+        stmt.setApkPackageName(PACKAGE_NAME);
+        stmt.setApkCertificateDigestSha256(new String[] {digest(2)});
+        stmt.setTimestampMs(NOW_MS);
+        stmt.setCtsProfileMatch(true);
+        stmt.setBasicIntegrity(true);
+        stmt.setEvaluationType("BASIC");
+        return stmt;
+    }
+
+    /**
+     * Returns a base64 encoded SHA-256 digest whose bytes are all {@code value}.
+     */
+    private static String digest(int value) {
+        byte[] digest = new byte[32];
+        Arrays.fill(digest, (byte) value);
+        return Base64.getEncoder().encodeToString(digest);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the cold start of a verifier entry point: the time from launching a new JVM until the
+ * first line of the verification result is written to standard out, and until the JVM has exited.
+ * Each configuration is launched the given number of times, with the JDK's default class-data
+ * sharing archive and, if given, with an application class-data sharing (AppCDS) archive.
+ * <p>
+ * Usage: ColdStartBenchmark [--runs n] [--archive file.jsa] [--report file] --classpath path
+ * main-class [args...]
+ */
+public class ColdStartBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        File archive = null;
+        File report = null;
+        String classpath = null;
+        int i = 0;
+        for (; i + 1 < args.length && args[i].startsWith("--"); i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--runs":
+                    runs = Integer.parseInt(value);
+                    break;
+                case "--archive":
+                    archive = new File(value);
+                    break;
+                case "--report":
+                    report = new File(value);
+                    break;
+                case "--classpath":
+                    classpath = value;
+                    break;
+                default:
+                    System.err.println("Failure: Unknown option " + args[i] + ".");
+                    return;
+            }
+        }
+        if (classpath == null || i >= args.length) {
+            System.err.println("Usage: ColdStartBenchmark [--runs n] [--archive file.jsa] "
+                    + "[--report file] --classpath path main-class [args...]");
+            return;
+        }
+        List<String> program = Arrays.asList(args).subList(i, args.length);
+
+        List<String> lines = new ArrayList<>();
+        lines.add("Cold start of " + program.get(0) + ", " + runs + " runs each, median "
+                + "(min-max) in ms:");
+        lines.add(measure("default CDS", classpath, null, program, runs));
+        if (archive != null) {
+            if (archive.isFile()) {
+                lines.add(measure("AppCDS", classpath, archive, program, runs));
+            } else {
+                lines.add("AppCDS: no archive at " + archive);
+            }
+        }
+        for (String line : lines) {
+            System.out.println(line);
+        }
+        if (report != null) {
+            report.getAbsoluteFile().getParentFile().mkdirs();
+            try (PrintStream out = new PrintStream(report, "UTF-8")) {
+                for (String line : lines) {
+                    out.println(line);
+                }
+            }
+        }
+    }
+
+    private static String measure(String name, String classpath, File archive,
+                                  List<String> program, int runs)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (archive != null) {
+            // Fails instead of silently falling back to the default archive if it can't be used,
+            // e.g. because the classpath or the JDK differs from the one it was created with.
+            command.add("-XX:SharedArchiveFile=" + archive.getPath());
+            command.add("-Xshare:on");
+        }
+        command.add("-cp");
+        command.add(classpath);
+        command.addAll(program);
+
+        // One run to warm up the file system cache.
+        run(command);
+        long[] firstOutputNs = new long[runs];
+        long[] exitNs = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long[] times = run(command);
+            firstOutputNs[run] = times[0];
+            exitNs[run] = times[1];
+        }
+        return String.format("%s: first verification %s, exit %s", name,
+                summary(firstOutputNs), summary(exitNs));
+    }
+
+    /**
+     * Runs the command and returns the time until the first line on standard out and until the
+     * process has exited.
+     */
+    private static long[] run(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        long startNs = System.nanoTime();
+        Process process = builder.start();
+        long firstOutputNs;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            if (reader.readLine() == null) {
+                throw new IOException("The command wrote nothing to standard out: " + command);
+            }
+            firstOutputNs = System.nanoTime() - startNs;
+            while (reader.readLine() != null) {
+                // Drain the output so that the process isn't blocked.
+            }
+        }
+        int exitCode = process.waitFor();
+        long exitNs = System.nanoTime() - startNs;
+        if (exitCode != 0) {
+            throw new IOException("The command exited with " + exitCode + ": " + command);
+        }
+        return new long[]{firstOutputNs, exitNs};
+    }
+
+    private static String summary(long[] ns) {
+        long[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        return String.format("%d (%d-%d)", sorted[sorted.length / 2] / 1000000,
+                sorted[0] / 1000000, sorted[sorted.length - 1] / 1000000);
+    }
+}
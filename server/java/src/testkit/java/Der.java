@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Minimal DER encoder for the ASN.1 structures of an X.509 certificate.
+ */
+final class Der {
+
+    private static final int BOOLEAN = 0x01;
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int OCTET_STRING = 0x04;
+    private static final int NULL = 0x05;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int UTF8_STRING = 0x0c;
+    private static final int UTC_TIME = 0x17;
+    private static final int GENERALIZED_TIME = 0x18;
+    private static final int SEQUENCE = 0x30;
+    private static final int SET = 0x31;
+
+    private Der() {
+    }
+
+    static byte[] sequence(byte[]... elements) {
+        return tagged(SEQUENCE, concat(elements));
+    }
+
+    static byte[] set(byte[]... elements) {
+        return tagged(SET, concat(elements));
+    }
+
+    static byte[] integer(BigInteger value) {
+        return tagged(INTEGER, value.toByteArray());
+    }
+
+    static byte[] integer(long value) {
+        return integer(BigInteger.valueOf(value));
+    }
+
+    static byte[] bool(boolean value) {
+        return tagged(BOOLEAN, new byte[]{(byte) (value ? 0xff : 0x00)});
+    }
+
+    static byte[] nul() {
+        return new byte[]{NULL, 0};
+    }
+
+    static byte[] octetString(byte[] value) {
+        return tagged(OCTET_STRING, value);
+    }
+
+    /**
+     * A bit string without unused bits.
+     */
+    static byte[] bitString(byte[] value) {
+        return bitString(value, 0);
+    }
+
+    static byte[] bitString(byte[] value, int unusedBits) {
+        byte[] content = new byte[value.length + 1];
+        content[0] = (byte) unusedBits;
+        System.arraycopy(value, 0, content, 1, value.length);
+        return tagged(BIT_STRING, content);
+    }
+
+    static byte[] utf8String(String value) {
+        return tagged(UTF8_STRING, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A certificate validity time: UTCTime for dates before 2050 and GeneralizedTime after, as
+     * required by RFC 5280.
+     */
+    static byte[] time(Date date) {
+        SimpleDateFormat year = new SimpleDateFormat("yyyy");
+        year.setTimeZone(TimeZone.getTimeZone("UTC"));
+        boolean utcTime = Integer.parseInt(year.format(date)) < 2050;
+
+        SimpleDateFormat format =
+                new SimpleDateFormat(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return tagged(utcTime ? UTC_TIME : GENERALIZED_TIME,
+                format.format(date).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static byte[] oid(String dotted) {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            // Base 128, most significant group first, with the high bit set on all but the last.
+            int groups = 1;
+            while ((value >>> (7 * groups)) != 0) {
+                groups++;
+            }
+            for (int g = groups - 1; g >= 0; g--) {
+                int bits = (int) ((value >>> (7 * g)) & 0x7f);
+                out.write(g == 0 ? bits : bits | 0x80);
+            }
+        }
+        return tagged(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    /**
+     * An explicitly tagged, constructed context-specific element, e.g. [0] or [3].
+     */
+    static byte[] explicit(int tag, byte[] element) {
+        return tagged(0xa0 | tag, element);
+    }
+
+    /**
+     * An implicitly tagged, primitive context-specific element, e.g. a dNSName [2].
+     */
+    static byte[] implicitPrimitive(int tag, byte[] content) {
+        return tagged(0x80 | tag, content);
+    }
+
+    static byte[] tagged(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = 0;
+            for (int l = length; l != 0; l >>>= 8) {
+                bytes++;
+            }
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (8 * i));
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
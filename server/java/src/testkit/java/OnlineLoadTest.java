@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends statements through an {@link AsyncOnlineVerifier} as fast as it accepts them and reports
+ * the throughput, the latency percentiles and the concurrency limit that the verifier settled on.
+ * Unless an endpoint is given, the requests go to an in-process {@link StubVerificationEndpoint}.
+ * <p>
+ * Usage: OnlineLoadTest [--endpoint url] [--count n] [--latency-ms ms] [--error-rate p]
+ * [--capacity n] [--hedge-delay-ms ms] statements.ndjson[.gz]
+ */
+public class OnlineLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        URI endpoint = null;
+        int count = 10000;
+        long hedgeDelayMs = 100;
+        StubVerificationEndpoint stub = new StubVerificationEndpoint();
+        int i = 0;
+        for (; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--endpoint":
+                    endpoint = URI.create(value);
+                    break;
+                case "--count":
+                    count = Integer.parseInt(value);
+                    break;
+                case "--latency-ms":
+                    stub.latencyMs = Long.parseLong(value);
+                    break;
+                case "--error-rate":
+                    stub.errorRate = Double.parseDouble(value);
+                    break;
+                case "--capacity":
+                    stub.capacity = Integer.parseInt(value);
+                    break;
+                case "--hedge-delay-ms":
+                    hedgeDelayMs = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Failure: Unknown option " + args[i] + ".");
+                    return;
+            }
+        }
+        if (i != args.length - 1) {
+            System.err.println("Usage: OnlineLoadTest [--endpoint url] [--count n] "
+                    + "[--latency-ms ms] [--error-rate p] [--capacity n] [--hedge-delay-ms ms] "
+                    + "<file with one signed attestation statement per line>");
+            return;
+        }
+        List<String> statements = readStatements(new File(args[i]));
+        if (statements.isEmpty()) {
+            System.err.println("Failure: " + args[i] + " contains no statements.");
+            return;
+        }
+
+        if (endpoint == null) {
+            stub.start(0);
+            endpoint = stub.getEndpoint();
+        }
+        AsyncOnlineVerifier verifier = AsyncOnlineVerifier.newBuilder()
+                .setEndpoint(endpoint)
+                .setHedgeDelay(hedgeDelayMs, TimeUnit.MILLISECONDS)
+                .setMaxQueued(count)
+                .build();
+
+        final long[] latenciesNs = new long[count];
+        final AtomicInteger valid = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        List<CompletableFuture<?>> futures = new ArrayList<>(count);
+        long startNs = System.nanoTime();
+        for (int n = 0; n < count; n++) {
+            final int index = n;
+            final long requestStartNs = System.nanoTime();
+            futures.add(verifier.verify(statements.get(n % statements.size())).whenComplete(
+                    new BiConsumer<OnlineVerify.VerificationResponse, Throwable>() {
+                        @Override
+                        public void accept(OnlineVerify.VerificationResponse response,
+                                           Throwable failure) {
+                            latenciesNs[index] = System.nanoTime() - requestStartNs;
+                            if (response != null && response.isValidSignature) {
+                                valid.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    }));
+        }
+        // Failures are counted above, wait for all requests to complete either way.
+        for (CompletableFuture<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // Counted as failed.
+            }
+        }
+        double seconds = (System.nanoTime() - startNs) / 1e9;
+
+        Arrays.sort(latenciesNs);
+        System.err.println("Verified " + count + " statements in "
+                + String.format("%.3f", seconds) + " s: " + valid + " valid, " + failed
+                + " failed.");
+        System.err.println("Throughput: " + String.format("%.1f", count / seconds)
+                + " statements/s");
+        System.err.println("Latency (ms, including time waiting for the limit): p50="
+                + latenciesNs[count / 2] / 1000000
+                + " p99=" + latenciesNs[(int) Math.ceil(count * 0.99) - 1] / 1000000
+                + " max=" + latenciesNs[count - 1] / 1000000);
+        System.err.println("Concurrency limit: " + verifier.getConcurrencyLimit());
+        if (stub.getRequestCount() > 0) {
+            System.err.println("Requests to the stand-in: " + stub.getRequestCount()
+                    + ", rejected as overloaded: " + stub.getRejectedCount());
+            stub.stop();
+        }
+    }
+
+    private static List<String> readStatements(File file) throws IOException {
+        List<String> statements = new ArrayList<>();
+        InputStream in = Files.newInputStream(file.toPath());
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    statements.add(line.trim());
+                }
+            }
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the Android Device Verification API, for load tests of the
+ * {@link AsyncOnlineVerifier} without an API key or network access.
+ * Every request is answered with a valid signature after a configurable latency, with a
+ * configurable fraction of slow responses and of server errors. Requests beyond the capacity are
+ * rejected with 429, like an overloaded service. Responses are delayed on a scheduler instead of a
+ * blocked thread, so the stand-in can hold many concurrent requests.
+ */
+public class StubVerificationEndpoint {
+
+    private static final byte[] VALID = "{\"isValidSignature\": true}"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR = "{\"error\": \"Backend error\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    long latencyMs = 20;
+    long tailLatencyMs = 500;
+    double tailFraction = 0.01;
+    double errorRate = 0;
+    int capacity = 256;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private HttpServer server;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+
+    /**
+     * Starts the stand-in on the given port, or on a free port if it is 0.
+     */
+    void start(int port) throws IOException {
+        scheduler = Executors.newScheduledThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 4096);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    URI getEndpoint() {
+        return URI.create("http://localhost:" + server.getAddress().getPort()
+                + "/androidcheck/v1/attestations/verify");
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    int getRejectedCount() {
+        return rejected.get();
+    }
+
+    private void handleRequest(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Discard the statement, its signature is always reported as valid.
+            }
+        }
+        if (inFlight.incrementAndGet() > capacity) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            respond(exchange, 429, ERROR);
+            return;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delayMs = random.nextDouble() < tailFraction ? tailLatencyMs : latencyMs;
+        final boolean error = random.nextDouble() < errorRate;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                inFlight.decrementAndGet();
+                try {
+                    respond(exchange, error ? 500 : 200, error ? ERROR : VALID);
+                } catch (IOException e) {
+                    // The client has gone away.
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Runs the stand-in until the process is stopped.
+     * <p>
+     * Usage: StubVerificationEndpoint [--port n] [--latency-ms ms] [--tail-latency-ms ms]
+     * [--tail-fraction p] [--error-rate p] [--capacity n]
+     */
+    public static void main(String[] args) throws IOException {
+        StubVerificationEndpoint stub = new StubVerificationEndpoint();
+        int port = 8089;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--latency-ms":
+                    stub.latencyMs = Long.parseLong(value);
+                    break;
+                case "--tail-latency-ms":
+                    stub.tailLatencyMs = Long.parseLong(value);
+                    break;
+                case "--tail-fraction":
+                    stub.tailFraction = Double.parseDouble(value);
+                    break;
+                case "--error-rate":
+                    stub.errorRate = Double.parseDouble(value);
+                    break;
+                case "--capacity":
+                    stub.capacity = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Failure: Unknown option " + args[i] + ".");
+                    return;
+            }
+        }
+        stub.start(port);
+        System.err.println("Stand-in verification endpoint: " + stub.getEndpoint());
+    }
+}
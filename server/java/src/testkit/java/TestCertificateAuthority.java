@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local certificate authority for tests and benchmarks. It consists of a self-signed root, an
+ * intermediate CA and a leaf certificate issued for a hostname, usually "attest.android.com",
+ * mirroring the structure of the certificate chain of genuine attestation statements.
+ * Statements signed with the leaf key verify with an {@link AttestationVerifier} that trusts
+ * {@link #getTrustStore()}.
+ */
+final class TestCertificateAuthority {
+
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String COMMON_NAME = "2.5.4.3";
+    private static final String ORGANIZATION = "2.5.4.10";
+    private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+    private static final String KEY_USAGE = "2.5.29.15";
+    private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+    private static final String BASIC_CONSTRAINTS = "2.5.29.19";
+    private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+    private static final String EXTENDED_KEY_USAGE = "2.5.29.37";
+    private static final String SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
+
+    private static final String ORGANIZATION_NAME = "SafetyNet Sample Test CA";
+
+    private final X509Certificate root;
+    private final X509Certificate intermediate;
+    private final X509Certificate leaf;
+    private final PrivateKey leafKey;
+
+    private TestCertificateAuthority(X509Certificate root, X509Certificate intermediate,
+                                     X509Certificate leaf, PrivateKey leafKey) {
+        this.root = root;
+        this.intermediate = intermediate;
+        this.leaf = leaf;
+        this.leafKey = leafKey;
+    }
+
+    /**
+     * Creates a new root and intermediate CA, and a leaf certificate for the hostname. All
+     * certificates are valid from one day ago for the given number of days.
+     */
+    static TestCertificateAuthority create(String hostname, int validityDays)
+            throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair rootKeys = generator.generateKeyPair();
+        KeyPair intermediateKeys = generator.generateKeyPair();
+        KeyPair leafKeys = generator.generateKeyPair();
+
+        Date notBefore = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(validityDays + 1));
+
+        byte[] rootName = name("Test Attestation Root CA");
+        byte[] intermediateName = name("Test Attestation Intermediate CA");
+        byte[] leafName = name(hostname);
+
+        X509Certificate root = certificate(rootName, rootKeys.getPublic(), rootName, rootKeys,
+                notBefore, notAfter, caExtensions(rootKeys.getPublic(), rootKeys.getPublic(), 1));
+        X509Certificate intermediate = certificate(intermediateName, intermediateKeys.getPublic(),
+                rootName, rootKeys, notBefore, notAfter,
+                caExtensions(intermediateKeys.getPublic(), rootKeys.getPublic(), 0));
+        X509Certificate leaf = certificate(leafName, leafKeys.getPublic(), intermediateName,
+                intermediateKeys, notBefore, notAfter,
+                leafExtensions(hostname, leafKeys.getPublic(), intermediateKeys.getPublic()));
+        return new TestCertificateAuthority(root, intermediate, leaf, leafKeys.getPrivate());
+    }
+
+    X509Certificate getRootCertificate() {
+        return root;
+    }
+
+    X509Certificate getLeafCertificate() {
+        return leaf;
+    }
+
+    /**
+     * Returns the private key of the leaf certificate, used to sign statements.
+     */
+    PrivateKey getLeafKey() {
+        return leafKey;
+    }
+
+    /**
+     * Returns the certificate chain as base64 encoded DER certificates, leaf first, in the
+     * format of the "x5c" header of a JWS. The root is not included.
+     */
+    List<String> getX5c() throws GeneralSecurityException {
+        List<String> x5c = new ArrayList<>();
+        x5c.add(Base64.encodeBase64String(leaf.getEncoded()));
+        x5c.add(Base64.encodeBase64String(intermediate.getEncoded()));
+        return x5c;
+    }
+
+    /**
+     * Returns a trust store that only contains the root certificate.
+     */
+    KeyStore getTrustStore() throws GeneralSecurityException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try {
+            trustStore.load(null, null);
+        } catch (IOException e) {
+            // Cannot happen for an empty key store that is not loaded from a stream.
+            throw new GeneralSecurityException(e);
+        }
+        trustStore.setCertificateEntry("test-attestation-root", root);
+        return trustStore;
+    }
+
+    /**
+     * Returns the root certificate in PEM format.
+     */
+    String getRootCertificatePem() throws GeneralSecurityException {
+        String base64 = Base64.encodeBase64String(root.getEncoded());
+        StringBuilder pem = new StringBuilder("-----BEGIN CERTIFICATE-----\n");
+        for (int i = 0; i < base64.length(); i += 64) {
+            pem.append(base64, i, Math.min(base64.length(), i + 64)).append('\n');
+        }
+        return pem.append("-----END CERTIFICATE-----\n").toString();
+    }
+
+    private static byte[] name(String commonName) {
+        return Der.sequence(
+                Der.set(Der.sequence(Der.oid(ORGANIZATION), Der.utf8String(ORGANIZATION_NAME))),
+                Der.set(Der.sequence(Der.oid(COMMON_NAME), Der.utf8String(commonName))));
+    }
+
+    private static byte[] caExtensions(PublicKey subjectKey, PublicKey issuerKey, int pathLength)
+            throws GeneralSecurityException {
+        return Der.sequence(
+                extension(BASIC_CONSTRAINTS, true,
+                        Der.sequence(Der.bool(true), Der.integer(pathLength))),
+                // keyCertSign and cRLSign.
+                extension(KEY_USAGE, true, Der.bitString(new byte[]{0x06}, 1)),
+                extension(SUBJECT_KEY_IDENTIFIER, false,
+                        Der.octetString(keyIdentifier(subjectKey))),
+                authorityKeyIdentifier(issuerKey));
+    }
+
+    private static byte[] leafExtensions(String hostname, PublicKey subjectKey,
+                                         PublicKey issuerKey) throws GeneralSecurityException {
+        byte[] dnsName = Der.implicitPrimitive(2,
+                hostname.getBytes(StandardCharsets.US_ASCII));
+        return Der.sequence(
+                extension(BASIC_CONSTRAINTS, true, Der.sequence()),
+                // digitalSignature and keyEncipherment, like the genuine attestation certificate.
+                // Java's TLS trust manager requires keyEncipherment for the "RSA" auth type.
+                extension(KEY_USAGE, true, Der.bitString(new byte[]{(byte) 0xa0}, 5)),
+                extension(EXTENDED_KEY_USAGE, false, Der.sequence(Der.oid(SERVER_AUTH))),
+                extension(SUBJECT_ALT_NAME, false, Der.sequence(dnsName)),
+                extension(SUBJECT_KEY_IDENTIFIER, false,
+                        Der.octetString(keyIdentifier(subjectKey))),
+                authorityKeyIdentifier(issuerKey));
+    }
+
+    private static byte[] authorityKeyIdentifier(PublicKey issuerKey)
+            throws GeneralSecurityException {
+        return extension(AUTHORITY_KEY_IDENTIFIER, false,
+                Der.sequence(Der.implicitPrimitive(0, keyIdentifier(issuerKey))));
+    }
+
+    private static byte[] extension(String oid, boolean critical, byte[] value) {
+        if (critical) {
+            return Der.sequence(Der.oid(oid), Der.bool(true), Der.octetString(value));
+        }
+        return Der.sequence(Der.oid(oid), Der.octetString(value));
+    }
+
+    private static byte[] keyIdentifier(PublicKey key) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-1").digest(key.getEncoded());
+    }
+
+    private static X509Certificate certificate(byte[] subject, PublicKey subjectKey,
+                                               byte[] issuer, KeyPair issuerKeys,
+                                               Date notBefore, Date notAfter, byte[] extensions)
+            throws GeneralSecurityException {
+        byte[] algorithm = Der.sequence(Der.oid(SHA256_WITH_RSA), Der.nul());
+        byte[] tbs = Der.sequence(
+                Der.explicit(0, Der.integer(2)),
+                Der.integer(new BigInteger(63, new SecureRandom())),
+                algorithm,
+                issuer,
+                Der.sequence(Der.time(notBefore), Der.time(notAfter)),
+                subject,
+                subjectKey.getEncoded(),
+                Der.explicit(3, extensions));
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(issuerKeys.getPrivate());
+        signature.update(tbs);
+        byte[] der = Der.sequence(tbs, algorithm, Der.bitString(signature.sign()));
+
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(der));
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates signed attestation statements for load tests and benchmarks.
+ * The statements are signed by the leaf certificate of a {@link TestCertificateAuthority} and
+ * have the same structure and fields as the statements returned by the SafetyNet API. The
+ * distribution of package names, integrity verdicts, evaluation types and timestamps is
+ * configurable. The root certificate of the CA is written next to the statements so that the
+ * verifiers can trust it, e.g. with {@code BatchVerify --trust-store trusted-root.pem}.
+ * <p>
+ * Usage: TokenGenerator [options]
+ * <pre>
+ *   --count n                 number of statements (default 1000)
+ *   --out dir                 output directory (default build/tokens)
+ *   --gzip                    gzip compress the statements
+ *   --packages a:w,b:w        package names with relative weights (default three sample apps)
+ *   --cts-profile-match p     fraction of statements that match the CTS profile (default 0.9)
+ *   --basic-integrity p       fraction of the remaining statements with basic integrity
+ *                             (default 0.7)
+ *   --hardware-backed p       fraction of statements with the HARDWARE_BACKED evaluation type
+ *                             (default 0.6)
+ *   --modified-apk p          fraction of statements from a modified APK (default 0.01)
+ *   --max-age-ms ms           timestamps are spread uniformly over this period (default 60000)
+ *   --seed n                  seed of the random generator (default: random)
+ * </pre>
+ */
+public class TokenGenerator {
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * The configurable distribution of the generated statements.
+     */
+    static final class Distribution {
+        String[] packages = {"com.example.android.safetynetsample", "com.example.shop",
+                "com.example.bank"};
+        double[] packageWeights = {1, 1, 1};
+        double ctsProfileMatchRate = 0.9;
+        double basicIntegrityRate = 0.7;
+        double hardwareBackedRate = 0.6;
+        double modifiedApkRate = 0.01;
+        long maxAgeMs = 60000;
+
+        String pickPackage(SplittableRandom random) {
+            double total = 0;
+            for (double weight : packageWeights) {
+                total += weight;
+            }
+            double value = random.nextDouble() * total;
+            for (int i = 0; i < packages.length; i++) {
+                value -= packageWeights[i];
+                if (value < 0) {
+                    return packages[i];
+                }
+            }
+            return packages[packages.length - 1];
+        }
+    }
+
+    private final TestCertificateAuthority ca;
+    private final Distribution distribution;
+    private final JsonWebSignature.Header header;
+
+    TokenGenerator(TestCertificateAuthority ca, Distribution distribution)
+            throws GeneralSecurityException {
+        this.ca = ca;
+        this.distribution = distribution;
+        this.header = new JsonWebSignature.Header()
+                .setAlgorithm("RS256")
+                .setX509Certificates(ca.getX5c());
+    }
+
+    /**
+     * Mints one signed attestation statement with fields drawn from the distribution.
+     */
+    String mint(SplittableRandom random, long nowMs) throws GeneralSecurityException, IOException {
+        String packageName = distribution.pickPackage(random);
+        boolean modified = random.nextDouble() < distribution.modifiedApkRate;
+        boolean ctsProfileMatch = random.nextDouble() < distribution.ctsProfileMatchRate;
+        boolean basicIntegrity =
+                ctsProfileMatch || random.nextDouble() < distribution.basicIntegrityRate;
+        boolean hardwareBacked = random.nextDouble() < distribution.hardwareBackedRate;
+
+        JsonWebSignature.Payload payload = new JsonWebSignature.Payload();
+        payload.set("nonce", Base64.encodeBase64String(randomBytes(random, 32)));
+        payload.set("timestampMs", nowMs - (long) (random.nextDouble() * distribution.maxAgeMs));
+        payload.set("apkPackageName", packageName);
+        // Genuine builds of a package share their digests, modified builds don't.
+        payload.set("apkDigestSha256", Base64.encodeBase64String(modified
+                ? randomBytes(random, 32) : sha256(packageName + ":apk")));
+        payload.set("apkCertificateDigestSha256", Collections.singletonList(
+                Base64.encodeBase64String(modified
+                        ? randomBytes(random, 32) : sha256(packageName + ":certificate"))));
+        payload.set("ctsProfileMatch", ctsProfileMatch);
+        payload.set("basicIntegrity", basicIntegrity);
+        payload.set("evaluationType", hardwareBacked ? "BASIC,HARDWARE_BACKED" : "BASIC");
+
+        return JsonWebSignature.signUsingRsaSha256(ca.getLeafKey(),
+                JacksonFactory.getDefaultInstance(), header, payload);
+    }
+
+    /**
+     * Mints {@code count} statements on all cores and writes them to the writer, one per line.
+     */
+    void generate(long count, final long seed, Writer out)
+            throws IOException, InterruptedException, ExecutionException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long nowMs = System.currentTimeMillis();
+        try {
+            long batches = (count + BATCH_SIZE - 1) / BATCH_SIZE;
+            // Keep a bounded number of batches in flight and write them in order.
+            List<Future<List<String>>> inFlight = new ArrayList<>();
+            for (long batch = 0; batch < batches || !inFlight.isEmpty(); ) {
+                while (batch < batches && inFlight.size() < threads * 2) {
+                    final long index = batch++;
+                    final int size = (int) Math.min(BATCH_SIZE, count - index * BATCH_SIZE);
+                    inFlight.add(executor.submit(new Callable<List<String>>() {
+                        @Override
+                        public List<String> call() throws Exception {
+                            SplittableRandom random = new SplittableRandom(seed + index);
+                            List<String> statements = new ArrayList<>(size);
+                            for (int i = 0; i < size; i++) {
+                                statements.add(mint(random, nowMs));
+                            }
+                            return statements;
+                        }
+                    }));
+                }
+                for (String statement : inFlight.remove(0).get()) {
+                    out.write(statement);
+                    out.write('\n');
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] randomBytes(SplittableRandom random, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) random.nextInt(256);
+        }
+        return bytes;
+    }
+
+    private static byte[] sha256(String value) {
+        MessageDigest digest = DigestKey.newSha256();
+        return digest.digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws Exception {
+        long count = 1000;
+        File outDir = new File("build/tokens");
+        boolean gzip = false;
+        long seed = new SplittableRandom().nextLong();
+        Distribution distribution = new Distribution();
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--gzip")) {
+                gzip = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                System.err.println("Failure: Missing value for " + option + ".");
+                return;
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--count":
+                    count = Long.parseLong(value);
+                    break;
+                case "--out":
+                    outDir = new File(value);
+                    break;
+                case "--packages":
+                    String[] entries = value.split(",");
+                    distribution.packages = new String[entries.length];
+                    distribution.packageWeights = new double[entries.length];
+                    for (int p = 0; p < entries.length; p++) {
+                        String[] entry = entries[p].split(":");
+                        distribution.packages[p] = entry[0];
+                        distribution.packageWeights[p] =
+                                entry.length > 1 ? Double.parseDouble(entry[1]) : 1;
+                    }
+                    break;
+                case "--cts-profile-match":
+                    distribution.ctsProfileMatchRate = Double.parseDouble(value);
+                    break;
+                case "--basic-integrity":
+                    distribution.basicIntegrityRate = Double.parseDouble(value);
+                    break;
+                case "--hardware-backed":
+                    distribution.hardwareBackedRate = Double.parseDouble(value);
+                    break;
+                case "--modified-apk":
+                    distribution.modifiedApkRate = Double.parseDouble(value);
+                    break;
+                case "--max-age-ms":
+                    distribution.maxAgeMs = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Failure: Unknown option " + option + ".");
+                    return;
+            }
+        }
+
+        TestCertificateAuthority ca =
+                TestCertificateAuthority.create(AttestationVerifier.ATTESTATION_HOSTNAME, 3650);
+        outDir.mkdirs();
+        Files.write(new File(outDir, "trusted-root.pem").toPath(),
+                ca.getRootCertificatePem().getBytes(StandardCharsets.US_ASCII));
+
+        File statements = new File(outDir, gzip ? "attestations.ndjson.gz" : "attestations.ndjson");
+        long startMs = System.currentTimeMillis();
+        OutputStream stream = new FileOutputStream(statements);
+        if (gzip) {
+            stream = new GZIPOutputStream(stream, 64 * 1024);
+        }
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(stream, StandardCharsets.US_ASCII), 64 * 1024)) {
+            new TokenGenerator(ca, distribution).generate(count, seed, out);
+        }
+        System.out.println("Wrote " + count + " statements to " + statements + " in "
+                + (System.currentTimeMillis() - startMs) + " ms. Trust "
+                + new File(outDir, "trusted-root.pem") + " to verify them.");
+    }
+}